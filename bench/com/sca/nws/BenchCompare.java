@@ -0,0 +1,155 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares the CSV results of a JMH run with a baseline run, and exits
+ * with an error if any score is worse than the baseline by more than a
+ * tolerance.  Scores in operations per unit of time must not drop, and
+ * scores per operation, such as time or <code>gc.alloc.rate.norm</code>,
+ * must not rise.  Scores in other units are only reported.
+ * <pre>
+ * java com.sca.nws.BenchCompare baseline.csv results.csv [tolerance]
+ * </pre>
+ * The tolerance is a fraction, 0.1 by default.  A missing baseline
+ * isn't an error, so that the first run can record one.
+ */
+public class BenchCompare {
+    /**
+     * A row of JMH results.
+     */
+    static final class Score {
+        final double value;
+        final double error;
+        final String unit;
+
+        Score(double value, double error, String unit) {
+            this.value = value;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * Reads JMH results in CSV format, keyed by benchmark, mode and
+     * parameters.
+     */
+    static Map<String, Score> read(File file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<String, Score>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String[] header = split(in.readLine());
+            int unitCol = header.length;
+            for (int i = 0; i < header.length; i++)
+                if (header[i].equals("Unit"))
+                    unitCol = i;
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = split(line);
+                if (f.length <= unitCol)
+                    continue;
+                StringBuilder key = new StringBuilder(f[0]).append(' ').append(f[1]);
+                for (int i = unitCol + 1; i < f.length; i++)
+                    key.append(' ').append(header[i]).append('=').append(f[i]);
+                scores.put(key.toString(), new Score(number(f[4]), number(f[5]), f[unitCol]));
+            }
+        } finally {
+            in.close();
+        }
+        return scores;
+    }
+
+    private static double number(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Splits a CSV line, removing the quotes.
+     */
+    static String[] split(String line) {
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder f = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                fields.add(f.toString());
+                f.setLength(0);
+            } else
+                f.append(c);
+        }
+        fields.add(f.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("usage: BenchCompare baseline.csv results.csv [tolerance]");
+            System.exit(1);
+        }
+        File baselineFile = new File(args[0]);
+        if (!baselineFile.exists()) {
+            System.out.println("no baseline in " + args[0] + ", nothing to compare");
+            return;
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+
+        Map<String, Score> baseline = read(baselineFile);
+        Map<String, Score> results = read(new File(args[1]));
+        int regressions = 0;
+        for (Map.Entry<String, Score> e: results.entrySet()) {
+            Score cur = e.getValue();
+            Score base = baseline.get(e.getKey());
+            if (base == null || Double.isNaN(cur.value) || Double.isNaN(base.value) ||
+                    base.value == 0 || !base.unit.equals(cur.unit))
+                continue;
+
+            double change = (cur.value - base.value) / base.value;
+            boolean worse;
+            if (cur.unit.startsWith("ops/"))
+                worse = change < -tolerance;
+            else if (cur.unit.endsWith("/op"))
+                worse = change > tolerance;
+            else
+                worse = false;
+            if (worse)
+                regressions++;
+            System.out.printf("%-8s %+7.1f%%  %s: %.3f -> %.3f %s%n",
+                    worse ? "WORSE" : "", change * 100, e.getKey(),
+                    base.value, cur.value, cur.unit);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " scores worse than the baseline by more than " +
+                    Math.round(tolerance * 100) + "%");
+            System.exit(1);
+        }
+    }
+}
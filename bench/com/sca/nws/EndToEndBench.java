@@ -0,0 +1,127 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sca.nws.server.NwsEngine;
+
+/**
+ * Measures complete operations against a server started in the same
+ * JVM, so that the network cost is that of the loopback interface.
+ * Each benchmark thread has its own connection and variables.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBench {
+    /** Number of values the ifind benchmark iterates over. */
+    private final static int ITERATED = 100;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        NwsEngine engine;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            engine = new NwsEngine(0);
+            engine.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            engine.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        @Param({"16", "1024", "65536"})
+        public int size;
+
+        @Param({"true", "false"})
+        public boolean binary;
+
+        NetWorkSpace ws;
+        byte[] value;
+
+        @Setup(Level.Trial)
+        public void connect(Server server) throws Exception {
+            NwsOptions opts = new NwsOptions();
+            opts.port = server.engine.getPort();
+            opts.binaryProtocol = binary;
+            ws = new NetWorkSpace("bench-" + Thread.currentThread().getId(), opts);
+            value = new byte[size];
+            ws.declare("single", NetWorkSpace.SINGLE);
+            ws.store("single", value);
+            for (int i = 0; i < ITERATED; i++)
+                ws.store("many", value);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            ws.close();
+        }
+    }
+
+    @Benchmark
+    public Object storeFetch(Client c) throws Exception {
+        c.ws.store("queue", c.value);
+        return c.ws.fetch("queue");
+    }
+
+    @Benchmark
+    public Object find(Client c) throws Exception {
+        return c.ws.find("single");
+    }
+
+    @Benchmark
+    public Object findTry(Client c) throws Exception {
+        return c.ws.findTry("empty");
+    }
+
+    /**
+     * Iterates over all the values of a variable with ifindTry.
+     */
+    @Benchmark
+    public int ifind(Client c) throws Exception {
+        int n = 0;
+        Iterator<byte[]> it = c.ws.<byte[]>ifindTry("many");
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,155 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the encoding of requests and the parsing of replies, with
+ * both protocols, using in-memory streams instead of a socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBench {
+    @Param({"text", "binary"})
+    public String protocol;
+
+    @Param({"16", "1024"})
+    public int size;
+
+    private ByteArrayOutputStream sink;
+    private NwsServer writer;
+    private NwsServer reader;
+    private byte[] value;
+    private long number;
+
+    /**
+     * An endless repetition of a single reply.
+     */
+    static final class Replay extends InputStream {
+        private final byte[] reply;
+        private int pos = 0;
+
+        Replay(byte[] reply) {
+            this.reply = reply;
+        }
+
+        public int read() {
+            int b = reply[pos] & 0xff;
+            pos = (pos + 1) % reply.length;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, reply.length - pos);
+            System.arraycopy(reply, pos, b, off, n);
+            pos = (pos + n) % reply.length;
+            return n;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        boolean binary = protocol.equals("binary");
+        value = new byte[size];
+
+        sink = new ByteArrayOutputStream(size + 256);
+        writer = new NwsServer(new DataOutputStream(new BufferedOutputStream(sink)),
+                null, binary);
+
+        // the reply to a fetch, as the server sends it
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(reply);
+        if (binary) {
+            out.write(0);
+            out.writeInt(0x07000000);
+            int n = size;
+            while ((n & ~0x7f) != 0) {
+                out.write((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            out.write(n);
+        } else {
+            out.writeBytes("0000");
+            out.writeBytes(NwsUtils.paddedZeros(0x07000000));
+            out.writeBytes(NwsUtils.paddedZeros(0) + NwsUtils.paddedZeros(0));
+            out.writeBytes(NwsUtils.paddedZeros(size));
+        }
+        out.write(value);
+        reader = new NwsServer(null, new DataInputStream(
+                new BufferedInputStream(new Replay(reply.toByteArray()))), binary);
+    }
+
+    @Benchmark
+    public String paddedZeros() {
+        return NwsUtils.paddedZeros((int) (++number & 0xffffff));
+    }
+
+    @Benchmark
+    public String paddedZerosWidth() {
+        return NwsUtils.paddedZeros(++number & 0xffffff, 4);
+    }
+
+    /**
+     * Encodes a store request.
+     */
+    @Benchmark
+    public int encodeStore() throws Exception {
+        sink.reset();
+        writer.writeCount(5);
+        writer.writeName("store");
+        writer.writeName("bench");
+        writer.writeName("var");
+        writer.writeNumber(0x07000000);
+        writer.writeArg(value);
+        writer.sendAll();
+        return sink.size();
+    }
+
+    /**
+     * Parses a fetch reply.
+     */
+    @Benchmark
+    public byte[] parseReply() throws Exception {
+        reader.recvStatus();
+        reader.recvDescriptor();
+        reader.recvCookie();
+        return reader.recvValue();
+    }
+}
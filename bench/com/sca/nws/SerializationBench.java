@@ -0,0 +1,88 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the Java serialization of typical values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBench {
+    @Param({"string", "long", "bytes", "doubles", "map"})
+    public String type;
+
+    /** Number of characters, bytes, doubles or map entries. */
+    @Param({"16", "1024"})
+    public int size;
+
+    private Object value;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws Exception {
+        if (type.equals("string")) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < size; i++)
+                sb.append((char) ('a' + i % 26));
+            value = sb.toString();
+        } else if (type.equals("long")) {
+            value = Long.valueOf(size);
+        } else if (type.equals("bytes")) {
+            value = new byte[size];
+        } else if (type.equals("doubles")) {
+            double[] d = new double[size];
+            for (int i = 0; i < size; i++)
+                d[i] = i * 0.5;
+            value = d;
+        } else {
+            HashMap<String, Integer> m = new HashMap<String, Integer>();
+            for (int i = 0; i < size; i++)
+                m.put("key" + i, i);
+            value = m;
+        }
+        serialized = NetWorkSpace.serialize(value);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return NetWorkSpace.serialize(value);
+    }
+
+    @Benchmark
+    public Object deserialize() throws Exception {
+        return NetWorkSpace.deserialize(serialized);
+    }
+}
@@ -0,0 +1,188 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values on their way to the server, and decides for each
+ * variable whether that's worth doing.  The compression ratio observed
+ * for a variable is tracked as a moving average.  When it's too poor,
+ * compression is switched off for that variable, and only retried
+ * every so often in case the values have changed character.
+ * <p>
+ * Compressed values start with their uncompressed length as a four
+ * byte integer, followed by raw deflate data.  Values may be
+ * compressed by several threads at once, each with a deflater taken
+ * from a pool.
+ */
+class CompressionPolicy {
+    private final static double MAX_RATIO = 0.9;
+    private final static int PROBE_INTERVAL = 64;
+    // larger output buffers are only kept for the value they were made for
+    private final static int MAX_KEPT_BUFFER = 1 << 20;
+
+    private final int threshold;
+    private final HashMap<String, Stats> stats = new HashMap<String, Stats>();
+    private final ArrayList<Compressor> idle = new ArrayList<Compressor>();
+    private boolean closed = false;
+
+    private static final class Stats {
+        // NaN until the first value has been compressed
+        double ratio = Double.NaN;
+        int skip = 0;
+    }
+
+    private static final class Compressor {
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        byte[] buf = new byte[8192];
+    }
+
+    CompressionPolicy(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns the compressed form of a value stored in the specified
+     * variable, or null if the value should be sent as is.
+     *
+     * @param varname name of the variable
+     * @param ba serialized value
+     * @return compressed value or null
+     */
+    byte[] compress(String varname, byte[] ba) {
+        if (ba.length < threshold)
+            return null;
+
+        Stats s;
+        synchronized (this) {
+            s = stats.get(varname);
+            if (s == null) {
+                s = new Stats();
+                stats.put(varname, s);
+            }
+            if (s.skip > 0) {
+                s.skip--;
+                return null;
+            }
+        }
+
+        byte[] cba = deflate(ba);
+        synchronized (this) {
+            double r = (double) cba.length / ba.length;
+            s.ratio = Double.isNaN(s.ratio) ? r : 0.75 * s.ratio + 0.25 * r;
+            if (s.ratio > MAX_RATIO)
+                s.skip = PROBE_INTERVAL;
+        }
+        return cba.length < ba.length ? cba : null;
+    }
+
+    private byte[] deflate(byte[] ba) {
+        Compressor c = take();
+        try {
+            byte[] buf = c.buf;
+            if (buf.length < ba.length + 4) {
+                buf = new byte[ba.length + 4];
+                if (buf.length <= MAX_KEPT_BUFFER)
+                    c.buf = buf;
+            }
+            buf[0] = (byte) (ba.length >>> 24);
+            buf[1] = (byte) (ba.length >>> 16);
+            buf[2] = (byte) (ba.length >>> 8);
+            buf[3] = (byte) ba.length;
+
+            Deflater deflater = c.deflater;
+            deflater.reset();
+            deflater.setInput(ba);
+            deflater.finish();
+            int n = 4;
+            while (!deflater.finished() && n < buf.length)
+                n += deflater.deflate(buf, n, buf.length - n);
+
+            // anything that doesn't fit in the buffer wasn't worth compressing
+            if (!deflater.finished())
+                return ba;
+            byte[] cba = new byte[n];
+            System.arraycopy(buf, 0, cba, 0, n);
+            return cba;
+        } finally {
+            give(c);
+        }
+    }
+
+    private synchronized Compressor take() {
+        if (!idle.isEmpty())
+            return idle.remove(idle.size() - 1);
+        return new Compressor();
+    }
+
+    private synchronized void give(Compressor c) {
+        if (closed)
+            c.deflater.end();
+        else
+            idle.add(c);
+    }
+
+    /**
+     * Releases the resources held by the compressor.  Compressions
+     * still in progress release theirs when they finish.
+     */
+    synchronized void close() {
+        closed = true;
+        for (Compressor c: idle)
+            c.deflater.end();
+        idle.clear();
+    }
+
+    /**
+     * Restores a value compressed by <code>compress</code>.
+     *
+     * @param cba compressed value
+     * @return original value
+     * @exception NwsDeserializeException
+     */
+    static byte[] decompress(byte[] cba) throws NwsDeserializeException {
+        int n = ((cba[0] & 0xff) << 24) | ((cba[1] & 0xff) << 16) |
+                ((cba[2] & 0xff) << 8) | (cba[3] & 0xff);
+        byte[] ba = new byte[n];
+        Inflater inflater = new Inflater(true);
+        try {
+            // raw deflate data needs an extra dummy byte at the end
+            byte[] input = new byte[cba.length - 3];
+            System.arraycopy(cba, 4, input, 0, cba.length - 4);
+            inflater.setInput(input);
+            int m = 0;
+            while (m < n && !inflater.finished()) {
+                int k = inflater.inflate(ba, m, n - m);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                m += k;
+            }
+            if (m != n)
+                throw new NwsDeserializeException("truncated compressed value");
+        } catch (DataFormatException e) {
+            throw new NwsDeserializeException("DataFormatException", e);
+        } finally {
+            inflater.end();
+        }
+        return ba;
+    }
+}
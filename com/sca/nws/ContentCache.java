@@ -0,0 +1,119 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client side cache of large values, keyed by the SHA-256 digest of
+ * their content.  Setting the <code>contentCache</code> option of a
+ * NetWorkSpace enables content-addressed storage: large values are
+ * stored by digest, and only uploaded if the server doesn't already
+ * hold the same content.  Values retrieved by digest are served from
+ * this cache when possible.
+ * <p>
+ * A single cache can, and usually should, be shared by all the
+ * NetWorkSpace objects of a process.  The least recently used content
+ * is evicted when the total size exceeds the limit.
+ */
+public class ContentCache {
+    private final LinkedHashMap<String, byte[]> contents =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final long maxBytes;
+    private long size = 0;
+
+    /**
+     * Creates a cache holding at most the specified number of bytes.
+     *
+     * @param maxBytes size limit in bytes
+     */
+    public ContentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the total size of the cached content.
+     *
+     * @return size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Removes all content from the cache.
+     */
+    public synchronized void clear() {
+        contents.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the cached content for a digest, or null.  The array is
+     * the cache's own, and must not be changed.
+     */
+    synchronized byte[] get(byte[] digest) {
+        return contents.get(key(digest));
+    }
+
+    /**
+     * Caches a copy of the content, so that the caller's array can be
+     * changed afterwards.
+     */
+    synchronized void put(byte[] digest, byte[] data) {
+        if (data.length > maxBytes)
+            return;
+
+        byte[] old = contents.put(key(digest), data.clone());
+        if (old != null)
+            size -= old.length;
+        size += data.length;
+
+        Iterator<Map.Entry<String, byte[]>> it = contents.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private static String key(byte[] digest) {
+        StringBuilder sb = new StringBuilder(2 * digest.length);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the SHA-256 digest of the data.
+     *
+     * @param data content
+     * @return digest
+     */
+    static byte[] digest(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring.  Each node is placed at many pseudo-random
+ * points on the ring, and a key belongs to the node at the first point
+ * following the key's hash.  Adding a node only moves the keys that
+ * now hash closest to one of its points, about 1/n of them.
+ * <p>
+ * Rings are immutable, so they can be read by any thread, and a ring
+ * with a node added is a new ring.
+ */
+final class HashRing<T> {
+    private final static int POINTS_PER_NODE = 160;
+
+    // looking up a digest is slow next to hashing a short key
+    private final static ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("MD5 not available", e);
+            }
+        }
+    };
+
+    private final TreeMap<Long, T> ring;
+
+    /**
+     * Creates an empty ring.
+     */
+    HashRing() {
+        ring = new TreeMap<Long, T>();
+    }
+
+    private HashRing(TreeMap<Long, T> ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Returns a ring with a node added.
+     *
+     * @param name unique name of the node, which determines its points
+     * @param node the node
+     * @return new ring
+     */
+    HashRing<T> with(String name, T node) {
+        TreeMap<Long, T> points = new TreeMap<Long, T>(ring);
+        for (int i = 0; i < POINTS_PER_NODE; i++)
+            points.put(hash(name + "#" + i), node);
+        return new HashRing<T>(points);
+    }
+
+    /**
+     * Returns the node that owns the key.
+     *
+     * @param key key
+     * @return owning node
+     */
+    T get(String key) {
+        Map.Entry<Long, T> e = ring.ceilingEntry(hash(key));
+        return e == null ? ring.firstEntry().getValue() : e.getValue();
+    }
+
+    private static long hash(String s) {
+        byte[] d;
+        try {
+            d = MD5.get().digest(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not available", e);
+        }
+
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (d[i] & 0xff);
+        return h;
+    }
+}
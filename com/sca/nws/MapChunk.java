@@ -0,0 +1,57 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * A chunk of a parallel map, run by a worker as a single task.  The
+ * worker reports the time spent mapping, so the master can size the
+ * following chunks.
+ */
+class MapChunk<T, R> implements Callable<MapChunk.Output<R>>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final NwsMapper<T, R> fn;
+    private final ArrayList<T> elements;
+
+    MapChunk(NwsMapper<T, R> fn, ArrayList<T> elements) {
+        this.fn = fn;
+        this.elements = elements;
+    }
+
+    public Output<R> call() throws Exception {
+        long start = System.nanoTime();
+        ArrayList<R> results = new ArrayList<R>(elements.size());
+        for (T x: elements)
+            results.add(fn.map(x));
+        return new Output<R>(results, System.nanoTime() - start);
+    }
+
+    static final class Output<R> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final ArrayList<R> results;
+        final long nanos;
+
+        Output(ArrayList<R> results, long nanos) {
+            this.results = results;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -22,7 +22,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
 
 
 /**
@@ -75,13 +78,57 @@ public class NetWorkSpace {
      * value stored in the variable will overwrite any previous value.
      */
     public final static String SINGLE = "single";
+    /**
+     * Used with the <code>aggregate</code> method to count the values
+     * of a variable.
+     */
+    public final static String COUNT = "count";
+    /**
+     * Used with the <code>aggregate</code> method to total the size in
+     * bytes of the values of a variable, as stored on the server.
+     */
+    public final static String BYTES = "bytes";
+    /**
+     * Used with the <code>aggregate</code> method to sum the values of
+     * a variable, which must all be <code>Long</code>.
+     */
+    public final static String SUM = "sum";
+    /**
+     * Used with the <code>aggregate</code> method to find the smallest
+     * value of a variable, which must all be <code>Long</code>.
+     */
+    public final static String MIN = "min";
+    /**
+     * Used with the <code>aggregate</code> method to find the largest
+     * value of a variable, which must all be <code>Long</code>.
+     */
+    public final static String MAX = "max";
+    /**
+     * Used with the <code>aggregate</code> method to find the capacity
+     * of a variable, which is zero if it's unbounded.
+     */
+    public final static String CAPACITY = "capacity";
 
     private final static int JAVA_FP = 0x07000000;
     private final static int DIRECT_STRING = 0x00000001;
+    private final static int COMPRESSED = 0x00000002;
+    private final static int DIGEST_REF = 0x00000004;
+    private final static int NUMBER = 0x00000008;
+    private final static int ACCEPT_DIGEST = 1;
     private final static String DEFAULT_WSNAME = "__default";
+    private final static long MIN_BACKOFF = 1;
+    private final static long MAX_BACKOFF = 50;
+    private final static int MAX_PIPELINED = 256;
 
     protected NwsServer server;
     protected String curWs;
+    private CompressionPolicy compression = null;
+    private ContentCache contentCache = null;
+    private int dedupThreshold;
+    private boolean numbers;
+    private NwsWorkSpaceMonitor monitor = null;
+    private ObjectName mbeanName = null;
+    private NwsLanes lanes = null;
 
     /**
      * Create a NetWorkSpace object with the default name, "__default".
@@ -151,6 +198,19 @@ public class NetWorkSpace {
         serverConnection(wsName, opts);
     }
 
+    /**
+     * Create a NetWorkSpace object that is backed by an existing
+     * connection, without opening the workspace.  This is intended for
+     * subclasses that manage their own connections.
+     *
+     * @param wsName workspace name
+     * @param server NwsServer object
+     */
+    protected NetWorkSpace(String wsName, NwsServer server) {
+        curWs = wsName;
+        this.server = server;
+    }
+
     /**
      * Connect to server.
      *
@@ -162,9 +222,14 @@ public class NetWorkSpace {
     private void serverConnection(String wsName, NwsOptions opts)
                 throws NwsException {
         curWs = wsName;
+        if (opts.compression)
+            compression = new CompressionPolicy(opts.compressionThreshold);
+        contentCache = opts.contentCache;
+        dedupThreshold = opts.dedupThreshold;
+        numbers = opts.numbers;
 
         if (opts.server == null) {
-            server = new NwsServer(opts.host, opts.port);
+            server = new NwsServer(opts.host, opts.port, opts);
             try {
                 opts.space = this;
                 if (opts.useUse)
@@ -179,9 +244,24 @@ public class NetWorkSpace {
                 }
                 throw e;
             }
+            if (opts.lanes)
+                lanes = new NwsLanes(this, server, wsName, opts);
         } else {
             server = opts.server;
         }
+
+        if (opts.jmx) {
+            NwsWorkSpaceMonitor m = new NwsWorkSpaceMonitor(wsName, server);
+            try {
+                mbeanName = NwsConnectionMonitor.register(m, NwsWorkSpaceMBean.class,
+                        "type=WorkSpace,name=" + ObjectName.quote(wsName));
+            } catch (NwsServerException e) {
+                if (opts.server == null)
+                    server.close();
+                throw e;
+            }
+            monitor = m;
+        }
     }
 
     /**
@@ -200,6 +280,12 @@ public class NetWorkSpace {
      * @exception NwsException
      */
     public void close() throws NwsException {
+        if (compression != null)
+            compression.close();
+        if (mbeanName != null)
+            NwsConnectionMonitor.unregister(mbeanName);
+        if (lanes != null)
+            lanes.close();
         server.close();
     }
 
@@ -223,19 +309,53 @@ public class NetWorkSpace {
             !mode.equals(MULTI) && !mode.equals(SINGLE))
             throw new IllegalArgumentException("unsupported mode: " + mode);
 
-        String op = "declare var";
-        server.writeBytes("0004");
-        server.writeBytes(NwsUtils.paddedZeros(op.length()));
-        server.writeBytes(op);
-        server.writeBytes(NwsUtils.paddedZeros(curWs.length()));
-        server.writeBytes(curWs);
-        server.writeBytes(NwsUtils.paddedZeros(varname.length()));
-        server.writeBytes(varname);
-        server.writeBytes(NwsUtils.paddedZeros(mode.length()));
-        server.writeBytes(mode);
+        server.beginOp("declare var", curWs, varname);
+        server.writeCount(4);
+        server.writeName("declare var");
+        server.writeName(curWs);
+        server.writeName(varname);
+        server.writeName(mode);
+        server.sendAll();
+
+        int status = server.recvStatus();
+        server.endOp(status == 0);
+        if (status != 0)
+            throw new NwsDeclarationFailedException("variable declaration failed");
+    }
+
+    /**
+     * Declares a variable with a capacity.  Once a "fifo", "lifo" or
+     * "multi" mode variable holds <code>capacity</code> values,
+     * <code>store</code> blocks until a value is fetched, and
+     * <code>storeTry</code> fails.  Declaring an existing variable with
+     * the same mode changes its capacity, and a capacity of zero makes
+     * it unbounded.
+     *
+     * @param varname name of the variable
+     * @param mode mode of the variable, other than "single"
+     * @param capacity maximum number of values
+     * @exception NwsException
+     * @see NetWorkSpace#declare(String, String)
+     */
+    public void declare(String varname, String mode, int capacity) throws NwsException {
+        if (!mode.equals(FIFO) && !mode.equals(LIFO) && !mode.equals(MULTI))
+            throw new IllegalArgumentException("unsupported mode for a bounded variable: " + mode);
+        if (capacity < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        if (!server.supports("bounded vars"))
+            throw new NwsUnsupportedOperationException("server does not support bounded variables");
+
+        server.beginOp("declare var", curWs, varname);
+        server.writeCount(5);
+        server.writeName("declare var");
+        server.writeName(curWs);
+        server.writeName(varname);
+        server.writeName(mode);
+        server.writeNumber(capacity);
         server.sendAll();
 
-        int status = Integer.parseInt(new String(server.recvN(4)));
+        int status = server.recvStatus();
+        server.endOp(status == 0);
         if (status != 0)
             throw new NwsDeclarationFailedException("variable declaration failed");
     }
@@ -247,17 +367,15 @@ public class NetWorkSpace {
      * @exception NwsException
      */
     public void deleteVar(String varname) throws NwsException {
-        String op = "delete var";
-        server.writeBytes("0003");
-        server.writeBytes(NwsUtils.paddedZeros(op.length()));
-        server.writeBytes(op);
-        server.writeBytes(NwsUtils.paddedZeros(curWs.length()));
-        server.writeBytes(curWs);
-        server.writeBytes(NwsUtils.paddedZeros(varname.length()));
-        server.writeBytes(varname);
+        server.beginOp("delete var", curWs, varname);
+        server.writeCount(3);
+        server.writeName("delete var");
+        server.writeName(curWs);
+        server.writeName(varname);
         server.sendAll();
 
-        int status = Integer.parseInt(new String(server.recvN(4)));
+        int status = server.recvStatus();
+        server.endOp(status == 0);
         if (status != 0)
             throw new NwsOperationException("deleteVar failed");
     }
@@ -277,6 +395,29 @@ public class NetWorkSpace {
         return retrieve(varname, "fetch", null);
     }
 
+    /**
+     * Returns and removes a value of a variable from a workspace,
+     * waiting at most the specified time for the variable to have one.
+     * A fetch that times out is withdrawn on the server, and the
+     * connection stays usable.
+     * <p>
+     * If the server doesn't support timeouts, the variable is polled
+     * with <code>fetchTry</code> until the timeout expires.
+     *
+     * @param varname variable name
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return value from workspace variable, or <code>null</code> if
+     *         the timeout expired
+     * @exception NwsException
+     * @see NetWorkSpace#fetch
+     */
+    public Object fetch(String varname, long timeout, TimeUnit unit) throws NwsException {
+        if (!server.supports("fetch timeout"))
+            return poll(varname, true, unit.toNanos(timeout));
+        return retrieve(varname, "fetch", null, toMillis(timeout, unit));
+    }
+
     /**
      * Returns and removes a value of a variable from a workspace.
      * If the variable has no values, the operation will return
@@ -333,6 +474,29 @@ public class NetWorkSpace {
         return retrieve(varname, "find", null);
     }
 
+    /**
+     * Returns a value of a variable from a workspace without removing
+     * it, waiting at most the specified time for the variable to have
+     * one.  A find that times out is withdrawn on the server, and the
+     * connection stays usable.
+     * <p>
+     * If the server doesn't support timeouts, the variable is polled
+     * with <code>findTry</code> until the timeout expires.
+     *
+     * @param varname variable name
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return value from workspace variable, or <code>null</code> if
+     *         the timeout expired
+     * @exception NwsException
+     * @see NetWorkSpace#find
+     */
+    public Object find(String varname, long timeout, TimeUnit unit) throws NwsException {
+        if (!server.supports("fetch timeout"))
+            return poll(varname, false, unit.toNanos(timeout));
+        return retrieve(varname, "find", null, toMillis(timeout, unit));
+    }
+
     /**
      * Returns a value of a variable from a workspace.
      * If the variable has no values, the operation will return
@@ -380,6 +544,148 @@ public class NetWorkSpace {
         }
     }
 
+    /**
+     * Returns and removes a value of the first of several variables to
+     * have one.  The variables are checked in the order given, and if
+     * none has a value, the operation waits on all of them at once.
+     * <p>
+     * If the server doesn't support waiting on several variables, they
+     * are polled with <code>fetchTry</code>, with an increasing delay
+     * while they stay empty.
+     *
+     * @param varnames names of the variables
+     * @return value, and the name of the variable it came from
+     * @exception NwsException
+     */
+    public NwsNamedValue fetchAny(String... varnames) throws NwsException {
+        return retrieveAny(varnames, true);
+    }
+
+    /**
+     * Returns a value of the first of several variables to have one,
+     * without removing it.  The variables are checked in the order
+     * given, and if none has a value, the operation waits on all of
+     * them at once.
+     *
+     * @param varnames names of the variables
+     * @return value, and the name of the variable it came from
+     * @exception NwsException
+     * @see NetWorkSpace#fetchAny
+     */
+    public NwsNamedValue findAny(String... varnames) throws NwsException {
+        return retrieveAny(varnames, false);
+    }
+
+    private NwsNamedValue retrieveAny(String[] varnames, boolean fetch) throws NwsException {
+        if (varnames.length == 0)
+            throw new IllegalArgumentException("no variables specified");
+        String op = fetch ? "fetch any" : "find any";
+        if (!server.supports(op))
+            return pollAny(varnames, fetch);
+
+        boolean digests = acceptDigests();
+        NwsServer lane = retrieveLane(null, true);
+        int status;
+        int desc;
+        byte[] xVal;
+        byte[] varname;
+        boolean done = false;
+        try {
+            lane.beginOp(op, curWs, null);
+            lane.writeCount(3 + varnames.length);
+            lane.writeName(op);
+            lane.writeName(curWs);
+            lane.writeNumber(digests ? ACCEPT_DIGEST : 0);
+            for (int i = 0; i < varnames.length; i++)
+                lane.writeName(varnames[i]);
+            lane.sendAll();
+
+            status = lane.recvStatus();
+            desc = lane.recvDescriptor();
+            lane.recvCookie();
+            xVal = lane.recvValue();
+            varname = lane.recvValue();
+            if (status == 0 && (desc & DIGEST_REF) != 0)
+                xVal = resolveContent(lane, xVal);
+            lane.endOp(status == 0 && xVal != null);
+            done = true;
+        } finally {
+            release(lane, done);
+        }
+        if (status != 0)
+            throw new NwsOperationException("retrieval failed");
+        if (xVal == null)
+            throw new NwsOperationException("content not available");
+        String name = new String(varname);
+        if (lanes != null)
+            lanes.noteSize(name, xVal.length);
+        if (monitor != null)
+            monitor.retrieved(name, fetch, xVal.length);
+        return new NwsNamedValue(name, decode(name, desc, xVal, null));
+    }
+
+    /**
+     * Polls a variable until it has a value or the timeout expires.
+     *
+     * @param varname name of the variable
+     * @param fetch whether to remove the value
+     * @param nanos timeout in nanoseconds
+     * @return value, or <code>null</code>
+     * @exception NwsException
+     */
+    private Object poll(String varname, boolean fetch, long nanos) throws NwsException {
+        long deadline = System.nanoTime() + nanos;
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            Object v = fetch ? fetchTry(varname) : findTry(varname);
+            long left = deadline - System.nanoTime();
+            if (v != null || left <= 0)
+                return v;
+            try {
+                Thread.sleep(Math.min(backoff, (left + 999999) / 1000000));
+            } catch (InterruptedException ie) {
+                throw new NwsOperationException("interrupted while waiting", ie);
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Converts a timeout to milliseconds, rounding up, so that a short
+     * timeout still waits.
+     */
+    private static long toMillis(long timeout, TimeUnit unit) {
+        if (timeout <= 0)
+            return 0;
+        long nanos = unit.toNanos(timeout);
+        return nanos / 1000000 + (nanos % 1000000 == 0 ? 0 : 1);
+    }
+
+    /**
+     * Polls several variables until one has a value.
+     *
+     * @param varnames names of the variables
+     * @param fetch whether to remove the value
+     * @return value, and the name of the variable it came from
+     * @exception NwsException
+     */
+    NwsNamedValue pollAny(String[] varnames, boolean fetch) throws NwsException {
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            for (int i = 0; i < varnames.length; i++) {
+                Object v = fetch ? fetchTry(varnames[i]) : findTry(varnames[i]);
+                if (v != null)
+                    return new NwsNamedValue(varnames[i], v);
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ie) {
+                throw new NwsOperationException("interrupted while waiting", ie);
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+        }
+    }
+
     /**
      * Returns a fetch iterable for the variable varName.
      * This is only supported for <code>FIFO</code> and
@@ -496,6 +802,27 @@ public class NetWorkSpace {
         return new NwsVariable<E>(this, varname, "ifindTry");
     }
 
+    /**
+     * Applies a function to every element of a list on the
+     * <code>NwsExecutorWorker</code> processes of a task farm, and
+     * returns the results in the order of the elements.  The elements
+     * are sent in chunks, which start large and shrink toward the end,
+     * but never below the size at which the round trips would dominate
+     * the measured mapping time.  The results are collected from a
+     * variable private to this call.
+     *
+     * @param name name of the task farm, as given to the workers
+     * @param input elements to be mapped
+     * @param fn function applied to each element
+     * @param workers number of workers serving the task farm
+     * @return list of results
+     * @exception NwsException
+     */
+    public <T, R> List<R> parallelMap(String name, List<T> input, NwsMapper<T, R> fn,
+                                      int workers) throws NwsException {
+        return new ParallelMap<T, R>(this, name, input, fn, workers).run();
+    }
+
     /**
      * Returns the name of the workspace.
      *
@@ -532,25 +859,81 @@ public class NetWorkSpace {
      * @exception NwsException
      */
     public String listVars(String wsname) throws NwsException {
-        String op = "list vars";
-        server.writeBytes("0002");
-        server.writeBytes(NwsUtils.paddedZeros(op.length()));
-        server.writeBytes(op);
-        server.writeBytes(NwsUtils.paddedZeros(wsname.length()));
-        server.writeBytes(wsname);
+        server.beginOp("list vars", wsname, null);
+        server.writeCount(2);
+        server.writeName("list vars");
+        server.writeName(wsname);
         server.sendAll();
 
-        int status = Integer.parseInt(new String(server.recvN(4)));  // unused at the moment
-        byte[] desc = server.recvN(20);  // unused at the moment
-        byte[] cookie = server.recvN(40);  // unused at the moment
-        int n = Integer.parseInt(new String(server.recvN(20)));
-        byte[] listing = server.recvN(n);
+        int status = server.recvStatus();
+        server.recvDescriptor();  // unused at the moment
+        server.recvCookie();  // unused at the moment
+        byte[] listing = server.recvValue();
+        server.endOp(status == 0);
         if (status != 0)
             throw new NwsOperationException("listVars failed");
 
         return new String(listing);
     }
 
+    /**
+     * Lists the variables in this workspace, as they are read from the
+     * connection.  The connection is busy until the listing has been
+     * read, and starting another operation first reads and discards
+     * the rest of it.  With lanes, the connection is shared, so the
+     * listing is read in full before it's returned.
+     *
+     * @return iterator over the variables
+     * @exception NwsException
+     */
+    public Iterator<VariableInfo> listVariables() throws NwsException {
+        return listVariables(curWs, null);
+    }
+
+    /**
+     * Lists the variables in this workspace whose names start with the
+     * specified prefix.  The other variables are skipped as they are
+     * read.
+     *
+     * @param prefix variable name prefix, or null for all variables
+     * @return iterator over the variables
+     * @exception NwsException
+     * @see NetWorkSpace#listVariables()
+     */
+    public Iterator<VariableInfo> listVariables(String prefix) throws NwsException {
+        return listVariables(curWs, prefix);
+    }
+
+    /**
+     * Lists the variables in the specified workspace whose names start
+     * with the specified prefix.
+     *
+     * @param wsname workspace name
+     * @param prefix variable name prefix, or null for all variables
+     * @return iterator over the variables
+     * @exception NwsException
+     * @see NetWorkSpace#listVariables()
+     */
+    public Iterator<VariableInfo> listVariables(String wsname, String prefix)
+                throws NwsException {
+        server.beginOp("list vars", wsname, null);
+        server.writeCount(2);
+        server.writeName("list vars");
+        server.writeName(wsname);
+        server.sendAll();
+
+        int status = server.recvStatus();
+        server.recvDescriptor();  // unused at the moment
+        server.recvCookie();  // unused at the moment
+        int n = server.recvLength();
+        if (status != 0) {
+            server.recvN(n);
+            server.endOp(false);
+            throw new NwsOperationException("listVars failed");
+        }
+        return server.beginListing(new VariableInfo.Listing(server, n, prefix));
+    }
+
     /**
      * Stores a value in the specified workspace variable.
      * If a mode has not already declared for the variable, "fifo" will
@@ -567,34 +950,372 @@ public class NetWorkSpace {
         if (value == null)
             throw new IllegalArgumentException("null value is not supported");
 
-        String op = "store";
+        int desc = descriptor(value, numbers);
+        byte[] xVal = encode(varname, value, desc);
+        byte[] cVal = compress(varname, desc, xVal);
+        if (cVal != null) {
+            desc |= COMPRESSED;
+            xVal = cVal;
+        }
 
-        // byte arrays are not serialized
-        int desc = JAVA_FP;
-        byte[] xVal;
-        if (value instanceof byte[]) {
-            desc |= DIRECT_STRING;
-            xVal = (byte []) value;
-        } else {
-            xVal = serialize(value);
+        if (contentCache != null && xVal.length >= dedupThreshold &&
+                server.supports("store digest")) {
+            storeByDigest(varname, desc, xVal);
+            return;
         }
 
-        server.writeBytes("0005");
-        server.writeBytes(NwsUtils.paddedZeros(op.length()));
-        server.writeBytes(op);
-        server.writeBytes(NwsUtils.paddedZeros(curWs.length()));
-        server.writeBytes(curWs);
-        server.writeBytes(NwsUtils.paddedZeros(varname.length()));
-        server.writeBytes(varname);
-        server.writeBytes(NwsUtils.paddedZeros(20));
-        server.writeBytes(NwsUtils.paddedZeros(desc));
-        server.writeBytes(NwsUtils.paddedZeros(xVal.length));
-        server.writeBytes(xVal);
-        server.sendAll();
+        // a store mustn't wait for room in a bounded variable while it
+        // holds a shared lane, so it's tried there first, and only waits
+        // on a lane of its own
+        boolean shared = lanes != null && server.supports("bounded vars");
+        int status = sendStore(storeLane(varname, xVal.length), "store", !shared,
+                varname, desc, xVal);
+        if (status == 2) {
+            NwsServer lane = lanes.takeWaiter();
+            boolean done = false;
+            try {
+                status = sendStore(lane, "store", true, varname, desc, xVal);
+                done = true;
+            } finally {
+                release(lane, done);
+            }
+        }
+        if (status != 0)
+            throw new NwsOperationException("store failed");
+        if (monitor != null)
+            monitor.stored(varname, xVal.length);
+    }
+
+    /**
+     * Sends a store request and reads its status.
+     *
+     * @param lane connection
+     * @param op operation name to record
+     * @param block false to send a "store try", which doesn't wait
+     *        for room in a full variable
+     * @param varname name of the variable
+     * @param desc descriptor
+     * @param xVal stored form of the value
+     * @return 0 if stored, 1 if the store failed, or 2 if the
+     *         variable is full
+     * @exception NwsException
+     */
+    private int sendStore(NwsServer lane, String op, boolean block, String varname, int desc,
+                          byte[] xVal) throws NwsException {
+        lane.beginOp(op, curWs, varname);
+        lane.writeCount(5);
+        lane.writeName(block ? "store" : "store try");
+        lane.writeName(curWs);
+        lane.writeName(varname);
+        lane.writeNumber(desc);
+        lane.writeArg(xVal);
+        lane.sendAll();
+
+        int status = lane.recvStatus();
+        lane.endOp(status != 1);
+        return status;
+    }
+
+    /**
+     * Serializes a value for <code>storeAll</code>, compressing it if
+     * that's enabled.  This can be done by any thread.
+     *
+     * @param varname name of the variable
+     * @param value value to be stored
+     * @return store request
+     * @exception NwsException
+     */
+    StoreRequest prepareStore(String varname, Object value) throws NwsException {
+        if (value == null)
+            throw new IllegalArgumentException("null value is not supported");
+
+        int desc = descriptor(value, numbers);
+        byte[] xVal = encode(varname, value, desc);
+        byte[] cVal = compress(varname, desc, xVal);
+        if (cVal != null) {
+            desc |= COMPRESSED;
+            xVal = cVal;
+        }
+        return new StoreRequest(varname, desc, xVal);
+    }
+
+    /**
+     * Performs several stores with a single flush, and then reads all
+     * the replies, so that the whole batch costs one round trip.  The
+     * status of each store is left in its request.  Values are never
+     * stored by digest here.
+     *
+     * @param requests prepared store requests
+     * @exception NwsException
+     */
+    void storeAll(List<StoreRequest> requests) throws NwsException {
+        // the replies aren't read until a chunk is sent, so keep chunks
+        // small enough that they can't fill the socket buffers
+        int n = requests.size();
+        for (int start = 0; start < n; start += MAX_PIPELINED) {
+            int end = Math.min(n, start + MAX_PIPELINED);
+            NwsServer lane = waitingStoreLane();
+            boolean done = false;
+            try {
+                lane.beginOp("store batch", curWs, null);
+                for (int i = start; i < end; i++) {
+                    StoreRequest r = requests.get(i);
+                    lane.writeCount(5);
+                    lane.writeName("store");
+                    lane.writeName(curWs);
+                    lane.writeName(r.varname);
+                    lane.writeNumber(r.desc);
+                    lane.writeArg(r.data);
+                }
+                lane.sendAll();
+
+                boolean ok = true;
+                for (int i = start; i < end; i++) {
+                    StoreRequest r = requests.get(i);
+                    r.status = lane.recvStatus();
+                    ok &= r.status == 0;
+                    if (monitor != null && r.status == 0)
+                        monitor.stored(r.varname, r.data.length);
+                }
+                lane.endOp(ok);
+                done = true;
+            } finally {
+                release(lane, done);
+            }
+        }
+    }
+
+    /**
+     * Stores a value in the specified workspace variable, unless the
+     * variable is full.  Only variables declared with a capacity can
+     * be full, and <code>store</code> would block on them instead.
+     *
+     * @param varname name of the variable
+     * @param value value to be stored
+     * @return <code>true</code> if the value was stored, or
+     *         <code>false</code> if the variable is full
+     * @exception NwsException
+     * @see NetWorkSpace#declare(String, String, int)
+     */
+    public boolean storeTry(String varname, Object value) throws NwsException {
+        if (value == null)
+            throw new IllegalArgumentException("null value is not supported");
+
+        // without bounded variables, no variable can be full
+        if (!server.supports("bounded vars")) {
+            store(varname, value);
+            return true;
+        }
+
+        int desc = descriptor(value, numbers);
+        byte[] xVal = encode(varname, value, desc);
+        byte[] cVal = compress(varname, desc, xVal);
+        if (cVal != null) {
+            desc |= COMPRESSED;
+            xVal = cVal;
+        }
 
-        int status = Integer.parseInt(new String(server.recvN(4)));
+        int status = sendStore(storeLane(varname, xVal.length), "store try", false,
+                varname, desc, xVal);
+        if (status == 2)
+            return false;
         if (status != 0)
             throw new NwsOperationException("store failed");
+        if (monitor != null)
+            monitor.stored(varname, xVal.length);
+        return true;
+    }
+
+    /**
+     * Atomically adds to the numeric value of a variable, and returns the
+     * previous value.  The value that a <code>find</code> would return is
+     * replaced, and if the variable has no values, the delta is stored
+     * and zero returned.  Counters should be created by this method, by
+     * <code>compareAndSet</code>, or by storing a <code>Long</code> with
+     * the <code>numbers</code> option set.
+     * <p>
+     * If the server doesn't support atomic operations, this is emulated
+     * with <code>fetch</code> and <code>store</code>, which blocks until
+     * the variable has a value, and locks out other clients in between.
+     *
+     * @param varname name of the variable
+     * @param delta amount to add
+     * @return previous value
+     * @exception NwsException
+     */
+    public long fetchAndAdd(String varname, long delta) throws NwsException {
+        if (!server.supports("fetch add")) {
+            Object v = fetch(varname);
+            if (!(v instanceof Number)) {
+                store(varname, v);
+                throw new NwsOperationException("fetchAndAdd failed: value is not a number");
+            }
+            long old = ((Number) v).longValue();
+            store(varname, old + delta);
+            return old;
+        }
+
+        server.beginOp("fetch add", curWs, varname);
+        server.writeCount(5);
+        server.writeName("fetch add");
+        server.writeName(curWs);
+        server.writeName(varname);
+        server.writeNumber(JAVA_FP | NUMBER);
+        server.writeArg(Long.toString(delta));
+        server.sendAll();
+
+        int status = server.recvStatus();
+        byte[] old = server.recvValue();
+        server.endOp(status == 0);
+        if (status != 0)
+            throw new NwsOperationException("fetchAndAdd failed");
+        return Long.parseLong(new String(old));
+    }
+
+    /**
+     * Atomically replaces the value of a single mode variable, if its
+     * current value is the expected one.  A <code>null</code> expected
+     * value matches a variable with no value.  The server compares the
+     * stored form of the values, which is the same for equal strings,
+     * numbers and other values with a deterministic serialized form,
+     * but values stored compressed never match.  <code>Long</code> values
+     * are stored and compared as numbers, as <code>fetchAndAdd</code>
+     * stores them, whatever the <code>numbers</code> option.
+     * <p>
+     * If the server doesn't support atomic operations, this is emulated,
+     * non-atomically, with <code>fetchTry</code> and <code>store</code>,
+     * comparing the values with <code>equals</code>.
+     *
+     * @param varname name of a single mode variable
+     * @param expect expected value, or <code>null</code>
+     * @param update new value
+     * @return <code>true</code> if the value was replaced
+     * @exception NwsException
+     */
+    public boolean compareAndSet(String varname, Object expect, Object update)
+            throws NwsException {
+        if (update == null)
+            throw new IllegalArgumentException("null value is not supported");
+
+        if (!server.supports("compare set")) {
+            Object cur = fetchTry(varname);
+            boolean match = expect == null ? cur == null : expect.equals(cur);
+            if (match)
+                store(varname, update);
+            else if (cur != null)
+                store(varname, cur);
+            return match;
+        }
+
+        int expDesc = expect == null ? 0 : descriptor(expect, true);
+        int desc = descriptor(update, true);
+        server.beginOp("compare set", curWs, varname);
+        server.writeCount(7);
+        server.writeName("compare set");
+        server.writeName(curWs);
+        server.writeName(varname);
+        server.writeNumber(expDesc);
+        server.writeArg(expect == null ? new byte[0] : encode(varname, expect, expDesc));
+        server.writeNumber(desc);
+        server.writeArg(encode(varname, update, desc));
+        server.sendAll();
+
+        int status = server.recvStatus();
+        server.endOp(status != 1);
+        if (status == 1)
+            throw new NwsOperationException("compareAndSet failed");
+        return status == 0;
+    }
+
+    /**
+     * Atomically fetches the value of a variable, if it has one, and
+     * stores a new value.  For a single mode variable, this replaces
+     * its value.
+     * <p>
+     * If the server doesn't support atomic operations, this is emulated,
+     * non-atomically, with <code>fetchTry</code> and <code>store</code>.
+     *
+     * @param varname name of the variable
+     * @param value value to be stored
+     * @return previous value, or <code>null</code>
+     * @exception NwsException
+     */
+    public Object fetchAndStore(String varname, Object value) throws NwsException {
+        if (value == null)
+            throw new IllegalArgumentException("null value is not supported");
+
+        if (!server.supports("fetch store")) {
+            Object old = fetchTry(varname);
+            store(varname, value);
+            return old;
+        }
+
+        int desc = descriptor(value, numbers);
+        server.beginOp("fetch store", curWs, varname);
+        server.writeCount(5);
+        server.writeName("fetch store");
+        server.writeName(curWs);
+        server.writeName(varname);
+        server.writeNumber(desc);
+        server.writeArg(encode(varname, value, desc));
+        server.sendAll();
+
+        int status = server.recvStatus();
+        desc = server.recvDescriptor();
+        server.recvCookie();
+        byte[] xVal = server.recvValue();
+        server.endOp(status == 0);
+        if (status != 0)
+            throw new NwsOperationException("fetchAndStore failed");
+        return decode(varname, desc, xVal, null);
+    }
+
+    /**
+     * Computes an aggregate over the values of a variable on the server,
+     * without retrieving them.  The operation is one of
+     * <code>COUNT</code>, <code>BYTES</code>, <code>SUM</code>,
+     * <code>MIN</code>, <code>MAX</code> or <code>CAPACITY</code>.
+     * <code>SUM</code>, <code>MIN</code> and <code>MAX</code> only work on
+     * variables whose values are all <code>Long</code> stored as numbers,
+     * as with the <code>numbers</code> option, and the minimum
+     * and maximum of a variable with no values are undefined.
+     * <p>
+     * Servers without aggregate support can only count the values,
+     * which is done using the variable listing.
+     *
+     * @param varname name of the variable
+     * @param op aggregate operation
+     * @return result of the operation
+     * @exception NwsException
+     */
+    public long aggregate(String varname, String op) throws NwsException {
+        if (!server.supports("aggregate")) {
+            if (!op.equals(COUNT))
+                throw new NwsUnsupportedOperationException("server does not support aggregate " + op);
+            Iterator<VariableInfo> it = listVariables(varname);
+            long count = 0;
+            while (it.hasNext()) {
+                VariableInfo var = it.next();
+                if (var.getName().equals(varname))
+                    count = var.getValues();
+            }
+            return count;
+        }
+
+        server.beginOp("aggregate", curWs, varname);
+        server.writeCount(4);
+        server.writeName("aggregate");
+        server.writeName(curWs);
+        server.writeName(varname);
+        server.writeName(op);
+        server.sendAll();
+
+        int status = server.recvStatus();
+        byte[] result = server.recvValue();
+        server.endOp(status == 0);
+        if (status != 0)
+            throw new NwsOperationException("aggregate failed");
+        return Long.parseLong(new String(result));
     }
 
     /**
@@ -639,31 +1360,65 @@ public class NetWorkSpace {
      * @exception NwsException
      */
     private Object retrieve(String varname, String op, Object missing) throws NwsException {
-        server.writeBytes("0003");
-        server.writeBytes(NwsUtils.paddedZeros(op.length()));
-        server.writeBytes(op);
-        server.writeBytes(NwsUtils.paddedZeros(curWs.length()));
-        server.writeBytes(curWs);
-        server.writeBytes(NwsUtils.paddedZeros(varname.length()));
-        server.writeBytes(varname);
-        server.sendAll();
+        return retrieve(varname, op, missing, -1);
+    }
+
+    /**
+     * Helper function for fetch/find methods with a timeout.
+     *
+     * @param varname variable name
+     * @param op operation
+     * @param missing default value in case values are not found
+     * @param timeout timeout in milliseconds, or -1 to wait indefinitely
+     * @return value associates with variable var, or <code>null</code>
+     *         if the timeout expired
+     * @exception NwsException
+     */
+    private Object retrieve(String varname, String op, Object missing, long timeout)
+            throws NwsException {
+        boolean digests = acceptDigests();
+        NwsServer lane = retrieveLane(varname, !op.endsWith("Try"));
+        int status;
+        int desc;
+        byte[] xVal;
+        boolean done = false;
+        try {
+            lane.beginOp(op, curWs, varname);
+            lane.writeCount(timeout >= 0 ? 5 : digests ? 4 : 3);
+            lane.writeName(op);
+            lane.writeName(curWs);
+            lane.writeName(varname);
+            if (digests || timeout >= 0)
+                lane.writeNumber(digests ? ACCEPT_DIGEST : 0);
+            if (timeout >= 0)
+                lane.writeNumber(timeout);
+            lane.sendAll();
 
-        int status = Integer.parseInt(new String(server.recvN(4)));
-        int desc = Integer.parseInt(new String(server.recvN(20)));
-        byte[] cookie = server.recvN(40);  // unused at the moment
-        int n = Integer.parseInt(new String(server.recvN(20)));
-        byte[] xVal = server.recvN(n);
+            status = lane.recvStatus();
+            desc = lane.recvDescriptor();
+            lane.recvCookie();  // unused at the moment
+            xVal = lane.recvValue();
+            if (status == 0 && (desc & DIGEST_REF) != 0)
+                xVal = resolveContent(lane, xVal);
+            // an empty variable isn't an error for fetchTry and findTry
+            lane.endOp(xVal != null && (status != 1 || op.endsWith("Try")));
+            done = true;
+        } finally {
+            release(lane, done);
+        }
+        if (xVal == null)
+            throw new NwsOperationException("content not available");
+        if (lanes != null && status == 0)
+            lanes.noteSize(varname, xVal.length);
 
+        if (status == 2)
+            return null;
         if (status != 0)
             throw new NwsOperationException("retrieval failed");
+        if (monitor != null)
+            monitor.retrieved(varname, op.startsWith("fetch"), xVal.length);
 
-        // byte arrays are not been serialized
-        if ((desc & DIRECT_STRING) != 0)
-            return xVal;
-        else if (xVal.length > 0)
-            return deserialize(xVal);
-        else
-            return missing;
+        return decode(varname, desc, xVal, missing);
     }
 
     /**
@@ -679,33 +1434,285 @@ public class NetWorkSpace {
      */
     protected IValue iretrieve(String varname, String op, byte[] varId, int valIndex)
             throws NwsException {
-        server.writeBytes("0005");
-        server.writeBytes(NwsUtils.paddedZeros(op.length()));
-        server.writeBytes(op);
-        server.writeBytes(NwsUtils.paddedZeros(curWs.length()));
-        server.writeBytes(curWs);
-        server.writeBytes(NwsUtils.paddedZeros(varname.length()));
-        server.writeBytes(varname);
-        server.writeBytes(NwsUtils.paddedZeros(varId.length));
-        server.writeBytes(varId);
-        server.writeBytes(NwsUtils.paddedZeros(20));
-        server.writeBytes(NwsUtils.paddedZeros(valIndex));
-        server.sendAll();
+        boolean digests = acceptDigests();
+        NwsServer lane = retrieveLane(varname, !op.endsWith("Try"));
+        int status;
+        int desc;
+        byte[] xVal;
+        boolean done = false;
+        try {
+            lane.beginOp(op, curWs, varname);
+            lane.writeCount(digests ? 6 : 5);
+            lane.writeName(op);
+            lane.writeName(curWs);
+            lane.writeName(varname);
+            lane.writeArg(varId);
+            lane.writeNumber(valIndex);
+            if (digests)
+                lane.writeNumber(ACCEPT_DIGEST);
+            lane.sendAll();
+
+            status = lane.recvStatus();
+            desc = lane.recvDescriptor();
+            varId = lane.recvVarId();
+            valIndex = lane.recvIndex();
+            xVal = lane.recvValue();
+            if (status == 0 && (desc & DIGEST_REF) != 0)
+                xVal = resolveContent(lane, xVal);
+            lane.endOp(status == 0 && xVal != null);
+            done = true;
+        } finally {
+            release(lane, done);
+        }
+        if (xVal == null)
+            throw new NwsOperationException("content not available");
+        if (lanes != null && status == 0)
+            lanes.noteSize(varname, xVal.length);
+        if (monitor != null && status == 0)
+            monitor.retrieved(varname, op.startsWith("ifetch"), xVal.length);
 
-        int status = Integer.parseInt(new String(server.recvN(4)));
-        int desc = Integer.parseInt(new String(server.recvN(20)));
-        varId = server.recvN(20);
-        valIndex = Integer.parseInt(new String(server.recvN(20)));
-        int n = Integer.parseInt(new String(server.recvN(20)));
-        byte[] xVal = server.recvN(n);
+        Object value = decode(varname, desc, xVal, null);
+        if (value == null)
+            throw new NoSuchElementException("variable " + varname + " has no values");
+        return new IValue(status, value, varId, valIndex);
+    }
 
-        // byte arrays are not been serialized
+    /**
+     * Returns the connection for storing a value of the specified
+     * size.  Without lanes, there is only the one.
+     *
+     * @param varname name of the variable
+     * @param size size of the stored form of the value
+     * @return connection
+     * @exception NwsException
+     */
+    private NwsServer storeLane(String varname, int size) throws NwsException {
+        if (lanes == null)
+            return server;
+        return lanes.forStore(varname, size);
+    }
+
+    /**
+     * Returns the connection for stores that can't be tried first, and
+     * may wait for room in a bounded variable.  With lanes that's a wait
+     * lane, which must be handed back to <code>release</code>, so that
+     * the wait doesn't hold up the shared lanes.
+     *
+     * @return connection
+     * @exception NwsException
+     */
+    private NwsServer waitingStoreLane() throws NwsException {
+        if (lanes == null || !server.supports("bounded vars"))
+            return server;
+        return lanes.takeWaiter();
+    }
+
+    /**
+     * Returns the connection for a retrieval, which must be handed back
+     * to <code>release</code> once its reply has been read.
+     *
+     * @param varname name of the variable, or null
+     * @param blocking whether the retrieval may wait for a value
+     * @return connection
+     * @exception NwsException
+     */
+    private NwsServer retrieveLane(String varname, boolean blocking) throws NwsException {
+        if (lanes == null)
+            return server;
+        if (blocking)
+            return lanes.takeWaiter();
+        return lanes.forRetrieve(varname);
+    }
+
+    /**
+     * Hands back a connection from <code>retrieveLane</code> or
+     * <code>waitingStoreLane</code>.
+     *
+     * @param lane connection
+     * @param ok false if the operation didn't complete
+     */
+    private void release(NwsServer lane, boolean ok) {
+        if (lane != server)
+            lanes.release(lane, ok);
+    }
+
+    /**
+     * Returns the descriptor for a value, before any compression.
+     * Byte arrays are not serialized, and longs are stored as numbers
+     * if asked to and the server can do arithmetic on them; otherwise
+     * they're serialized, which is what older readers expect.
+     *
+     * @param value value to be stored
+     * @param number whether a long should be stored as a number
+     * @return descriptor
+     */
+    private int descriptor(Object value, boolean number) {
+        if (value instanceof byte[])
+            return JAVA_FP | DIRECT_STRING;
+        else if (number && value instanceof Long && server.supports("fetch add"))
+            return JAVA_FP | NUMBER;
+        else
+            return JAVA_FP;
+    }
+
+    /**
+     * Returns the compressed form of a value, or null if it isn't worth
+     * compressing.  Only values that other languages can't read anyway
+     * are compressed.
+     */
+    private byte[] compress(String varname, int desc, byte[] xVal) {
+        if (desc != JAVA_FP || compression == null)
+            return null;
+        return compression.compress(varname, xVal);
+    }
+
+    /**
+     * Converts a value to its stored form, before any compression.
+     *
+     * @param varname name of the variable, for flight recorder events
+     * @param value value to be stored
+     * @param desc descriptor of the value
+     * @return stored form
+     * @exception NwsException
+     */
+    private byte[] encode(String varname, Object value, int desc) throws NwsException {
+        if ((desc & DIRECT_STRING) != 0)
+            return (byte[]) value;
+
+        Object event = NwsEvents.INSTANCE.beginCodec();
+        byte[] xVal;
+        if ((desc & NUMBER) != 0)
+            xVal = value.toString().getBytes();
+        else
+            xVal = serialize(value);
+        if (event != null)
+            NwsEvents.INSTANCE.commitCodec(event, curWs, varname, true, xVal.length);
+        return xVal;
+    }
+
+    /**
+     * Converts a retrieved value back to an object.
+     *
+     * @param varname name of the variable, for flight recorder events
+     * @param desc descriptor of the value
+     * @param xVal value as received, or the content of a digest reply
+     * @param missing object to return if there is no value
+     * @return object
+     * @exception NwsException
+     */
+    private Object decode(String varname, int desc, byte[] xVal, Object missing)
+            throws NwsException {
+        Object event = NwsEvents.INSTANCE.beginCodec();
+        int size = xVal.length;
+        if ((desc & COMPRESSED) != 0)
+            xVal = CompressionPolicy.decompress(xVal);
+
+        // byte arrays are not been serialized, and content from the cache
+        // is the cache's own
+        Object value;
         if ((desc & DIRECT_STRING) != 0)
-            return new IValue(status, xVal, varId, valIndex);
+            value = (desc & (DIGEST_REF | COMPRESSED)) == DIGEST_REF ? xVal.clone() : xVal;
+        else if ((desc & NUMBER) != 0)
+            value = Long.valueOf(new String(xVal));
         else if (xVal.length > 0)
-            return new IValue(status, deserialize(xVal), varId, valIndex);
+            value = deserialize(xVal);
         else
-            throw new NoSuchElementException("variable " + varname + " has no values");
+            value = missing;
+        if (event != null)
+            NwsEvents.INSTANCE.commitCodec(event, curWs, varname, false, size);
+        return value;
+    }
+
+    /**
+     * Stores a serialized value by the digest of its content.  The value
+     * is only uploaded if the server doesn't already hold that content.
+     *
+     * @param varname name of the variable
+     * @param desc value descriptor
+     * @param xVal serialized value
+     * @exception NwsException
+     */
+    private void storeByDigest(String varname, int desc, byte[] xVal) throws NwsException {
+        byte[] digest = ContentCache.digest(xVal);
+        NwsServer lane = waitingStoreLane();
+        boolean done = false;
+        int status;
+        try {
+            lane.beginOp("store digest", curWs, varname);
+            lane.writeCount(5);
+            lane.writeName("store digest");
+            lane.writeName(curWs);
+            lane.writeName(varname);
+            lane.writeNumber(desc);
+            lane.writeArg(digest);
+            lane.sendAll();
+
+            status = lane.recvStatus();
+            lane.endOp(status != 1);
+            if (status != 0) {
+                lane.beginOp("store content", curWs, varname);
+                lane.writeCount(6);
+                lane.writeName("store content");
+                lane.writeName(curWs);
+                lane.writeName(varname);
+                lane.writeNumber(desc);
+                lane.writeArg(digest);
+                lane.writeArg(xVal);
+                lane.sendAll();
+
+                status = lane.recvStatus();
+                lane.endOp(status == 0);
+            }
+            done = true;
+        } finally {
+            release(lane, done);
+        }
+        if (status != 0)
+            throw new NwsOperationException("store failed");
+        if (lanes != null)
+            lanes.noteSize(varname, xVal.length);
+        contentCache.put(digest, xVal);
+        if (monitor != null)
+            monitor.stored(varname, xVal.length);
+    }
+
+    /**
+     * Returns true if retrievals should ask for digest replies.
+     *
+     * @return true if digest replies can be handled
+     */
+    private boolean acceptDigests() {
+        return contentCache != null && server.supports("fetch content");
+    }
+
+    /**
+     * Returns the content for a digest reply, from the content cache
+     * if possible, and otherwise from the server.  This must be called
+     * within the operation that got the reply, on the same connection,
+     * since the server only keeps the content it referred to until the
+     * next request on that connection.
+     *
+     * @param lane connection the digest reply came on
+     * @param digest content digest
+     * @return content, or null if the server doesn't have it
+     * @exception NwsException
+     */
+    private byte[] resolveContent(NwsServer lane, byte[] digest) throws NwsException {
+        byte[] xVal = contentCache.get(digest);
+        if (xVal != null)
+            return xVal;
+
+        lane.writeCount(2);
+        lane.writeName("fetch content");
+        lane.writeArg(digest);
+        lane.sendAll();
+
+        int status = lane.recvStatus();
+        xVal = lane.recvValue();
+        if (status != 0)
+            return null;
+        contentCache.put(digest, xVal);
+        return xVal;
     }
 
     /**
@@ -715,7 +1722,7 @@ public class NetWorkSpace {
      * @return serialized objects in a byte array.
      * @exception NwsException
      */
-    private byte[] serialize(Object obj) throws NwsException {
+    static byte[] serialize(Object obj) throws NwsException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
         try {
@@ -737,7 +1744,7 @@ public class NetWorkSpace {
      * @return deserialized object.
      * @exception NwsException
      */
-    private Object deserialize(byte[] ba) throws NwsException {
+    static Object deserialize(byte[] ba) throws NwsException {
         ByteArrayInputStream bais = new ByteArrayInputStream(ba);
         Object obj = null;
 
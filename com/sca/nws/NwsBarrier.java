@@ -0,0 +1,105 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * A cyclic barrier shared through a workspace.  The state of the
+ * barrier is the single value of a fifo variable, holding the current
+ * generation and the number of parties that have arrived, and it is
+ * fetched and stored back by each arriving party.  Parties then wait
+ * with a single blocking <code>find</code> on the release variable of
+ * their generation, which the last party to arrive stores.  Passing
+ * the barrier costs each party three operations, however many parties
+ * there are.
+ * <p>
+ * One process should create the barrier with the number of parties,
+ * and the others attach to it by name.
+ */
+public class NwsBarrier {
+    private final NetWorkSpace ws;
+    private final String name;
+    private final String stateVar;
+
+    /**
+     * Attaches to the barrier with the specified name.
+     *
+     * @param ws workspace holding the barrier
+     * @param name name of the barrier
+     */
+    public NwsBarrier(NetWorkSpace ws, String name) {
+        this.ws = ws;
+        this.name = name;
+        this.stateVar = name + ".state";
+    }
+
+    /**
+     * Creates a barrier for the specified number of parties.
+     *
+     * @param ws workspace holding the barrier
+     * @param name name of the barrier
+     * @param parties number of parties that must arrive to pass the barrier
+     * @exception NwsException
+     */
+    public NwsBarrier(NetWorkSpace ws, String name, int parties) throws NwsException {
+        this(ws, name);
+        if (parties < 1)
+            throw new IllegalArgumentException("number of parties must be positive");
+        ws.declare(stateVar, NetWorkSpace.FIFO);
+        ws.store(stateVar, new int[] {0, 0, parties});
+    }
+
+    /**
+     * Waits until all the parties have arrived.
+     *
+     * @return arrival index, where <code>getParties() - 1</code> is the
+     *         first to arrive, and 0 the last
+     * @exception NwsException
+     */
+    public int await() throws NwsException {
+        // generation, arrived, parties
+        int[] state = (int[]) ws.fetch(stateVar);
+        int generation = state[0];
+        int arrived = state[1] + 1;
+        int parties = state[2];
+
+        if (arrived == parties) {
+            ws.store(releaseVar(generation), Boolean.TRUE);
+            ws.store(stateVar, new int[] {generation + 1, 0, parties});
+            // every party has left the previous generation to get here
+            if (generation > 0)
+                ws.deleteVar(releaseVar(generation - 1));
+        } else {
+            ws.store(stateVar, new int[] {generation, arrived, parties});
+            ws.find(releaseVar(generation));
+        }
+        return parties - arrived;
+    }
+
+    /**
+     * Returns the number of parties.
+     *
+     * @return number of parties
+     * @exception NwsException
+     */
+    public int getParties() throws NwsException {
+        return ((int[]) ws.find(stateVar))[2];
+    }
+
+    private String releaseVar(int generation) {
+        return name + ".release." + generation;
+    }
+}
@@ -0,0 +1,150 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * An operation in progress, as seen by an NwsInterceptor.  A connection
+ * reuses the same object for all its operations, so it's only valid
+ * during the callbacks, and interceptors should copy what they need to
+ * keep.
+ */
+public final class NwsCall {
+    String op;
+    String wsname;
+    String varname;
+    long startNanos;
+    long elapsedNanos;
+    long bytesSent;
+    long bytesReceived;
+    Object attachment;
+
+    NwsCall() {
+    }
+
+    /**
+     * Starts describing a new operation.
+     */
+    void begin(String op, String wsname, String varname, long startNanos) {
+        this.op = op;
+        this.wsname = wsname;
+        this.varname = varname;
+        this.startNanos = startNanos;
+        elapsedNanos = 0;
+        bytesSent = 0;
+        bytesReceived = 0;
+        attachment = null;
+    }
+
+    /**
+     * Returns the name of the operation, as sent to the server.
+     *
+     * @return operation name
+     */
+    public String getOperation() {
+        return op;
+    }
+
+    /**
+     * Returns the name of the workspace the operation is on.
+     *
+     * @return workspace name, or <code>null</code>
+     */
+    public String getWorkspace() {
+        return wsname;
+    }
+
+    /**
+     * Returns the name of the variable the operation is on.
+     *
+     * @return variable name, or <code>null</code>
+     */
+    public String getVariable() {
+        return varname;
+    }
+
+    /**
+     * Returns the time the operation started, from
+     * <code>System.nanoTime</code>.
+     *
+     * @return start time in nanoseconds
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Returns the time from sending the request until the reply was
+     * read.  This is zero in <code>before</code>.
+     *
+     * @return latency in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Returns the size of the request.  This is zero in
+     * <code>before</code>.
+     *
+     * @return bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the size of the reply.  This is zero in
+     * <code>before</code>.
+     *
+     * @return bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the object attached by an interceptor.
+     *
+     * @return attachment, or <code>null</code>
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * Attaches an object to the operation, such as a tracing span, so
+     * that an interceptor can find it again in <code>after</code> or
+     * <code>error</code>.  Interceptors that share a connection must
+     * agree on its use.
+     *
+     * @param attachment object to be attached
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object
+     */
+    public String toString() {
+        return "NwsCall " + op + " ws=" + wsname + " var=" + varname +
+               " sent=" + bytesSent + " received=" + bytesReceived +
+               " elapsed=" + elapsedNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,254 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the exact bytes exchanged by connections to NWS servers, with
+ * timestamps, in a capture file that <code>NwsReplay</code> can play
+ * back.  Connections are recorded if this is given to them in the
+ * <code>capture</code> field of NwsOptions, and any number of them can
+ * share a capture file, each as its own session.
+ * <p>
+ * A capture file starts with a magic string, followed by records made
+ * of a type byte, and then as unsigned varints, the session number, the
+ * time in nanoseconds since the capture was created, and for data
+ * records, the length of the data, which follows.  Data is recorded as
+ * it goes through the socket, so each request is normally a single
+ * record.
+ */
+public class NwsCapture {
+    private final static byte[] MAGIC = "NWSCAP1\n".getBytes();
+
+    /** Record type of the start of a session. */
+    final static int OPEN = 0;
+    /** Record type of data sent to the server. */
+    final static int SENT = 1;
+    /** Record type of data received from the server. */
+    final static int RECEIVED = 2;
+    /** Record type of the end of a session. */
+    final static int CLOSE = 3;
+
+    private final DataOutputStream out;
+    private final long origin = System.nanoTime();
+    private int sessions = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a capture file, replacing any existing file.
+     *
+     * @param file name of the capture file
+     * @exception IOException
+     */
+    public NwsCapture(String file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        out.write(MAGIC);
+    }
+
+    /**
+     * Flushes and closes the capture file.  Data exchanged by the
+     * connections after this isn't recorded.
+     *
+     * @exception IOException
+     */
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        out.close();
+    }
+
+    /**
+     * Starts recording a new session.
+     *
+     * @return session number
+     */
+    synchronized int open() {
+        int session = ++sessions;
+        write(OPEN, session, null, 0, 0);
+        return session;
+    }
+
+    /**
+     * Records the end of a session.
+     *
+     * @param session session number
+     */
+    synchronized void close(int session) {
+        write(CLOSE, session, null, 0, 0);
+    }
+
+    /**
+     * Records data sent or received.
+     */
+    synchronized void record(int type, int session, byte[] b, int off, int len) {
+        write(type, session, b, off, len);
+    }
+
+    private void write(int type, int session, byte[] b, int off, int len) {
+        if (closed)
+            return;
+        try {
+            out.write(type);
+            writeVarint(session);
+            writeVarint(System.nanoTime() - origin);
+            if (type == SENT || type == RECEIVED) {
+                writeVarint(len);
+                out.write(b, off, len);
+            }
+        } catch (IOException e) {
+            // a failing capture must not break the connection
+            closed = true;
+        }
+    }
+
+    private void writeVarint(long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            out.write((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    /**
+     * Returns a stream that records what is written to a socket.
+     */
+    OutputStream wrap(final int session, OutputStream os) {
+        return new FilterOutputStream(os) {
+            public void write(int b) throws IOException {
+                out.write(b);
+                record(SENT, session, new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                record(SENT, session, b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that records what is read from a socket.
+     */
+    InputStream wrap(final int session, InputStream is) {
+        return new FilterInputStream(is) {
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0)
+                    record(RECEIVED, session, new byte[] {(byte) b}, 0, 1);
+                return b;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                if (n > 0)
+                    record(RECEIVED, session, b, off, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * A record of a capture file.
+     */
+    static final class Record {
+        final int type;
+        final long nanos;
+        final byte[] data;
+
+        Record(int type, long nanos, byte[] data) {
+            this.type = type;
+            this.nanos = nanos;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads a whole capture file.
+     *
+     * @param file name of the capture file
+     * @return the records of each session, by session number
+     * @exception IOException
+     */
+    static Map<Integer, List<Record>> read(String file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!new String(magic).equals(new String(MAGIC)))
+                throw new IOException(file + " is not an NWS capture file");
+
+            Map<Integer, List<Record>> sessions = new LinkedHashMap<Integer, List<Record>>();
+            int type;
+            while ((type = in.read()) != -1) {
+                Integer session;
+                long nanos;
+                byte[] data = null;
+                try {
+                    session = Integer.valueOf((int) readVarint(in));
+                    nanos = readVarint(in);
+                    if (type == SENT || type == RECEIVED) {
+                        data = new byte[(int) readVarint(in)];
+                        in.readFully(data);
+                    }
+                } catch (EOFException e) {
+                    // the recording process died, keep what was recorded
+                    break;
+                }
+                List<Record> records = sessions.get(session);
+                if (records == null) {
+                    records = new ArrayList<Record>();
+                    sessions.put(session, records);
+                }
+                records.add(new Record(type, nanos, data));
+            }
+            return sessions;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1)
+                throw new EOFException();
+            n |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return n;
+        }
+        throw new IOException("malformed capture file");
+    }
+}
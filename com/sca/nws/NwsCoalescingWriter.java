@@ -0,0 +1,199 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces updates of single mode variables, such as status and
+ * progress variables, where only the latest value matters.  Values
+ * passed to <code>set</code> are kept until the next flush, replacing
+ * any value not yet flushed for the same variable, so intermediate
+ * values are never serialized or sent.  Pending values are flushed
+ * together, with one round trip, at a fixed interval and by
+ * <code>flush</code>.
+ * <p>
+ * The writer has its own connection and flushing thread, and may be
+ * used by any number of threads.  Each variable is declared single
+ * mode the first time it's flushed.  Values are serialized when they
+ * are flushed, so they must not be modified after being set.
+ */
+public class NwsCoalescingWriter {
+    private final NetWorkSpace ws;
+    private final long intervalMillis;
+    private final Thread flusher;
+    private final HashSet<String> declared = new HashSet<String>();
+    private LinkedHashMap<String, Object> pending = new LinkedHashMap<String, Object>();
+    private long coalesced = 0;
+    private boolean closed = false;
+    private NwsException failure = null;
+
+    /**
+     * Creates a writer for the specified workspace.
+     *
+     * @param wsName workspace name
+     * @param opts options for the writer's connection
+     * @param interval interval between flushes
+     * @param unit unit of the interval
+     * @exception NwsException
+     */
+    public NwsCoalescingWriter(String wsName, NwsOptions opts, long interval, TimeUnit unit)
+                throws NwsException {
+        NwsOptions o = opts.copy();
+        o.useUse = true;
+        o.server = null;
+        o.space = null;
+        ws = new NetWorkSpace(wsName, o);
+        intervalMillis = Math.max(1, unit.toMillis(interval));
+
+        flusher = new Thread("NwsCoalescingWriter flusher") {
+            public void run() {
+                flushPeriodically();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Sets the value of a single mode variable as of the next flush.
+     *
+     * @param varname name of the variable
+     * @param value value to be stored
+     * @exception NwsException if an earlier flush failed, or the
+     *            writer is closed
+     */
+    public synchronized void set(String varname, Object value) throws NwsException {
+        if (value == null)
+            throw new IllegalArgumentException("null value is not supported");
+        checkState();
+        if (pending.put(varname, value) != null)
+            coalesced++;
+        else if (pending.size() == 1)
+            notifyAll();
+    }
+
+    /**
+     * Returns the number of values that were replaced before being
+     * flushed.
+     *
+     * @return number of dropped values
+     */
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Stores all pending values now.
+     *
+     * @exception NwsException
+     */
+    public void flush() throws NwsException {
+        // flushes go one at a time, so values are stored in the order set
+        synchronized (ws) {
+            LinkedHashMap<String, Object> batch;
+            synchronized (this) {
+                checkFailure();
+                if (pending.isEmpty())
+                    return;
+                batch = pending;
+                pending = new LinkedHashMap<String, Object>();
+            }
+
+            try {
+                for (String varname: batch.keySet()) {
+                    if (!declared.contains(varname)) {
+                        ws.declare(varname, NetWorkSpace.SINGLE);
+                        declared.add(varname);
+                    }
+                }
+
+                ArrayList<StoreRequest> requests = new ArrayList<StoreRequest>(batch.size());
+                for (Map.Entry<String, Object> e: batch.entrySet())
+                    requests.add(ws.prepareStore(e.getKey(), e.getValue()));
+                ws.storeAll(requests);
+                for (StoreRequest r: requests)
+                    if (r.status != 0)
+                        throw new NwsOperationException("store of " + r.varname + " failed");
+            } catch (NwsException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending values and closes the writer's connection.
+     *
+     * @exception NwsException
+     */
+    public void close() throws NwsException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+        flusher.interrupt();
+        try {
+            flush();
+        } finally {
+            ws.close();
+        }
+    }
+
+    private void flushPeriodically() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending.isEmpty() && !closed)
+                        wait();
+                    if (closed)
+                        return;
+                }
+                Thread.sleep(intervalMillis);
+                flush();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (NwsException e) {
+            // kept, and reported by the next call
+        } catch (Throwable t) {
+            // kept too, or values set from now on would silently never be stored
+            synchronized (this) {
+                failure = new NwsOperationException("flusher failed", t);
+            }
+        }
+    }
+
+    private void checkState() throws NwsException {
+        if (closed)
+            throw new NwsOperationException("writer is closed");
+        checkFailure();
+    }
+
+    private void checkFailure() throws NwsException {
+        if (failure != null)
+            throw new NwsOperationException("flush failed", failure);
+    }
+}
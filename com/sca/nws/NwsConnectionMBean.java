@@ -0,0 +1,103 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * Management interface of a connection to an NWS server, registered
+ * as <code>com.sca.nws:type=Connection,id=<i>n</i></code> when the
+ * <code>jmx</code> option is set.
+ */
+public interface NwsConnectionMBean {
+    /**
+     * Returns the host name of the server.
+     *
+     * @return host name
+     */
+    String getHost();
+
+    /**
+     * Returns the port number of the server.
+     *
+     * @return port number
+     */
+    int getPort();
+
+    /**
+     * Returns true if the binary protocol is in use.
+     *
+     * @return true if the binary protocol is in use
+     */
+    boolean isBinary();
+
+    /**
+     * Returns the number of open connections in this JVM, whether or
+     * not they have MBeans.
+     *
+     * @return number of open connections
+     */
+    int getOpenConnections();
+
+    /**
+     * Returns the number of requests waiting for a reply, which is
+     * zero or one.
+     *
+     * @return number of requests in flight
+     */
+    int getInFlightRequests();
+
+    /**
+     * Returns the number of blocking fetch and find operations waiting
+     * for a value, which is zero or one.
+     *
+     * @return number of blocked waiters
+     */
+    int getBlockedWaiters();
+
+    /**
+     * Returns the number of bytes sent to the server.
+     *
+     * @return bytes sent
+     */
+    long getBytesSent();
+
+    /**
+     * Returns the number of bytes received from the server.
+     *
+     * @return bytes received
+     */
+    long getBytesReceived();
+
+    /**
+     * Returns a summary of the statistics of each operation type.
+     *
+     * @return one line per operation type
+     */
+    String[] getOperations();
+
+    /**
+     * Sets the operation statistics back to zero.  Connections that
+     * share their statistics are all affected.
+     */
+    void resetCounters();
+
+    /**
+     * Describes the operation in progress, if it's waiting for a value.
+     *
+     * @return description, or an empty string
+     */
+    String dumpWaiters();
+}
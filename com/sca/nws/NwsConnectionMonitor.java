@@ -0,0 +1,137 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The MBean of a connection to an NWS server.  This also registers the
+ * MBeans of workspaces.
+ */
+class NwsConnectionMonitor implements NwsConnectionMBean {
+    private final static String DOMAIN = "com.sca.nws";
+    private final static AtomicInteger nextId = new AtomicInteger();
+
+    private final NwsServer server;
+
+    NwsConnectionMonitor(NwsServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers the MBean of a connection with the platform MBean server.
+     *
+     * @param server connection
+     * @return name of the MBean
+     * @exception NwsServerException
+     */
+    static ObjectName register(NwsServer server) throws NwsServerException {
+        return register(new NwsConnectionMonitor(server), NwsConnectionMBean.class,
+                "type=Connection");
+    }
+
+    /**
+     * Registers an MBean with the platform MBean server, under a name
+     * made unique by an id.
+     *
+     * @param impl MBean
+     * @param iface management interface
+     * @param properties key properties of the name, other than the id
+     * @return name of the MBean
+     * @exception NwsServerException
+     */
+    static <T> ObjectName register(T impl, Class<T> iface, String properties)
+            throws NwsServerException {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties +
+                    ",id=" + nextId.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(impl, iface), name);
+            return name;
+        } catch (JMException e) {
+            throw new NwsServerException("unable to register MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters an MBean, if it's still registered.
+     *
+     * @param name name of the MBean
+     */
+    static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // someone else has unregistered it
+        }
+    }
+
+    public String getHost() {
+        return server.getHost();
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    public boolean isBinary() {
+        return server.isBinary();
+    }
+
+    public int getOpenConnections() {
+        return NwsServer.getOpenConnections();
+    }
+
+    public int getInFlightRequests() {
+        return server.describePending(false) == null ? 0 : 1;
+    }
+
+    public int getBlockedWaiters() {
+        return server.describePending(true) == null ? 0 : 1;
+    }
+
+    public long getBytesSent() {
+        return server.getBytesSent();
+    }
+
+    public long getBytesReceived() {
+        return server.getBytesReceived();
+    }
+
+    public String[] getOperations() {
+        Map<String, NwsStats.Snapshot> ops = server.getStats().snapshotOperations();
+        String[] lines = new String[ops.size()];
+        int i = 0;
+        for (NwsStats.Snapshot s: ops.values())
+            lines[i++] = s.toString();
+        return lines;
+    }
+
+    public void resetCounters() {
+        server.getStats().reset();
+    }
+
+    public String dumpWaiters() {
+        String pending = server.describePending(true);
+        return pending == null ? "" : pending;
+    }
+}
@@ -0,0 +1,99 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * A count-down latch shared through a workspace.  The count is the
+ * single value of a fifo variable, which is fetched and stored back by
+ * <code>countDown</code>, so that the fetch serializes concurrent
+ * updates.  The process that brings the count to zero stores a value
+ * in the gate variable, which releases everyone waiting in
+ * <code>await</code> with a single blocking <code>find</code>.
+ * <p>
+ * One process should create the latch with its count, and the others
+ * attach to it by name.
+ */
+public class NwsCountDownLatch {
+    private final NetWorkSpace ws;
+    private final String countVar;
+    private final String gateVar;
+
+    /**
+     * Attaches to the latch with the specified name.
+     *
+     * @param ws workspace holding the latch
+     * @param name name of the latch
+     */
+    public NwsCountDownLatch(NetWorkSpace ws, String name) {
+        this.ws = ws;
+        this.countVar = name + ".count";
+        this.gateVar = name + ".gate";
+    }
+
+    /**
+     * Creates a latch with the specified count.
+     *
+     * @param ws workspace holding the latch
+     * @param name name of the latch
+     * @param count number of <code>countDown</code> calls needed to open it
+     * @exception NwsException
+     */
+    public NwsCountDownLatch(NetWorkSpace ws, String name, int count) throws NwsException {
+        this(ws, name);
+        if (count < 0)
+            throw new IllegalArgumentException("count must not be negative");
+        ws.declare(gateVar, NetWorkSpace.SINGLE);
+        ws.declare(countVar, NetWorkSpace.FIFO);
+        if (count == 0)
+            ws.store(gateVar, Boolean.TRUE);
+        ws.store(countVar, count);
+    }
+
+    /**
+     * Decrements the count, opening the latch when it reaches zero.
+     *
+     * @exception NwsException
+     */
+    public void countDown() throws NwsException {
+        int count = (Integer) ws.fetch(countVar);
+        if (count > 0) {
+            count--;
+            if (count == 0)
+                ws.store(gateVar, Boolean.TRUE);
+        }
+        ws.store(countVar, count);
+    }
+
+    /**
+     * Waits until the latch is open.
+     *
+     * @exception NwsException
+     */
+    public void await() throws NwsException {
+        ws.find(gateVar);
+    }
+
+    /**
+     * Returns the current count.
+     *
+     * @return count
+     * @exception NwsException
+     */
+    public int getCount() throws NwsException {
+        return (Integer) ws.find(countVar);
+    }
+}
@@ -0,0 +1,95 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * Hooks for Java Flight Recorder events.  This class does nothing, so
+ * that the client still runs on Java 6; on Java 11 and later, the
+ * <code>jfr</code> build target adds <code>NwsFlightRecorder</code>,
+ * which overrides these hooks to emit events.  The begin methods return
+ * null unless their event is enabled in a running recording, and
+ * nothing else is done for events that aren't begun.
+ */
+class NwsEvents {
+    /** The hooks in use, which emit events if that's possible. */
+    static final NwsEvents INSTANCE = load();
+
+    private static NwsEvents load() {
+        try {
+            Class<?> c = Class.forName("com.sca.nws.NwsFlightRecorder");
+            return (NwsEvents) c.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            // not built, or it couldn't be created
+            return new NwsEvents();
+        } catch (LinkageError e) {
+            // no jdk.jfr module
+            return new NwsEvents();
+        }
+    }
+
+    /**
+     * Starts a round trip event, if it's enabled.
+     *
+     * @return event, or null
+     */
+    Object beginRoundTrip() {
+        return null;
+    }
+
+    /**
+     * Commits a round trip event.
+     *
+     * @param event event returned by <code>beginRoundTrip</code>
+     * @param op operation name
+     * @param wsname workspace name, or null
+     * @param varname variable name, or null
+     * @param sent bytes sent
+     * @param received bytes received
+     * @param waitNanos time from sending the request until the reply
+     *        arrived, which is the time spent on the server, including
+     *        any time blocked there, plus the network latency
+     * @param networkNanos time spent writing the request and reading
+     *        the reply
+     * @param ok false if the operation failed
+     */
+    void commitRoundTrip(Object event, String op, String wsname, String varname,
+                         long sent, long received, long waitNanos, long networkNanos,
+                         boolean ok) {
+    }
+
+    /**
+     * Starts a serialization event, if it's enabled.
+     *
+     * @return event, or null
+     */
+    Object beginCodec() {
+        return null;
+    }
+
+    /**
+     * Commits a serialization event.
+     *
+     * @param event event returned by <code>beginCodec</code>
+     * @param wsname workspace name
+     * @param varname variable name
+     * @param serialize true for serialization, false for deserialization
+     * @param bytes size of the serialized value
+     */
+    void commitCodec(Object event, String wsname, String varname, boolean serialize,
+                     int bytes) {
+    }
+}
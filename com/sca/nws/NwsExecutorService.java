@@ -0,0 +1,556 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An <code>ExecutorService</code> that runs tasks on remote worker
+ * processes.  Submitted tasks, which must be <code>Serializable</code>,
+ * are stored in the <code>name.tasks</code> variable of a workspace,
+ * where they are fetched by <code>NwsExecutorWorker</code> processes.
+ * The workers store the results back in a variable private to this
+ * executor, and they are matched to their futures by task id.
+ * <p>
+ * Tasks submitted while earlier ones are still being stored are
+ * batched into a single value, as are the results of a batch, so the
+ * number of round trips falls as the load rises.  The number of tasks
+ * in flight is bounded, and <code>submit</code> blocks once the limit
+ * is reached, so that the memory used by pending futures stays bounded
+ * however many tasks are submitted.
+ * <p>
+ * The executor uses two connections of its own, one for storing tasks
+ * and one for collecting results.
+ */
+public class NwsExecutorService extends AbstractExecutorService {
+    /** Default maximum number of tasks in flight. */
+    public final static int DEFAULT_MAX_IN_FLIGHT = 10000;
+    /** Default maximum number of tasks stored in a single value. */
+    public final static int DEFAULT_BATCH_SIZE = 100;
+
+    private final static Object SHUTDOWN = new Object();
+
+    private final NetWorkSpace dispatchWs;
+    private final NetWorkSpace collectWs;
+    private final String taskVar;
+    private final String resultVar;
+    private final int batchSize;
+    private final Semaphore inFlight;
+    private final AtomicLong nextId = new AtomicLong();
+    private final ConcurrentHashMap<Long, RemoteTask<?>> pending =
+            new ConcurrentHashMap<Long, RemoteTask<?>>();
+    private final LinkedBlockingQueue<Object> outbound = new LinkedBlockingQueue<Object>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean shutdown = false;
+    private volatile boolean dispatcherDone = false;
+
+    /**
+     * A task as stored in the task variable.
+     */
+    static final class Task implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long id;
+        final String resultVar;
+        final byte[] callable;
+
+        Task(long id, String resultVar, byte[] callable) {
+            this.id = id;
+            this.resultVar = resultVar;
+            this.callable = callable;
+        }
+    }
+
+    /**
+     * The outcome of a task, as stored in the result variable.
+     */
+    static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long id;
+        final byte[] value;
+        final Throwable error;
+
+        Result(long id, byte[] value, Throwable error) {
+            this.id = id;
+            this.value = value;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Runs a runnable as a callable.  Unlike the adapter returned by
+     * <code>Executors.callable</code>, it can be sent to the workers,
+     * provided that the runnable and the result can.
+     */
+    private static final class RunnableCallable<T> implements Callable<T>, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Runnable runnable;
+        private final T result;
+
+        RunnableCallable(Runnable runnable, T result) {
+            this.runnable = runnable;
+            this.result = result;
+        }
+
+        public T call() {
+            runnable.run();
+            return result;
+        }
+    }
+
+    /**
+     * Creates an executor that stores its tasks in the specified
+     * workspace, with the default limits.
+     *
+     * @param wsName workspace name
+     * @param opts options for the executor's connections
+     * @param name name of the task farm, shared with the workers
+     * @exception NwsException
+     */
+    public NwsExecutorService(String wsName, NwsOptions opts, String name) throws NwsException {
+        this(wsName, opts, name, DEFAULT_MAX_IN_FLIGHT, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates an executor that stores its tasks in the specified workspace.
+     *
+     * @param wsName workspace name
+     * @param opts options for the executor's connections
+     * @param name name of the task farm, shared with the workers
+     * @param maxInFlight maximum number of tasks submitted but not completed
+     * @param batchSize maximum number of tasks stored in a single value
+     * @exception NwsException
+     */
+    public NwsExecutorService(String wsName, NwsOptions opts, String name,
+                              int maxInFlight, int batchSize) throws NwsException {
+        this.taskVar = name + ".tasks";
+        this.resultVar = name + ".results." + Long.toHexString(new Random().nextLong());
+        this.batchSize = batchSize;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        NwsOptions o = opts.copy();
+        o.useUse = true;
+        o.server = null;
+        o.space = null;
+        dispatchWs = new NetWorkSpace(wsName, o);
+        try {
+            o.space = null;
+            collectWs = new NetWorkSpace(wsName, o);
+        } catch (NwsException e) {
+            try {
+                dispatchWs.close();
+            } catch (NwsException ignore) {
+            }
+            throw e;
+        }
+
+        Thread dispatcher = new Thread("NwsExecutorService dispatcher") {
+            public void run() {
+                dispatch();
+            }
+        };
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        Thread collector = new Thread("NwsExecutorService collector") {
+            public void run() {
+                collect();
+            }
+        };
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    /**
+     * Returns the name of the variable that the workers fetch tasks from.
+     *
+     * @return name of the task variable
+     */
+    public String getTaskVar() {
+        return taskVar;
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new RemoteTask<T>(callable);
+    }
+
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new RemoteTask<T>(new RunnableCallable<T>(runnable, value));
+    }
+
+    /**
+     * Sends a task to the workers.  Tasks created by <code>submit</code>
+     * are sent as they are, and any other runnable is wrapped, in which
+     * case it must be <code>Serializable</code>.
+     *
+     * @param command task to be executed remotely
+     */
+    public void execute(Runnable command) {
+        RemoteTask<?> task;
+        if (command instanceof RemoteTask)
+            task = (RemoteTask<?>) command;
+        else
+            task = new RemoteTask<Object>(new RunnableCallable<Object>(command, null));
+
+        if (shutdown)
+            throw new RejectedExecutionException("executor has been shut down");
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting to submit", e);
+        }
+
+        // shutdown() may have run while we waited, and the task mustn't
+        // be queued behind SHUTDOWN, where the dispatcher never sees it
+        synchronized (this) {
+            if (shutdown) {
+                inFlight.release();
+                throw new RejectedExecutionException("executor has been shut down");
+            }
+            pending.put(task.id, task);
+            outbound.add(task);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (!shutdown) {
+            shutdown = true;
+            outbound.add(SHUTDOWN);
+        }
+    }
+
+    /**
+     * Shuts down the executor and cancels all the tasks in flight.
+     * Tasks that were already stored may still be run by the workers.
+     *
+     * @return tasks that were never stored
+     */
+    public List<Runnable> shutdownNow() {
+        // SHUTDOWN is only queued once nothing is pending, or the
+        // dispatcher could wake the collector too early, and it would
+        // then wait for results that never come
+        synchronized (this) {
+            shutdown = true;
+        }
+        ArrayList<Runnable> unsent = new ArrayList<Runnable>();
+        ArrayList<Object> queued = new ArrayList<Object>();
+        outbound.drainTo(queued);
+        for (Object o: queued) {
+            if (o instanceof RemoteTask) {
+                unsent.add((RemoteTask<?>) o);
+                finish((RemoteTask<?>) o);
+            }
+        }
+        for (RemoteTask<?> task: pending.values())
+            task.cancel(false);
+        outbound.add(SHUTDOWN);
+        return unsent;
+    }
+
+    /**
+     * Sends all the tasks to the workers, and returns the result of the
+     * first to complete successfully, cancelling the others.  This
+     * replaces the inherited version, whose completion service hands
+     * <code>execute</code> wrappers that can't be sent to the workers.
+     */
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks)
+            throws InterruptedException, ExecutionException {
+        try {
+            return doInvokeAny(tasks, false, 0);
+        } catch (TimeoutException cannotHappen) {
+            return null;
+        }
+    }
+
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        return doInvokeAny(tasks, true, unit.toNanos(timeout));
+    }
+
+    private <T> T doInvokeAny(Collection<? extends Callable<T>> tasks, boolean timed, long nanos)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (tasks.isEmpty())
+            throw new IllegalArgumentException("no tasks");
+        long deadline = System.nanoTime() + nanos;
+        LinkedBlockingQueue<RemoteTask<T>> completed = new LinkedBlockingQueue<RemoteTask<T>>();
+        ArrayList<RemoteTask<T>> futures = new ArrayList<RemoteTask<T>>(tasks.size());
+        try {
+            for (Callable<T> c: tasks) {
+                RemoteTask<T> task = new RemoteTask<T>(c, completed);
+                futures.add(task);
+                execute(task);
+            }
+
+            ExecutionException failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                RemoteTask<T> task;
+                if (timed) {
+                    task = completed.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (task == null)
+                        throw new TimeoutException();
+                } else {
+                    task = completed.take();
+                }
+                try {
+                    return task.get();
+                } catch (ExecutionException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = new ExecutionException(e);
+                }
+            }
+            throw failure;
+        } finally {
+            for (RemoteTask<T> task: futures)
+                task.cancel(false);
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    /**
+     * Stores queued tasks, batching whatever has accumulated while
+     * the previous batch was being stored.
+     */
+    private void dispatch() {
+        ArrayList<Object> queued = new ArrayList<Object>();
+        ArrayList<Task> batch = new ArrayList<Task>();
+        boolean done = false;
+
+        try {
+            while (!done) {
+                queued.clear();
+                queued.add(outbound.take());
+                outbound.drainTo(queued, batchSize - 1);
+
+                batch.clear();
+                for (Object o: queued) {
+                    if (o == SHUTDOWN) {
+                        done = true;
+                        continue;
+                    }
+                    RemoteTask<?> task = (RemoteTask<?>) o;
+                    if (task.isDone())
+                        continue;
+                    try {
+                        batch.add(new Task(task.id, resultVar,
+                                NetWorkSpace.serialize(task.callable)));
+                    } catch (NwsException e) {
+                        task.fail(e);
+                        finish(task);
+                    }
+                }
+
+                if (batch.size() == 1)
+                    dispatchWs.store(taskVar, batch.get(0));
+                else if (batch.size() > 1)
+                    dispatchWs.store(taskVar, new ArrayList<Task>(batch));
+            }
+
+            // wake up the collector, in case nothing is pending
+            dispatcherDone = true;
+            dispatchWs.store(resultVar, new ArrayList<Result>());
+        } catch (InterruptedException e) {
+            failAll(e);
+        } catch (NwsException e) {
+            failAll(e);
+        } finally {
+            try {
+                dispatchWs.close();
+            } catch (NwsException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Fetches results and completes the corresponding futures.
+     */
+    private void collect() {
+        try {
+            while (!(dispatcherDone && pending.isEmpty())) {
+                Object v = collectWs.fetch(resultVar);
+                if (v instanceof Result) {
+                    complete((Result) v);
+                } else {
+                    for (Object r: (List<?>) v)
+                        complete((Result) r);
+                }
+            }
+            collectWs.deleteVar(resultVar);
+        } catch (NwsException e) {
+            failAll(e);
+        } finally {
+            try {
+                collectWs.close();
+            } catch (NwsException ignore) {
+            }
+            terminated.countDown();
+        }
+    }
+
+    private void complete(Result r) {
+        RemoteTask<?> task = pending.get(r.id);
+        if (task == null)
+            return;
+
+        if (r.error != null) {
+            task.fail(r.error);
+        } else {
+            try {
+                task.succeed(NetWorkSpace.deserialize(r.value));
+            } catch (NwsException e) {
+                task.fail(e);
+            }
+        }
+        finish(task);
+    }
+
+    private void finish(RemoteTask<?> task) {
+        if (pending.remove(task.id) != null)
+            inFlight.release();
+    }
+
+    private void failAll(Throwable t) {
+        for (RemoteTask<?> task: pending.values()) {
+            task.fail(t);
+            finish(task);
+        }
+    }
+
+    /**
+     * The future of a remotely executed task.  It's completed by the
+     * collector thread, rather than by running it, and then added to its
+     * completion queue, if it has one.
+     */
+    private final class RemoteTask<T> implements RunnableFuture<T> {
+        final long id = nextId.incrementAndGet();
+        final Callable<T> callable;
+        private final BlockingQueue<RemoteTask<T>> completions;
+        private boolean done = false;
+        private boolean cancelled = false;
+        private T value;
+        private Throwable error;
+
+        RemoteTask(Callable<T> callable) {
+            this(callable, null);
+        }
+
+        RemoteTask(Callable<T> callable, BlockingQueue<RemoteTask<T>> completions) {
+            this.callable = callable;
+            this.completions = completions;
+        }
+
+        public void run() {
+            execute(this);
+        }
+
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (done)
+                return false;
+            cancelled = true;
+            completed();
+            finish(this);
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            while (!done)
+                wait();
+            return result();
+        }
+
+        public synchronized T get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!done) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return result();
+        }
+
+        private T result() throws ExecutionException {
+            if (cancelled)
+                throw new CancellationException();
+            if (error != null)
+                throw new ExecutionException(error);
+            return value;
+        }
+
+        synchronized void succeed(Object v) {
+            if (done)
+                return;
+            // the worker ran our callable, so the result has its type
+            @SuppressWarnings("unchecked")
+            T t = (T) v;
+            value = t;
+            completed();
+        }
+
+        synchronized void fail(Throwable t) {
+            if (done)
+                return;
+            error = t;
+            completed();
+        }
+
+        private void completed() {
+            done = true;
+            notifyAll();
+            if (completions != null)
+                completions.add(this);
+        }
+    }
+}
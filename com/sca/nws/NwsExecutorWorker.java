@@ -0,0 +1,158 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Worker process for <code>NwsExecutorService</code>.  It fetches tasks
+ * from the task variable, runs them, and stores their results back for
+ * the executor that submitted them.  The results of a batch of tasks
+ * are stored as a single value per executor.  Any number of workers can
+ * serve the same task variable, and the classes of the submitted tasks
+ * must be on their classpath.
+ * <p>
+ * A worker can be started from the command line:
+ * <pre>
+ * java com.sca.nws.NwsExecutorWorker [-h host] [-p port] wsname name
+ * </pre>
+ */
+public class NwsExecutorWorker implements Runnable {
+    private final NetWorkSpace ws;
+    private final String taskVar;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a worker for the task farm with the specified name.
+     *
+     * @param ws workspace holding the task variable
+     * @param name name of the task farm, as given to the executor
+     */
+    public NwsExecutorWorker(NetWorkSpace ws, String name) {
+        this.ws = ws;
+        this.taskVar = name + ".tasks";
+    }
+
+    /**
+     * Asks the worker to stop once it has finished its current batch.
+     * A worker waiting for tasks only notices this when it gets one.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Runs tasks until stopped, or until the connection fails.
+     */
+    public void run() {
+        try {
+            while (!stopped)
+                runBatch(ws.fetch(taskVar));
+        } catch (NwsException e) {
+            if (!stopped)
+                throw new IllegalStateException("worker failed", e);
+        }
+    }
+
+    /**
+     * Runs a batch of tasks, which may also be a single task, and
+     * stores their results.
+     *
+     * @param batch value fetched from the task variable
+     * @exception NwsException
+     */
+    void runBatch(Object batch) throws NwsException {
+        List<?> tasks;
+        if (batch instanceof NwsExecutorService.Task) {
+            ArrayList<Object> single = new ArrayList<Object>(1);
+            single.add(batch);
+            tasks = single;
+        } else {
+            tasks = (List<?>) batch;
+        }
+
+        // a batch holds tasks from a single executor, but don't count on it
+        Map<String, ArrayList<NwsExecutorService.Result>> results =
+                new LinkedHashMap<String, ArrayList<NwsExecutorService.Result>>();
+        for (Object o: tasks) {
+            NwsExecutorService.Task task = (NwsExecutorService.Task) o;
+            ArrayList<NwsExecutorService.Result> list = results.get(task.resultVar);
+            if (list == null) {
+                list = new ArrayList<NwsExecutorService.Result>();
+                results.put(task.resultVar, list);
+            }
+            list.add(execute(task));
+        }
+
+        for (Map.Entry<String, ArrayList<NwsExecutorService.Result>> e: results.entrySet()) {
+            ArrayList<NwsExecutorService.Result> list = e.getValue();
+            if (list.size() == 1)
+                ws.store(e.getKey(), list.get(0));
+            else
+                ws.store(e.getKey(), list);
+        }
+    }
+
+    private static NwsExecutorService.Result execute(NwsExecutorService.Task task) {
+        try {
+            Callable<?> callable = (Callable<?>) NetWorkSpace.deserialize(task.callable);
+            Object value = callable.call();
+            return new NwsExecutorService.Result(task.id, NetWorkSpace.serialize(value), null);
+        } catch (Throwable t) {
+            return new NwsExecutorService.Result(task.id, null, portable(t));
+        }
+    }
+
+    /**
+     * Returns the exception, or a plain copy of its message if it
+     * can't be serialized.
+     */
+    private static Throwable portable(Throwable t) {
+        try {
+            NetWorkSpace.serialize(t);
+            return t;
+        } catch (NwsException e) {
+            return new RuntimeException(t.toString());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        NwsOptions opts = new NwsOptions();
+        opts.useUse = true;
+        int i = 0;
+        while (i < args.length - 2) {
+            if (args[i].equals("-h"))
+                opts.host = args[i + 1];
+            else if (args[i].equals("-p"))
+                opts.port = Integer.parseInt(args[i + 1]);
+            else
+                break;
+            i += 2;
+        }
+        if (args.length - i != 2) {
+            System.err.println("usage: NwsExecutorWorker [-h host] [-p port] wsname name");
+            System.exit(1);
+        }
+
+        NetWorkSpace ws = new NetWorkSpace(args[i], opts);
+        new NwsExecutorWorker(ws, args[i + 1]).run();
+    }
+}
@@ -0,0 +1,229 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Lets many threads store values through a single connection, using
+ * group commit.  Callers serialize their own values and queue them,
+ * and a single I/O thread writes every store queued so far back to
+ * back, with one flush, before reading the replies and handing each
+ * caller its own.  When the writer is idle a store goes out on its
+ * own, so its latency is a single round trip, and under contention
+ * the batches grow by themselves, since stores queue up while the
+ * previous batch is in flight.
+ * <p>
+ * <code>store</code> returns once the server has acknowledged the
+ * value, as with <code>NetWorkSpace.store</code>.  Values are never
+ * stored by digest.
+ */
+public class NwsGroupCommitWriter {
+    /** Default maximum number of stores written with one flush. */
+    public final static int DEFAULT_MAX_BATCH = 256;
+
+    private final static Pending CLOSE = new Pending(null);
+
+    private final NetWorkSpace ws;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private final Thread writer;
+    private boolean closed = false;
+    private volatile NwsException failure = null;
+    private long batches = 0;
+    private long stores = 0;
+
+    private static final class Pending {
+        final StoreRequest request;
+        boolean done = false;
+        Throwable error = null;
+
+        Pending(StoreRequest request) {
+            this.request = request;
+        }
+
+        synchronized void complete(Throwable e) {
+            error = e;
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Creates a writer for the specified workspace, with the default
+     * batch limit.
+     *
+     * @param wsName workspace name
+     * @param opts options for the writer's connection
+     * @exception NwsException
+     */
+    public NwsGroupCommitWriter(String wsName, NwsOptions opts) throws NwsException {
+        this(wsName, opts, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Creates a writer for the specified workspace.
+     *
+     * @param wsName workspace name
+     * @param opts options for the writer's connection
+     * @param maxBatch maximum number of stores written with one flush
+     * @exception NwsException
+     */
+    public NwsGroupCommitWriter(String wsName, NwsOptions opts, int maxBatch)
+                throws NwsException {
+        if (maxBatch < 1)
+            throw new IllegalArgumentException("batch size must be positive");
+        NwsOptions o = opts.copy();
+        o.useUse = true;
+        o.server = null;
+        o.space = null;
+        this.ws = new NetWorkSpace(wsName, o);
+        this.maxBatch = maxBatch;
+
+        writer = new Thread("NwsGroupCommitWriter") {
+            public void run() {
+                writeBatches();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stores a value, returning once the server has acknowledged it.
+     *
+     * @param varname name of the variable
+     * @param value value to be stored
+     * @exception NwsException
+     */
+    public void store(String varname, Object value) throws NwsException {
+        if (failure != null)
+            throw new NwsOperationException("connection failed", failure);
+
+        Pending p = new Pending(ws.prepareStore(varname, value));
+        // nothing may be queued after the close marker
+        synchronized (queue) {
+            if (closed)
+                throw new NwsOperationException("writer is closed");
+            queue.add(p);
+        }
+
+        // the store is on its way, so an interrupt can't cancel it
+        boolean interrupted = false;
+        synchronized (p) {
+            while (!p.done) {
+                try {
+                    p.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (p.error != null)
+            throw new NwsOperationException("store failed", p.error);
+        if (p.request.status != 0)
+            throw new NwsOperationException("store failed");
+    }
+
+    /**
+     * Returns the number of batches written so far.
+     *
+     * @return number of batches
+     */
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Returns the number of stores written so far.
+     *
+     * @return number of stores
+     */
+    public synchronized long getStoreCount() {
+        return stores;
+    }
+
+    /**
+     * Waits for the queued stores to be written, and closes the
+     * writer's connection.
+     *
+     * @exception NwsException
+     */
+    public void close() throws NwsException {
+        synchronized (queue) {
+            if (closed)
+                return;
+            closed = true;
+            queue.add(CLOSE);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ws.close();
+    }
+
+    private void writeBatches() {
+        ArrayList<Pending> batch = new ArrayList<Pending>();
+        ArrayList<StoreRequest> requests = new ArrayList<StoreRequest>();
+        boolean closing = false;
+
+        while (!closing) {
+            batch.clear();
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            if (batch.remove(CLOSE))
+                closing = true;
+            if (batch.isEmpty())
+                continue;
+
+            Throwable error = failure;
+            if (error == null) {
+                requests.clear();
+                for (Pending p: batch)
+                    requests.add(p.request);
+                try {
+                    ws.storeAll(requests);
+                    synchronized (this) {
+                        batches++;
+                        stores += requests.size();
+                    }
+                } catch (NwsException e) {
+                    // the connection is out of step, so everything after fails too
+                    failure = e;
+                    error = e;
+                } catch (Throwable t) {
+                    // the thread has to live on to answer the callers, but
+                    // the connection may have been left mid-batch
+                    failure = new NwsOperationException("writer failed", t);
+                    error = t;
+                }
+            }
+            for (Pending p: batch)
+                p.complete(error);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * Receives a callback before and after every request that a connection
+ * sends to an NWS server, including those sent for NetWorkSpace
+ * operations.  Interceptors are given to the connection in the
+ * <code>interceptors</code> field of NwsOptions, and are called in
+ * order, by the thread performing the operation.
+ * <p>
+ * An exception thrown by <code>before</code> aborts the operation
+ * before anything is sent, and is seen by the caller.  An exception
+ * thrown by <code>after</code> or <code>error</code> is seen by the
+ * caller too, although the operation has already completed, so
+ * interceptors shouldn't normally throw.  The interceptors that follow
+ * are still called, and only the first such exception is rethrown.
+ */
+public interface NwsInterceptor {
+    /**
+     * Called before the request is sent.  Only the operation,
+     * workspace, variable and start time of the call are set.
+     *
+     * @param call operation about to be performed
+     */
+    void before(NwsCall call);
+
+    /**
+     * Called once the reply to a successful request has been read.
+     *
+     * @param call operation performed
+     */
+    void after(NwsCall call);
+
+    /**
+     * Called instead of <code>after</code> if the operation failed,
+     * either because the server reported an error, or because the
+     * connection failed.  For a connection failure, this is only
+     * called when the next operation starts, or when the connection
+     * is closed.
+     *
+     * @param call operation that failed
+     * @param cause exception for a connection failure, or
+     *        <code>null</code> if the server reported an error
+     */
+    void error(NwsCall call, Exception cause);
+}
@@ -0,0 +1,196 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connections of a NetWorkSpace that uses lanes.  The control lane
+ * is the connection the workspace was opened on, and carries everything
+ * that isn't routed elsewhere.  The bulk lane carries values of at
+ * least the bulk threshold, and retrievals from variables whose last
+ * value was that large.  Each blocking fetch or find borrows a wait
+ * lane of its own, which goes back to a pool when it returns.
+ * <p>
+ * The control and bulk lanes are shared by threads one operation at a
+ * time.  The extra lanes only use the workspace, so it still belongs
+ * to the control lane.
+ */
+final class NwsLanes {
+    private final NwsServer control;
+    private final String wsName;
+    private final NwsOptions opts;
+    private final int threshold;
+    private NwsServer bulk = null;
+    private final ArrayList<NwsServer> idle = new ArrayList<NwsServer>();
+    private final ArrayList<NwsServer> waiters = new ArrayList<NwsServer>();
+    // variables whose last value went on the bulk lane
+    private final ConcurrentHashMap<String, Boolean> bulkVars =
+            new ConcurrentHashMap<String, Boolean>();
+    private boolean closed = false;
+
+    NwsLanes(NetWorkSpace space, NwsServer control, String wsName, NwsOptions opts) {
+        this.control = control;
+        this.wsName = wsName;
+        this.opts = opts.copy();
+        this.opts.server = null;
+        this.opts.space = space;
+        this.threshold = opts.bulkThreshold;
+        control.share();
+    }
+
+    /**
+     * Returns the lane for storing a value of the specified size.
+     *
+     * @param varname name of the variable
+     * @param size size of the value in bytes
+     * @return lane
+     * @exception NwsException
+     */
+    NwsServer forStore(String varname, int size) throws NwsException {
+        noteSize(varname, size);
+        return size >= threshold ? bulk() : control;
+    }
+
+    /**
+     * Returns the lane for a retrieval that doesn't wait.
+     *
+     * @param varname name of the variable
+     * @return lane
+     * @exception NwsException
+     */
+    NwsServer forRetrieve(String varname) throws NwsException {
+        return bulkVars.containsKey(varname) ? bulk() : control;
+    }
+
+    /**
+     * Notes the size of a value of a variable, to route its later
+     * retrievals.
+     *
+     * @param varname name of the variable
+     * @param size size of the value in bytes
+     */
+    void noteSize(String varname, int size) {
+        if (size >= threshold)
+            bulkVars.put(varname, Boolean.TRUE);
+        else if (!bulkVars.isEmpty())
+            bulkVars.remove(varname);
+    }
+
+    /**
+     * Returns the bulk lane, opening it the first time.
+     *
+     * @return bulk lane
+     * @exception NwsException
+     */
+    synchronized NwsServer bulk() throws NwsException {
+        if (closed)
+            throw new NwsServerException("NetWorkSpace is closed");
+        if (bulk == null) {
+            bulk = open();
+            bulk.share();
+        }
+        return bulk;
+    }
+
+    /**
+     * Borrows a wait lane, opening a new one if none is idle.
+     *
+     * @return wait lane
+     * @exception NwsException
+     */
+    NwsServer takeWaiter() throws NwsException {
+        synchronized (this) {
+            if (closed)
+                throw new NwsServerException("NetWorkSpace is closed");
+            if (!idle.isEmpty())
+                return idle.remove(idle.size() - 1);
+        }
+        NwsServer lane = open();
+        synchronized (this) {
+            if (!closed) {
+                waiters.add(lane);
+                return lane;
+            }
+        }
+        lane.close();
+        throw new NwsServerException("NetWorkSpace is closed");
+    }
+
+    /**
+     * Returns a wait lane to the pool, or closes it if its operation
+     * failed, since it may be part way through a reply.  The shared
+     * lanes need no handing back.
+     *
+     * @param lane lane
+     * @param ok false if the operation didn't complete
+     */
+    void release(NwsServer lane, boolean ok) {
+        synchronized (this) {
+            if (!waiters.contains(lane))
+                return;
+            if (ok && !closed) {
+                idle.add(lane);
+                return;
+            }
+            waiters.remove(lane);
+        }
+        try {
+            lane.close();
+        } catch (NwsException ignore) {
+        }
+    }
+
+    private NwsServer open() throws NwsException {
+        NwsServer lane = new NwsServer(opts.host, opts.port, opts);
+        try {
+            lane.useWs(wsName, opts);
+        } catch (NwsException e) {
+            try {
+                lane.close();
+            } catch (NwsException ignore) {
+            }
+            throw e;
+        }
+        return lane;
+    }
+
+    /**
+     * Closes the bulk and wait lanes.  Waits still in progress fail.
+     * The control lane is left to the workspace.
+     */
+    void close() {
+        ArrayList<NwsServer> lanes;
+        synchronized (this) {
+            closed = true;
+            lanes = new ArrayList<NwsServer>(waiters);
+            if (bulk != null)
+                lanes.add(bulk);
+            waiters.clear();
+            idle.clear();
+            bulk = null;
+        }
+        for (NwsServer lane: lanes) {
+            try {
+                lane.close();
+            } catch (NwsException ignore) {
+            }
+        }
+    }
+}
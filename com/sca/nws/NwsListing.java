@@ -0,0 +1,232 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.sca.nws;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over the lines of a listing reply, which parses each
+ * line into a record as it's read from the socket, rather than reading
+ * the whole listing into a string first.  Lines whose name doesn't
+ * start with the prefix are skipped without being decoded.
+ * <p>
+ * The connection can't be used for anything else until the listing
+ * has been read, so starting another operation reads and discards the
+ * rest of it.  A connection shared between threads reads its listings
+ * in full at once instead, since the caller may never finish them.
+ */
+abstract class NwsListing<T> implements Iterator<T> {
+    private final NwsServer server;
+    private final byte[] prefix;
+    private final int nameOffset;
+    private int remaining;
+    private final byte[] chunk = new byte[8192];
+    private int chunkPos = 0;
+    private int chunkEnd = 0;
+    // the line being parsed
+    protected byte[] line = new byte[256];
+    protected int length = 0;
+    private T next = null;
+    private boolean done = false;
+
+    /**
+     * Creates a listing of the specified number of bytes, which the
+     * server is about to read.
+     *
+     * @param server connection the listing is read from
+     * @param size length of the listing in bytes
+     * @param prefix name prefix, or null
+     * @param nameOffset offset of the name in each line
+     */
+    NwsListing(NwsServer server, int size, String prefix, int nameOffset) {
+        this.server = server;
+        this.remaining = size;
+        this.prefix = prefix == null || prefix.length() == 0 ? null : prefix.getBytes();
+        this.nameOffset = nameOffset;
+    }
+
+    /**
+     * Parses the current line into a record.
+     *
+     * @return record
+     */
+    abstract T parse();
+
+    /**
+     * Returns true if the listing has more records.
+     *
+     * @return true if the listing has more records
+     */
+    public boolean hasNext() {
+        if (next != null)
+            return true;
+        if (done)
+            return false;
+        try {
+            while (readLine()) {
+                // a line that ends before the prefix does doesn't match
+                if (length > 0 && (prefix == null || length - nameOffset >= prefix.length)) {
+                    next = parse();
+                    return true;
+                }
+            }
+        } catch (NwsException e) {
+            finish(false);
+            throw new IllegalStateException("listing failed", e);
+        }
+        finish(true);
+        return false;
+    }
+
+    /**
+     * Returns the next record.
+     *
+     * @return the next record
+     */
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException("no more records");
+        T t = next;
+        next = null;
+        return t;
+    }
+
+    /**
+     * Throws an UnsupportedOperationException.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Reads and discards the rest of the listing.
+     */
+    void close() {
+        if (done)
+            return;
+        try {
+            chunkPos = chunkEnd = 0;
+            while (remaining > 0)
+                remaining -= server.recvSome(chunk, 0, Math.min(remaining, chunk.length));
+            finish(true);
+        } catch (NwsException e) {
+            finish(false);
+        }
+    }
+
+    private void finish(boolean ok) {
+        done = true;
+        next = null;
+        server.endListing(this, ok);
+    }
+
+    /**
+     * Reads the next line, without its newline, skipping lines whose
+     * names don't start with the prefix.  The last line may still be
+     * one of those, in which case it's returned empty.
+     *
+     * @return false at the end of the listing
+     */
+    private boolean readLine() throws NwsException {
+        length = 0;
+        boolean skipping = false;
+        boolean any = false;
+        while (true) {
+            if (chunkPos == chunkEnd) {
+                if (remaining == 0)
+                    return any;
+                chunkEnd = server.recvSome(chunk, 0, Math.min(remaining, chunk.length));
+                chunkPos = 0;
+                remaining -= chunkEnd;
+            }
+            any = true;
+
+            int start = chunkPos;
+            int end = start;
+            while (end < chunkEnd && chunk[end] != '\n')
+                end++;
+            chunkPos = end < chunkEnd ? end + 1 : end;
+
+            if (!skipping) {
+                append(start, end);
+                if (!matches()) {
+                    skipping = true;
+                    length = 0;
+                }
+            }
+            if (end < chunkEnd) {
+                if (!skipping)
+                    return true;
+                skipping = false;
+                any = false;
+            }
+        }
+    }
+
+    private void append(int start, int end) {
+        int n = end - start;
+        if (length + n > line.length) {
+            byte[] b = new byte[Math.max(line.length * 2, length + n)];
+            System.arraycopy(line, 0, b, 0, length);
+            line = b;
+        }
+        System.arraycopy(chunk, start, line, length, n);
+        length += n;
+    }
+
+    /**
+     * Returns false once enough of the line has been read to know that
+     * its name doesn't start with the prefix.
+     */
+    private boolean matches() {
+        if (prefix == null)
+            return true;
+        int n = Math.min(length - nameOffset, prefix.length);
+        for (int i = 0; i < n; i++) {
+            if (line[nameOffset + i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the tab that ends the field starting at the
+     * specified index, or the length of the line.
+     */
+    protected int fieldEnd(int from) {
+        while (from < length && line[from] != '\t')
+            from++;
+        return from;
+    }
+
+    protected String string(int from, int to) {
+        return new String(line, from, to - from);
+    }
+
+    protected long number(int from, int to) {
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9)
+                throw new IllegalStateException("malformed listing: " + string(from, to));
+            n = n * 10 + d;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,419 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.sca.nws.server.NwsEngine;
+
+/**
+ * Generates load on an NWS server from producer and consumer threads,
+ * each with its own connection, and reports throughput and latency
+ * percentiles at regular intervals and for the whole run.
+ * <p>
+ * Producers store values in the variables round-robin.  With a target
+ * rate, each store has an intended start time on a fixed schedule, and
+ * its latency is measured from that time rather than from when it was
+ * actually sent, so that a stalled server is charged for the stores it
+ * held up and coordinated omission doesn't hide the stall.  Without a
+ * rate the producers run flat out, and latencies are service times.
+ * <p>
+ * Consumers pick an operation according to the mix, and go through the
+ * variables round-robin.  Blocking fetches and finds give up after a
+ * short timeout so that the run can end, and only count when they get a
+ * value.  Values of at least eight bytes carry their intended store
+ * time, so each value fetched also gives a delivery latency, from when
+ * it should have been stored until it was fetched.  That includes any
+ * time spent queued, and is the figure to watch for fifo variables.
+ * <p>
+ * Percentiles are upper bounds of histogram buckets, and so are within
+ * about 25% of the true value.
+ * <pre>
+ * java com.sca.nws.NwsLoadGenerator [-h host] [-p port] [-l] [-n servers]
+ *      [-S host:port,...] [-w wsname]
+ *      [-P producers] [-C consumers] [-v vars] [-m mode] [-s size]
+ *      [-r rate] [-x mix] [-d seconds] [-i seconds]
+ * </pre>
+ * <code>-l</code> starts a server in the same JVM instead of using the
+ * one at host:port, or with <code>-n</code>, several of them.
+ * <code>-S</code> uses a <code>ShardedNetWorkSpace</code> over the
+ * listed servers, as does <code>-n</code> with more than one.  The rate is the total number of stores per second,
+ * and zero means as fast as possible.  The mix gives the relative
+ * weights of the consumer operations, for example
+ * <code>fetch=3,findTry=1</code>; the default is <code>fetch=1</code>,
+ * or <code>find=1</code> for single mode variables.
+ */
+public class NwsLoadGenerator {
+    /** Operations that consumers can perform. */
+    public final static String[] CONSUMER_OPS = {"fetch", "fetchTry", "find", "findTry"};
+
+    private final static long POLL_MILLIS = 100;
+
+    String host = NwsServer.DEFAULT_HOSTNAME;
+    int port = NwsServer.DEFAULT_PORT;
+    boolean local = false;
+    int localServers = 1;
+    String[] servers = null;
+    String wsName = "nwsload";
+    int producers = 1;
+    int consumers = 1;
+    int vars = 1;
+    String mode = NetWorkSpace.FIFO;
+    int size = 1024;
+    double rate = 0;
+    double[] mix = null;
+    int duration = 10;
+    int interval = 1;
+
+    private volatile boolean stopped = false;
+    private volatile NwsStats current = new NwsStats();
+    private final NwsStats total = new NwsStats();
+
+    /**
+     * Records a measurement in the statistics of the current interval
+     * and of the whole run.
+     */
+    private void record(String op, long nanos, long bytes, boolean ok) {
+        current.record(op, null, nanos, bytes, 0, ok);
+        total.record(op, null, nanos, bytes, 0, ok);
+    }
+
+    private NetWorkSpace connect(boolean owner) throws NwsException {
+        NwsOptions opts = new NwsOptions();
+        opts.host = host;
+        opts.port = port;
+        opts.useUse = !owner;
+        if (servers != null)
+            return new ShardedNetWorkSpace(wsName, servers, opts);
+        return new NetWorkSpace(wsName, opts);
+    }
+
+    private static String varName(int i) {
+        return "load." + i;
+    }
+
+    private final class Producer extends Thread {
+        private final int id;
+
+        Producer(int id) {
+            super("producer " + id);
+            this.id = id;
+        }
+
+        public void run() {
+            NetWorkSpace ws = null;
+            try {
+                ws = connect(false);
+                byte[] value = new byte[size];
+                long period = rate > 0 ? (long) (1e9 * producers / rate) : 0;
+                // spread the producers over the period
+                long next = System.nanoTime() + period * id / producers;
+                int v = id;
+                while (!stopped) {
+                    long intended;
+                    if (period > 0) {
+                        intended = next;
+                        next += period;
+                        long wait = intended - System.nanoTime();
+                        if (wait > 0)
+                            LockSupport.parkNanos(wait);
+                        if (stopped)
+                            break;
+                    } else {
+                        intended = System.nanoTime();
+                    }
+                    if (size >= 8)
+                        putLong(value, intended);
+
+                    boolean ok = false;
+                    try {
+                        ws.store(varName(v++ % vars), value);
+                        ok = true;
+                    } finally {
+                        record("store", System.nanoTime() - intended, size, ok);
+                    }
+                }
+            } catch (NwsException e) {
+                if (!stopped)
+                    System.err.println(getName() + " failed: " + e);
+            } finally {
+                close(ws);
+            }
+        }
+    }
+
+    private final class Consumer extends Thread {
+        private final int id;
+
+        Consumer(int id) {
+            super("consumer " + id);
+            this.id = id;
+        }
+
+        public void run() {
+            NetWorkSpace ws = null;
+            try {
+                ws = connect(false);
+                Random random = new Random(id);
+                int v = id;
+                while (!stopped) {
+                    String op = pick(random);
+                    String var = varName(v++ % vars);
+                    long start = System.nanoTime();
+                    Object value = null;
+                    boolean ok = false;
+                    try {
+                        if (op.equals("fetch"))
+                            value = ws.fetch(var, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        else if (op.equals("fetchTry"))
+                            value = ws.fetchTry(var);
+                        else if (op.equals("find"))
+                            value = ws.find(var, POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        else
+                            value = ws.findTry(var);
+                        ok = true;
+                    } finally {
+                        long end = System.nanoTime();
+                        // a blocking retrieval that timed out measures nothing
+                        if (!ok || value != null || op.endsWith("Try")) {
+                            int bytes = value instanceof byte[] ? ((byte[]) value).length : 0;
+                            record(op, end - start, bytes, ok);
+                            if (op.startsWith("fetch") && bytes >= 8)
+                                record("delivery", end - getLong((byte[]) value), 0, true);
+                        }
+                    }
+                }
+            } catch (NwsException e) {
+                if (!stopped)
+                    System.err.println(getName() + " failed: " + e);
+            } finally {
+                close(ws);
+            }
+        }
+    }
+
+    private String pick(Random random) {
+        double sum = 0;
+        for (int i = 0; i < mix.length; i++)
+            sum += mix[i];
+        double r = random.nextDouble() * sum;
+        for (int i = 0; i < mix.length; i++) {
+            r -= mix[i];
+            if (r < 0)
+                return CONSUMER_OPS[i];
+        }
+        return CONSUMER_OPS[0];
+    }
+
+    private static void putLong(byte[] b, long n) {
+        for (int i = 7; i >= 0; i--) {
+            b[i] = (byte) n;
+            n >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] b) {
+        long n = 0;
+        for (int i = 0; i < 8; i++)
+            n = (n << 8) | (b[i] & 0xff);
+        return n;
+    }
+
+    private static void close(NetWorkSpace ws) {
+        if (ws == null)
+            return;
+        try {
+            ws.close();
+        } catch (NwsException e) {
+        }
+    }
+
+    /**
+     * Runs the load, printing a report after each interval and for the
+     * whole run.
+     *
+     * @param out stream for the reports
+     * @return statistics of the whole run
+     * @exception Exception
+     */
+    public NwsStats run(PrintStream out) throws Exception {
+        if (mix == null) {
+            mix = new double[CONSUMER_OPS.length];
+            mix[mode.equals(NetWorkSpace.SINGLE) ? 2 : 0] = 1;
+        }
+
+        ArrayList<NwsEngine> engines = new ArrayList<NwsEngine>();
+        NetWorkSpace owner = null;
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        try {
+            if (local) {
+                for (int i = 0; i < localServers; i++) {
+                    NwsEngine engine = new NwsEngine(0);
+                    engines.add(engine);
+                    engine.start();
+                }
+                host = "localhost";
+                port = engines.get(0).getPort();
+                if (localServers > 1) {
+                    servers = new String[localServers];
+                    for (int i = 0; i < localServers; i++)
+                        servers[i] = host + ":" + engines.get(i).getPort();
+                }
+            }
+
+            // the owner keeps the workspace alive for the whole run
+            owner = connect(true);
+            for (int i = 0; i < vars; i++)
+                owner.declare(varName(i), mode);
+            for (int i = 0; i < producers; i++)
+                threads.add(new Producer(i));
+            for (int i = 0; i < consumers; i++)
+                threads.add(new Consumer(i));
+
+            out.println("# " + producers + " producers, " + consumers + " consumers, " +
+                    (servers != null ? servers.length + " servers, " : "") +
+                    vars + " " + mode + " variables, " + size + " byte values, " +
+                    (rate > 0 ? rate + " stores/s" : "unthrottled") +
+                    "; latencies in microseconds");
+            long start = System.nanoTime();
+            for (Thread t: threads)
+                t.start();
+
+            long end = start + TimeUnit.SECONDS.toNanos(duration);
+            long next = start;
+            while (next < end) {
+                next = Math.min(end, next + TimeUnit.SECONDS.toNanos(interval));
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                NwsStats done = current;
+                current = new NwsStats();
+                report(out, String.format("%7.1fs", (next - start) / 1e9),
+                        done, interval);
+            }
+
+            stopped = true;
+            for (Thread t: threads)
+                t.join();
+            report(out, "  total", total, (System.nanoTime() - start) / 1e9);
+        } finally {
+            stopped = true;
+            if (owner != null)
+                close(owner);
+            for (NwsEngine engine: engines)
+                engine.stop();
+        }
+        return total;
+    }
+
+    private static void report(PrintStream out, String label, NwsStats stats, double secs) {
+        for (Map.Entry<String, NwsStats.Snapshot> e: stats.snapshotOperations().entrySet()) {
+            NwsStats.Snapshot s = e.getValue();
+            out.println(String.format(
+                    "%s %-9s %9d ops %10.0f/s  p50 %8d  p99 %8d  p99.9 %8d  max %8d  errors %d",
+                    label, e.getKey(), s.getCalls(), s.getCalls() / secs,
+                    s.getPercentileNanos(50) / 1000, s.getPercentileNanos(99) / 1000,
+                    s.getPercentileNanos(99.9) / 1000, s.getPercentileNanos(100) / 1000,
+                    s.getErrors()));
+        }
+    }
+
+    private static double[] parseMix(String s) {
+        double[] mix = new double[CONSUMER_OPS.length];
+        String[] parts = s.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].split("=");
+            int op = -1;
+            for (int j = 0; j < CONSUMER_OPS.length; j++)
+                if (CONSUMER_OPS[j].equals(kv[0]))
+                    op = j;
+            if (op < 0 || kv.length != 2)
+                throw new IllegalArgumentException("bad operation mix: " + s);
+            mix[op] = Double.parseDouble(kv[1]);
+        }
+        return mix;
+    }
+
+    private static void usage() {
+        System.err.println("usage: NwsLoadGenerator [-h host] [-p port] [-l] [-n servers]");
+        System.err.println("       [-S host:port,...] [-w wsname]");
+        System.err.println("       [-P producers] [-C consumers] [-v vars] [-m mode] [-s size]");
+        System.err.println("       [-r rate] [-x mix] [-d seconds] [-i seconds]");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        NwsLoadGenerator g = new NwsLoadGenerator();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-l")) {
+                    g.local = true;
+                    continue;
+                }
+                if (i + 1 >= args.length)
+                    usage();
+                String v = args[++i];
+                if (a.equals("-h"))
+                    g.host = v;
+                else if (a.equals("-p"))
+                    g.port = Integer.parseInt(v);
+                else if (a.equals("-n"))
+                    g.localServers = Integer.parseInt(v);
+                else if (a.equals("-S"))
+                    g.servers = v.split(",");
+                else if (a.equals("-w"))
+                    g.wsName = v;
+                else if (a.equals("-P"))
+                    g.producers = Integer.parseInt(v);
+                else if (a.equals("-C"))
+                    g.consumers = Integer.parseInt(v);
+                else if (a.equals("-v"))
+                    g.vars = Integer.parseInt(v);
+                else if (a.equals("-m"))
+                    g.mode = v;
+                else if (a.equals("-s"))
+                    g.size = Integer.parseInt(v);
+                else if (a.equals("-r"))
+                    g.rate = Double.parseDouble(v);
+                else if (a.equals("-x"))
+                    g.mix = parseMix(v);
+                else if (a.equals("-d"))
+                    g.duration = Integer.parseInt(v);
+                else if (a.equals("-i"))
+                    g.interval = Integer.parseInt(v);
+                else
+                    usage();
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        if (g.vars < 1 || g.interval < 1 || g.duration < 1 || g.localServers < 1)
+            usage();
+
+        NwsStats stats = g.run(System.out);
+        for (NwsStats.Snapshot s: stats.snapshotOperations().values())
+            if (s.getErrors() > 0)
+                System.exit(2);
+    }
+}
@@ -0,0 +1,35 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.Serializable;
+
+/**
+ * A function applied to each element by <code>NetWorkSpace.parallelMap</code>.
+ * It's serialized and run by <code>NwsExecutorWorker</code> processes,
+ * whose classpath must include its class.
+ */
+public interface NwsMapper<T, R> extends Serializable {
+    /**
+     * Maps a single element.
+     *
+     * @param x element
+     * @return result
+     * @exception Exception
+     */
+    R map(T x) throws Exception;
+}
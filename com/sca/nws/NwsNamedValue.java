@@ -0,0 +1,58 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * A value together with the name of the variable it came from, as
+ * returned by <code>fetchAny</code> and <code>findAny</code>.
+ */
+public class NwsNamedValue {
+    private final String varName;
+    private final Object value;
+
+    NwsNamedValue(String varName, Object value) {
+        this.varName = varName;
+        this.value = value;
+    }
+
+    /**
+     * Returns the name of the variable that the value came from.
+     *
+     * @return variable name
+     */
+    public String getVarName() {
+        return varName;
+    }
+
+    /**
+     * Returns the value.
+     *
+     * @return value
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object
+     */
+    public String toString() {
+        return varName + "=" + value;
+    }
+}
@@ -26,9 +26,21 @@ package com.sca.nws;
  * <li> port
  * <li> create
  * <li> server
+ * <li> binaryProtocol
+ * <li> compression
+ * <li> compressionThreshold
+ * <li> contentCache
+ * <li> dedupThreshold
+ * <li> stats
+ * <li> jmx
+ * <li> interceptors
+ * <li> capture
+ * <li> lanes
+ * <li> bulkThreshold
+ * <li> numbers
  * </ul>
  */
-public final class NwsOptions {
+public final class NwsOptions implements Cloneable {
     /** Specifies that you only want to use the workspace, not own it. */
     public boolean useUse = false;
     /** Specifies that the workspace should be persistent. */
@@ -41,6 +53,82 @@ public final class NwsOptions {
     public boolean create = true;
     /** Specifies the NwsServer object to associate with the NetWorkSpace object. */
     public NwsServer server = null;
+    /**
+     * Specifies that the compact binary protocol should be used if the
+     * server supports it.  Older servers always use the text protocol.
+     */
+    public boolean binaryProtocol = true;
+    /**
+     * Specifies that serialized values should be compressed when stored.
+     * Compression is switched off for variables whose values turn out not
+     * to be compressible.  Compressed values are always decompressed
+     * when retrieved, whatever this setting.
+     */
+    public boolean compression = false;
+    /** Specifies the minimum size in bytes of a value worth compressing. */
+    public int compressionThreshold = 512;
+    /**
+     * Specifies the cache used for content-addressed storage of large
+     * values.  Content-addressed storage is only used if this is set,
+     * and the server supports it.
+     */
+    public ContentCache contentCache = null;
+    /** Specifies the minimum size in bytes of a value stored by content digest. */
+    public int dedupThreshold = 65536;
+    /**
+     * Specifies the statistics that the connection to the server records
+     * into.  Connections that are given the same NwsStats object share
+     * their counters.  If this isn't set, each connection has its own.
+     */
+    public NwsStats stats = null;
+    /**
+     * Specifies that the connection and the workspace should register
+     * MBeans with the platform MBean server, and that the traffic of
+     * each variable should be counted for them.
+     */
+    public boolean jmx = false;
+    /**
+     * Specifies the interceptors called around every operation on the
+     * connection to the server, in order.
+     */
+    public NwsInterceptor[] interceptors = null;
+    /**
+     * Specifies the capture file that the bytes exchanged with the
+     * server should be recorded in, for replay by NwsReplay.
+     */
+    public NwsCapture capture = null;
+    /**
+     * Specifies that the NetWorkSpace should keep separate connections,
+     * or lanes, for different kinds of operation, and be safe to share
+     * between threads: the first connection for small operations, a
+     * second one for values of at least <code>bulkThreshold</code>
+     * bytes, and one more for each blocking fetch or find in progress.
+     * Small operations then don't queue behind large transfers or
+     * blocked waits.
+     */
+    public boolean lanes = false;
+    /** Specifies the minimum size in bytes of a value sent on the bulk lane. */
+    public int bulkThreshold = 1 << 20;
+    /**
+     * Specifies that <code>Long</code> values should be stored as
+     * numbers, which the server can add to and aggregate, rather than
+     * serialized.  Clients older than <code>fetchAndAdd</code> can't
+     * read them.
+     */
+    public boolean numbers = false;
     /** Used internally. */
     protected NetWorkSpace space = null;
+
+    /**
+     * Returns a copy of these options.
+     *
+     * @return copy of these options
+     */
+    NwsOptions copy() {
+        try {
+            return (NwsOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e.toString());
+        }
+    }
 }
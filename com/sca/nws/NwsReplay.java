@@ -0,0 +1,271 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.sca.nws.server.NwsEngine;
+
+/**
+ * Plays back the sessions of a capture file made with NwsCapture
+ * against a server, each session over its own connection and all of
+ * them at once, and reports the latency of the requests.
+ * <p>
+ * Each session sends its requests byte for byte as recorded, including
+ * the handshake.  Before sending a request it waits for as many reply
+ * bytes as had been received at that point in the recording, so that
+ * requests are never sent ahead of replies that the original client
+ * waited for.  A request's latency is the time until all of its reply
+ * has arrived, so requests that blocked on the server, waiting for
+ * another session's store, block again.  If a reply doesn't arrive in
+ * full within the timeout, because the server replied differently, the
+ * session carries on and the timeout is reported.
+ * <p>
+ * By default, requests are sent as soon as the previous reply arrives.
+ * With <code>-paced</code>, they are also held back until their time in
+ * the recording, relative to the start of the replay, which reproduces
+ * the original think times.
+ * <pre>
+ * java com.sca.nws.NwsReplay [-h host] [-p port] [-l] [-paced] [-t millis] file
+ * </pre>
+ * <code>-l</code> starts a server in the same JVM instead of using the
+ * one at host:port.  The whole capture file is read into memory.
+ */
+public class NwsReplay {
+    private final static long DEFAULT_TIMEOUT = 10000;
+
+    String host = NwsServer.DEFAULT_HOSTNAME;
+    int port = NwsServer.DEFAULT_PORT;
+    boolean local = false;
+    boolean paced = false;
+    long timeoutMillis = DEFAULT_TIMEOUT;
+
+    private final NwsStats stats = new NwsStats();
+    private long origin;
+    private long replayStart;
+
+    /**
+     * Replays a session, and counts the bytes received on another thread.
+     */
+    private final class Session extends Thread {
+        private final List<NwsCapture.Record> records;
+        private long received = 0;
+        private boolean eof = false;
+        int timeouts = 0;
+        long sent = 0;
+        IOException failure = null;
+
+        Session(int id, List<NwsCapture.Record> records) {
+            super("session " + id);
+            this.records = records;
+        }
+
+        public void run() {
+            Socket socket = null;
+            try {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                final InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                Thread reader = new Thread(getName() + " reader") {
+                    public void run() {
+                        drain(in);
+                    }
+                };
+                reader.setDaemon(true);
+                reader.start();
+
+                // reply bytes recorded before each request, less any
+                // that never arrived in the replay
+                long expected = 0;
+                long missing = 0;
+                long pending = -1;
+                for (NwsCapture.Record r: records) {
+                    if (r.type == NwsCapture.RECEIVED) {
+                        expected += r.data.length;
+                    } else if (r.type == NwsCapture.SENT) {
+                        if (!awaitReply(expected - missing, pending))
+                            missing += expected - missing - received();
+                        if (paced) {
+                            long wait = replayStart + (r.nanos - origin) - System.nanoTime();
+                            if (wait > 0)
+                                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        }
+                        pending = System.nanoTime();
+                        out.write(r.data);
+                        out.flush();
+                        sent += r.data.length;
+                    } else if (r.type == NwsCapture.CLOSE) {
+                        break;
+                    }
+                }
+                awaitReply(expected - missing, pending);
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                // give up on this session
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until the reply to the previous request has arrived, and
+         * records its latency.  Returns false on a timeout.
+         */
+        private synchronized boolean awaitReply(long target, long sentAt)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (received < target && !eof) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                    break;
+                wait(wait);
+            }
+            boolean ok = received >= target;
+            if (!ok)
+                timeouts++;
+            if (sentAt >= 0)
+                stats.record("request", null, System.nanoTime() - sentAt, 0, 0, ok);
+            return ok;
+        }
+
+        synchronized long received() {
+            return received;
+        }
+
+        private void drain(InputStream in) {
+            byte[] buf = new byte[65536];
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    synchronized (this) {
+                        received += n;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // the session closed the socket
+            }
+            synchronized (this) {
+                eof = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Replays a capture file and prints a summary.
+     *
+     * @param file name of the capture file
+     * @return statistics of the requests
+     * @exception Exception
+     */
+    public NwsStats run(String file) throws Exception {
+        Map<Integer, List<NwsCapture.Record>> sessions = NwsCapture.read(file);
+        origin = Long.MAX_VALUE;
+        for (List<NwsCapture.Record> records: sessions.values())
+            if (!records.isEmpty())
+                origin = Math.min(origin, records.get(0).nanos);
+
+        NwsEngine engine = null;
+        if (local) {
+            engine = new NwsEngine(0);
+            engine.start();
+            host = "localhost";
+            port = engine.getPort();
+        }
+        try {
+            ArrayList<Session> threads = new ArrayList<Session>();
+            for (Map.Entry<Integer, List<NwsCapture.Record>> e: sessions.entrySet())
+                threads.add(new Session(e.getKey(), e.getValue()));
+
+            replayStart = System.nanoTime();
+            for (Session s: threads)
+                s.start();
+            long sent = 0;
+            long received = 0;
+            int timeouts = 0;
+            for (Session s: threads) {
+                s.join();
+                sent += s.sent;
+                received += s.received();
+                timeouts += s.timeouts;
+                if (s.failure != null)
+                    System.err.println(s.getName() + " failed: " + s.failure);
+            }
+            double secs = (System.nanoTime() - replayStart) / 1e9;
+
+            NwsStats.Snapshot r = stats.snapshotOperations().get("request");
+            long requests = r == null ? 0 : r.getCalls();
+            System.out.println(String.format(
+                    "%d sessions, %d requests in %.2fs (%.0f/s), %d bytes sent, %d received, %d timeouts",
+                    threads.size(), requests, secs, requests / secs, sent, received, timeouts));
+            if (r != null)
+                System.out.println(String.format(
+                        "latency us: p50 %d  p99 %d  p99.9 %d  max %d",
+                        r.getPercentileNanos(50) / 1000, r.getPercentileNanos(99) / 1000,
+                        r.getPercentileNanos(99.9) / 1000, r.getPercentileNanos(100) / 1000));
+        } finally {
+            if (engine != null)
+                engine.stop();
+        }
+        return stats;
+    }
+
+    private static void usage() {
+        System.err.println("usage: NwsReplay [-h host] [-p port] [-l] [-paced] [-t millis] file");
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        NwsReplay replay = new NwsReplay();
+        int i = 0;
+        try {
+            for (; i < args.length - 1; i++) {
+                if (args[i].equals("-l"))
+                    replay.local = true;
+                else if (args[i].equals("-paced"))
+                    replay.paced = true;
+                else if (args[i].equals("-h"))
+                    replay.host = args[++i];
+                else if (args[i].equals("-p"))
+                    replay.port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-t"))
+                    replay.timeoutMillis = Long.parseLong(args[++i]);
+                else
+                    usage();
+            }
+        } catch (RuntimeException e) {
+            usage();
+        }
+        if (i != args.length - 1)
+            usage();
+        replay.run(args[i]);
+    }
+}
@@ -0,0 +1,97 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * A counting semaphore shared through a workspace.  The permits are
+ * values of a fifo variable, so acquiring a permit is a single blocking
+ * <code>fetch</code>, and releasing one is a single <code>store</code>.
+ * Waiting processes are woken by the server in the order they arrived.
+ * <p>
+ * One process should create the semaphore with its initial number of
+ * permits, and the others attach to it by name.
+ */
+public class NwsSemaphore {
+    private final static Boolean PERMIT = Boolean.TRUE;
+
+    private final NetWorkSpace ws;
+    private final String varname;
+
+    /**
+     * Attaches to the semaphore with the specified name.
+     *
+     * @param ws workspace holding the semaphore
+     * @param name name of the semaphore
+     */
+    public NwsSemaphore(NetWorkSpace ws, String name) {
+        this.ws = ws;
+        this.varname = name;
+    }
+
+    /**
+     * Creates a semaphore with the specified number of permits.
+     *
+     * @param ws workspace holding the semaphore
+     * @param name name of the semaphore
+     * @param permits initial number of permits
+     * @exception NwsException
+     */
+    public NwsSemaphore(NetWorkSpace ws, String name, int permits) throws NwsException {
+        this(ws, name);
+        ws.declare(varname, NetWorkSpace.FIFO);
+        release(permits);
+    }
+
+    /**
+     * Acquires a permit, waiting until one is available.
+     *
+     * @exception NwsException
+     */
+    public void acquire() throws NwsException {
+        ws.fetch(varname);
+    }
+
+    /**
+     * Acquires a permit if one is available.
+     *
+     * @return <code>true</code> if a permit was acquired
+     * @exception NwsException
+     */
+    public boolean tryAcquire() throws NwsException {
+        return ws.fetchTry(varname) != null;
+    }
+
+    /**
+     * Releases a permit.
+     *
+     * @exception NwsException
+     */
+    public void release() throws NwsException {
+        ws.store(varname, PERMIT);
+    }
+
+    /**
+     * Releases the specified number of permits.
+     *
+     * @param permits number of permits
+     * @exception NwsException
+     */
+    public void release(int permits) throws NwsException {
+        for (int i = 0; i < permits; i++)
+            ws.store(varname, PERMIT);
+    }
+}
@@ -20,9 +20,21 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.ObjectName;
 
 /**
  * Perform operations against an NWS server.
@@ -37,6 +49,18 @@ public class NwsServer {
 
     private final static String HANDSHAKE = "1112";
     private final static String OLDPROTOCOL = "2222";
+    private final static String EXTENDED = "2224";
+    private final static String BINARY_REQUEST = "BIN2";
+    private final static String TEXT_REQUEST = "TXT2";
+
+    // argument kinds of the binary protocol, stored in the low two
+    // bits of each argument header
+    private final static int ARG_PLAIN = 0;
+    private final static int ARG_DEFINE = 1;
+    private final static int ARG_SYMBOL = 2;
+    private final static int ARG_NUMBER = 3;
+    private final static int MAX_SYMBOLS = 8192;
+    private final static AtomicInteger openConnections = new AtomicInteger();
 
     protected String serverHost;
     protected int serverPort;
@@ -44,6 +68,39 @@ public class NwsServer {
     protected DataOutputStream dos;
     protected DataInputStream dis;
     protected String handshake;
+    protected boolean binary = false;
+    private final Set<String> capabilities = new HashSet<String>();
+    private final HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+    private NwsStats stats = new NwsStats();
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private boolean closed = false;
+    private ObjectName mbeanName = null;
+    // the operation in progress, if any, for the statistics; it's also
+    // read by the MBean, so it's set after the other fields
+    private volatile String pendingOp = null;
+    private String pendingWs = null;
+    private String pendingVar = null;
+    private long pendingStart;
+    private long pendingSent;
+    private long pendingReceived;
+    // flight recorder event of the operation in progress, and the times
+    // its request was sent and its reply arrived
+    private Object pendingEvent = null;
+    private long flushedAt;
+    private long replyAt;
+    // interceptors, or null if there are none
+    private NwsInterceptor[] interceptors = null;
+    private NwsCall call = null;
+    private NwsServerException pendingError = null;
+    private NwsCapture capture = null;
+    private int session;
+    // a listing still being read from the connection, if any
+    private NwsListing<?> listing = null;
+    // held from the start of an operation to its end, if the connection
+    // is shared between threads
+    private ReentrantLock opLock = null;
+    private boolean starting = false;
 
     /**
      * Creates a connection to the NWS server on the default hostname
@@ -85,13 +142,73 @@ public class NwsServer {
     }
 
     /**
-     * Makes a socket connection at the specified host address and port number.
+     * Creates a connection to the NWS server on the specified host and
+     * port parameters, using the connection related settings in the
+     * NwsOptions object.
      *
      * @param host host address
      * @param port port number
+     * @param opts NwsOptions object
+     * @exception NwsServerException
+     */
+    public NwsServer(String host, int port, NwsOptions opts) throws NwsServerException {
+        serverHost = host;
+        serverPort = port;
+        if (opts.stats != null)
+            stats = opts.stats;
+        if (opts.interceptors != null && opts.interceptors.length > 0) {
+            interceptors = opts.interceptors.clone();
+            call = new NwsCall();
+        }
+        capture = opts.capture;
+        socketConnection(opts.binaryProtocol);
+        if (opts.jmx) {
+            try {
+                mbeanName = NwsConnectionMonitor.register(this);
+            } catch (NwsServerException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Creates an object that reads and writes the specified streams,
+     * as if the handshake had already been done.  This is only used to
+     * measure the framing code in the benchmarks, and the object can't
+     * be closed.
+     *
+     * @param dos stream that requests are written to
+     * @param dis stream that replies are read from
+     * @param binary use the binary protocol
+     */
+    NwsServer(DataOutputStream dos, DataInputStream dis, boolean binary) {
+        serverHost = DEFAULT_HOSTNAME;
+        serverPort = 0;
+        this.dos = dos;
+        this.dis = dis;
+        this.binary = binary;
+    }
+
+    /**
+     * Makes a socket connection at the specified host address and port number.
+     *
      * @exception NwsServerException
      */
     private void socketConnection() throws NwsServerException {
+        socketConnection(true);
+    }
+
+    /**
+     * Makes a socket connection at the specified host address and port number.
+     * If the server advertises the extended protocol, its capabilities are
+     * requested, and the binary framing is switched on if
+     * <code>useBinary</code> is set.
+     *
+     * @param useBinary use the binary protocol if the server supports it
+     * @exception NwsServerException
+     */
+    private void socketConnection(boolean useBinary) throws NwsServerException {
         try {
             try {
                 nwsSocket = new Socket(serverHost, serverPort);
@@ -107,10 +224,15 @@ public class NwsServer {
             nwsSocket.setTcpNoDelay(true);
             nwsSocket.setKeepAlive(true);
 
-            dos = new DataOutputStream(
-                    new BufferedOutputStream(nwsSocket.getOutputStream()));
-            dis = new DataInputStream(
-                    new BufferedInputStream(nwsSocket.getInputStream()));
+            OutputStream os = nwsSocket.getOutputStream();
+            InputStream is = nwsSocket.getInputStream();
+            if (capture != null) {
+                session = capture.open();
+                os = capture.wrap(session, os);
+                is = capture.wrap(session, is);
+            }
+            dos = new DataOutputStream(new BufferedOutputStream(os));
+            dis = new DataInputStream(new BufferedInputStream(is));
 
             // tell the server that you support the cookie protocol
             writeBytes(HANDSHAKE);
@@ -119,6 +241,21 @@ public class NwsServer {
             handshake = new String(recvN(4));
             if (handshake.equals(OLDPROTOCOL))
                 throw new NwsUnsupportedProtocolException("old/unsupported protocol");
+
+            // servers that don't advertise the extension never see the
+            // negotiation request, so they keep the text protocol
+            if (handshake.equals(EXTENDED)) {
+                writeBytes(useBinary ? BINARY_REQUEST : TEXT_REQUEST);
+                sendAll();
+
+                int n = Integer.parseInt(new String(recvN(4)));
+                for (int i = 0; i < n; i++) {
+                    int len = Integer.parseInt(new String(recvN(20)));
+                    capabilities.add(new String(recvN(len)));
+                }
+                binary = useBinary;
+            }
+            openConnections.incrementAndGet();
         } catch (IOException ioe) {
             throw new NwsServerException("NwsServer IOException", ioe);
         }
@@ -139,6 +276,16 @@ public class NwsServer {
      * @exception NwsServerException
      */
     public void close() throws NwsServerException {
+        listing = null;
+        endOp(false);
+        if (!closed) {
+            closed = true;
+            openConnections.decrementAndGet();
+            if (mbeanName != null)
+                NwsConnectionMonitor.unregister(mbeanName);
+            if (capture != null)
+                capture.close(session);
+        }
         try {
             nwsSocket.close();
             dos.close();
@@ -155,19 +302,242 @@ public class NwsServer {
      * @exception NwsException
      */
     public void deleteWs(String wsname) throws NwsException {
-        String op = "delete ws";
-        writeBytes("0002");
-        writeBytes(NwsUtils.paddedZeros(op.length()));
-        writeBytes(op);
-        writeBytes(NwsUtils.paddedZeros(wsname.length()));
-        writeBytes(wsname);
+        beginOp("delete ws", wsname, null);
+        writeCount(2);
+        writeName("delete ws");
+        writeName(wsname);
         sendAll();
 
-        int status = Integer.parseInt(new String(recvN(4)));
+        int status = recvStatus();
+        endOp(status == 0);
         if (status != 0)
             throw new NwsOperationException("deleteWs failed");
     }
 
+    /**
+     * Returns true if the compact binary protocol was negotiated
+     * with the server.
+     *
+     * @return true if the binary protocol is in use
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Returns the statistics of the operations performed through this
+     * connection.
+     *
+     * @return statistics
+     */
+    public NwsStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the number of bytes sent to the server so far.
+     *
+     * @return bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of bytes received from the server so far.
+     *
+     * @return bytes received
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Starts timing an operation, before its request is written.  An
+     * operation that is still in progress, because it failed before
+     * it could be ended, is recorded as an error.
+     *
+     * @param op operation name
+     * @param wsname workspace name, or null
+     * @param varname variable name, or null
+     */
+    protected void beginOp(String op, String wsname, String varname) {
+        if (opLock != null && !opLock.isHeldByCurrentThread())
+            opLock.lock();
+        starting = true;
+        if (listing != null)
+            listing.close();
+        if (pendingOp != null)
+            endOp(false);
+        starting = false;
+        pendingWs = wsname;
+        pendingVar = varname;
+        pendingSent = bytesSent;
+        pendingReceived = bytesReceived;
+        pendingEvent = NwsEvents.INSTANCE.beginRoundTrip();
+        if (pendingEvent != null) {
+            flushedAt = 0;
+            replyAt = 0;
+        }
+        pendingError = null;
+        pendingStart = System.nanoTime();
+        pendingOp = op;
+        if (interceptors != null) {
+            call.begin(op, wsname, varname, pendingStart);
+            boolean ok = false;
+            try {
+                for (int i = 0; i < interceptors.length; i++)
+                    interceptors[i].before(call);
+                ok = true;
+            } finally {
+                if (!ok) {
+                    // nothing has been sent, so the operation never happened
+                    pendingOp = null;
+                    pendingEvent = null;
+                    unlockOp();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the operation in progress, once its reply has been read.
+     *
+     * @param ok false if the operation failed
+     */
+    protected void endOp(boolean ok) {
+        if (pendingOp == null) {
+            unlockOp();
+            return;
+        }
+        long now = System.nanoTime();
+        stats.record(pendingOp, pendingWs, now - pendingStart,
+                bytesSent - pendingSent, bytesReceived - pendingReceived, ok);
+        if (pendingEvent != null) {
+            long wait = flushedAt != 0 && replyAt != 0 ? replyAt - flushedAt : 0;
+            NwsEvents.INSTANCE.commitRoundTrip(pendingEvent, pendingOp, pendingWs,
+                    pendingVar, bytesSent - pendingSent, bytesReceived - pendingReceived,
+                    wait, now - pendingStart - wait, ok);
+            pendingEvent = null;
+        }
+        pendingOp = null;
+        // every interceptor is called, and the connection handed on,
+        // before the first exception an interceptor threw is rethrown
+        RuntimeException thrown = null;
+        try {
+            if (interceptors != null) {
+                call.elapsedNanos = now - pendingStart;
+                call.bytesSent = bytesSent - pendingSent;
+                call.bytesReceived = bytesReceived - pendingReceived;
+                for (int i = 0; i < interceptors.length; i++) {
+                    try {
+                        if (ok)
+                            interceptors[i].after(call);
+                        else
+                            interceptors[i].error(call, pendingError);
+                    } catch (RuntimeException e) {
+                        if (thrown == null)
+                            thrown = e;
+                    }
+                }
+            }
+        } finally {
+            unlockOp();
+        }
+        if (thrown != null)
+            throw thrown;
+    }
+
+    private void unlockOp() {
+        if (opLock != null && !starting && opLock.isHeldByCurrentThread())
+            opLock.unlock();
+    }
+
+    /**
+     * Makes the connection safe to share between threads.  Each
+     * operation then has the connection to itself from the start of its
+     * request until its reply has been read, or the connection fails.
+     * A listing is read into memory before the connection is handed on.
+     */
+    void share() {
+        opLock = new ReentrantLock();
+    }
+
+    /**
+     * Notes a connection failure as the cause of the failure of the
+     * operation in progress.
+     *
+     * @param e exception to be thrown
+     * @return the exception
+     */
+    private NwsServerException failure(NwsServerException e) {
+        if (pendingOp != null) {
+            pendingError = e;
+            // the connection is no use now, so don't keep it from others
+            if (opLock != null)
+                endOp(false);
+        }
+        return e;
+    }
+
+    /**
+     * Returns a description of the operation in progress, or null.
+     * This may be called by any thread, and may mix up the details of
+     * consecutive operations.
+     *
+     * @param waitsOnly only describe operations that wait for a value
+     * @return description, or null
+     */
+    String describePending(boolean waitsOnly) {
+        String op = pendingOp;
+        if (op == null || (waitsOnly && !isWait(op)))
+            return null;
+        long ms = (System.nanoTime() - pendingStart) / 1000000;
+        return op + " ws=" + pendingWs + " var=" + pendingVar + " for " + ms + " ms";
+    }
+
+    /**
+     * Returns the name of the workspace of the operation in progress.
+     *
+     * @return workspace name, or null
+     */
+    String pendingWorkspace() {
+        return pendingOp == null ? null : pendingWs;
+    }
+
+    /**
+     * Returns true if the operation blocks until a value is available.
+     *
+     * @param op operation name
+     * @return true for blocking retrievals
+     */
+    static boolean isWait(String op) {
+        return op.equals("fetch") || op.equals("find") ||
+               op.equals("ifetch") || op.equals("ifind") ||
+               op.equals("fetch any") || op.equals("find any");
+    }
+
+    /**
+     * Returns the number of open connections in this JVM.
+     *
+     * @return number of open connections
+     */
+    static int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Returns true if the server advertised support for the specified
+     * extended operation during the handshake.  Servers that don't speak
+     * the extended protocol don't support any extended operations.
+     *
+     * @param op operation name
+     * @return true if the operation is supported
+     */
+    public boolean supports(String op) {
+        return capabilities.contains(op);
+    }
+
     /**
      * Returns the host name of the associated NWS server.
      *
@@ -193,23 +563,92 @@ public class NwsServer {
      * @exception NwsException
      */
     public String listWss() throws NwsException {
-        String op = "list wss";
-        writeBytes("0001");
-        writeBytes(NwsUtils.paddedZeros(op.length()));
-        writeBytes(op);
+        beginOp("list wss", null, null);
+        writeCount(1);
+        writeName("list wss");
         sendAll();
 
-        int status = Integer.parseInt(new String(recvN(4)));
-        byte[] desc = recvN(20);  // unused at the moment
-        byte[] cookie = recvN(40);  // unused at the moment
-        int n = Integer.parseInt(new String(recvN(20)));
-        byte[] ba = recvN(n);
+        int status = recvStatus();
+        recvDescriptor();  // unused at the moment
+        recvCookie();  // unused at the moment
+        byte[] ba = recvValue();
+        endOp(status == 0);
 
         if (status != 0)
             throw new NwsOperationException("listWss failed");
         return new String(ba);
     }
 
+    /**
+     * Lists all workspaces on the associated NWS server, as they are
+     * read from the connection.  The connection is busy until the
+     * listing has been read, and starting another operation first
+     * reads and discards the rest of it.
+     *
+     * @return iterator over the workspaces
+     * @exception NwsException
+     */
+    public Iterator<WorkspaceInfo> listWorkspaces() throws NwsException {
+        return listWorkspaces(null);
+    }
+
+    /**
+     * Lists the workspaces whose names start with the specified prefix,
+     * as they are read from the connection.  The other workspaces are
+     * skipped as they are read.
+     *
+     * @param prefix workspace name prefix, or null for all workspaces
+     * @return iterator over the workspaces
+     * @exception NwsException
+     * @see NwsServer#listWorkspaces()
+     */
+    public Iterator<WorkspaceInfo> listWorkspaces(String prefix) throws NwsException {
+        beginOp("list wss", null, null);
+        writeCount(1);
+        writeName("list wss");
+        sendAll();
+
+        int status = recvStatus();
+        recvDescriptor();  // unused at the moment
+        recvCookie();  // unused at the moment
+        int n = recvLength();
+        if (status != 0) {
+            recvN(n);
+            endOp(false);
+            throw new NwsOperationException("listWss failed");
+        }
+        return beginListing(new WorkspaceInfo.Listing(this, n, prefix));
+    }
+
+    /**
+     * Makes a listing the reply being read, to be finished before the
+     * next operation, and returns the iterator for the caller.  A shared
+     * connection can't wait for a caller that may never finish the
+     * listing, so its listing is read into memory at once.
+     *
+     * @param l listing
+     * @return iterator over the records
+     */
+    <T> Iterator<T> beginListing(NwsListing<T> l) {
+        listing = l;
+        if (opLock == null)
+            return l;
+        ArrayList<T> records = new ArrayList<T>();
+        while (l.hasNext())
+            records.add(l.next());
+        return Collections.unmodifiableList(records).iterator();
+    }
+
+    /**
+     * Called by a listing once it has been read.
+     */
+    void endListing(NwsListing<?> l, boolean ok) {
+        if (listing == l) {
+            listing = null;
+            endOp(ok);
+        }
+    }
+
     /**
      * Creates a unique temporary workspace name using the default template string,
      * '__jws__%d'. The user must then invoke openWs() or useWs() with this name
@@ -232,19 +671,17 @@ public class NwsServer {
      * @exception NwsException
      */
     public String mktempWs(String wsName) throws NwsException {
-        String op = "mktemp ws";
-        writeBytes("0002");
-        writeBytes(NwsUtils.paddedZeros(op.length()));
-        writeBytes(op);
-        writeBytes(NwsUtils.paddedZeros(wsName.length()));
-        writeBytes(wsName);
+        beginOp("mktemp ws", null, null);
+        writeCount(2);
+        writeName("mktemp ws");
+        writeArg(wsName);
         sendAll();
 
-        int status = Integer.parseInt(new String(recvN(4)));
-        byte[] desc = recvN(20);  // unused at the moment
-        byte[] cookie = recvN(40);  // unused at the moment
-        int n = Integer.parseInt(new String(recvN(20)));
-        byte[] ba = recvN(n);
+        int status = recvStatus();
+        recvDescriptor();  // unused at the moment
+        recvCookie();  // unused at the moment
+        byte[] ba = recvValue();
+        endOp(status == 0);
 
         if (status != 0)
             throw new NwsOperationException("mktempWs failed");
@@ -298,20 +735,17 @@ public class NwsServer {
         if (!opts.create)
             c = "no";
 
-        writeBytes("0005");
-        writeBytes(NwsUtils.paddedZeros(op.length()));
-        writeBytes(op);
-        writeBytes(NwsUtils.paddedZeros(wsname.length()));
-        writeBytes(wsname);
-        writeBytes(NwsUtils.paddedZeros(owner.length()));
-        writeBytes(owner);
-        writeBytes(NwsUtils.paddedZeros(p.length()));
-        writeBytes(p);
-        writeBytes(NwsUtils.paddedZeros(c.length()));
-        writeBytes(c);
+        beginOp(op, wsname, null);
+        writeCount(5);
+        writeName(op);
+        writeName(wsname);
+        writeArg(owner);
+        writeArg(p);
+        writeArg(c);
         sendAll();
 
-        int status = Integer.parseInt(new String(recvN(4)));
+        int status = recvStatus();
+        endOp(status == 0);
         if (status != 0)
             throw new NwsNoWorkSpaceException("workspace " + wsname + " doesn't exist");
         return space;
@@ -356,25 +790,244 @@ public class NwsServer {
             space = opts.space;
         }
 
-        writeBytes("0005");
-        writeBytes(NwsUtils.paddedZeros(op.length()));
-        writeBytes(op);
-        writeBytes(NwsUtils.paddedZeros(wsname.length()));
-        writeBytes(wsname);
-        writeBytes(NwsUtils.paddedZeros(owner.length()));
-        writeBytes(owner);
-        writeBytes(NwsUtils.paddedZeros(p.length()));
-        writeBytes(p);
-        writeBytes(NwsUtils.paddedZeros(c.length()));
-        writeBytes(c);
+        beginOp(op, wsname, null);
+        writeCount(5);
+        writeName(op);
+        writeName(wsname);
+        writeArg(owner);
+        writeArg(p);
+        writeArg(c);
         sendAll();
 
-        int status = Integer.parseInt(new String(recvN(4)));
+        int status = recvStatus();
+        endOp(status == 0);
         if (status != 0)
             throw new NwsNoWorkSpaceException("workspace " + wsname + " doesn't exist");
         return space;
     }
 
+    /**
+     * Writes the number of arguments of the next request.
+     *
+     * @param n number of arguments
+     * @exception NwsServerException
+     */
+    protected void writeCount(int n) throws NwsServerException {
+        if (binary)
+            writeVarint(n);
+        else
+            writeBytes(NwsUtils.paddedZeros(n, 4));
+    }
+
+    /**
+     * Writes an operation, workspace or variable name argument.
+     * With the binary protocol, names are interned in a per-connection
+     * table, so each name is only sent in full the first time it's used.
+     *
+     * @param s name to be written
+     * @exception NwsServerException
+     */
+    protected void writeName(String s) throws NwsServerException {
+        if (!binary) {
+            writeArg(s);
+            return;
+        }
+
+        Integer id = symbols.get(s);
+        if (id != null) {
+            writeVarint(((long) id.intValue() << 2) | ARG_SYMBOL);
+        } else {
+            byte[] b = s.getBytes();
+            if (symbols.size() < MAX_SYMBOLS) {
+                symbols.put(s, symbols.size());
+                writeVarint(((long) b.length << 2) | ARG_DEFINE);
+            } else {
+                writeVarint(((long) b.length << 2) | ARG_PLAIN);
+            }
+            writeBytes(b);
+        }
+    }
+
+    /**
+     * Writes a string argument.
+     *
+     * @param s argument to be written
+     * @exception NwsServerException
+     */
+    protected void writeArg(String s) throws NwsServerException {
+        writeArg(s.getBytes());
+    }
+
+    /**
+     * Writes a byte array argument.
+     *
+     * @param b argument to be written
+     * @exception NwsServerException
+     */
+    protected void writeArg(byte[] b) throws NwsServerException {
+        if (binary)
+            writeVarint(((long) b.length << 2) | ARG_PLAIN);
+        else
+            writeBytes(NwsUtils.paddedZeros(b.length));
+        writeBytes(b);
+    }
+
+    /**
+     * Writes a numeric argument, such as a descriptor or value index.
+     *
+     * @param n argument to be written
+     * @exception NwsServerException
+     */
+    protected void writeNumber(long n) throws NwsServerException {
+        if (binary) {
+            writeVarint((n << 2) | ARG_NUMBER);
+        } else {
+            writeBytes(NwsUtils.paddedZeros(20));
+            writeBytes(NwsUtils.paddedZeros(n, 20));
+        }
+    }
+
+    /**
+     * Writes an unsigned variable length integer, seven bits per byte,
+     * least significant group first.
+     *
+     * @param n value to be written
+     * @exception NwsServerException
+     */
+    private void writeVarint(long n) throws NwsServerException {
+        try {
+            while ((n & ~0x7fL) != 0) {
+                dos.write((int) ((n & 0x7f) | 0x80));
+                bytesSent++;
+                n >>>= 7;
+            }
+            dos.write((int) n);
+            bytesSent++;
+        } catch (IOException ioe) {
+            throw failure(new NwsServerException("IOException", ioe));
+        }
+    }
+
+    /**
+     * Reads the status of a reply.
+     *
+     * @return status, zero for success
+     * @exception NwsServerException
+     */
+    protected int recvStatus() throws NwsServerException {
+        int status;
+        if (binary)
+            status = (int) recvVarint();
+        else
+            status = Integer.parseInt(new String(recvN(4)));
+        if (pendingEvent != null && replyAt == 0)
+            replyAt = System.nanoTime();
+        return status;
+    }
+
+    /**
+     * Reads the value descriptor of a reply.
+     *
+     * @return value descriptor
+     * @exception NwsServerException
+     */
+    protected int recvDescriptor() throws NwsServerException {
+        if (!binary)
+            return Integer.parseInt(new String(recvN(20)));
+        try {
+            int desc = dis.readInt();
+            bytesReceived += 4;
+            return desc;
+        } catch (EOFException e) {
+            throw failure(new NwsConnectionDroppedException(
+                    "NWS server connection dropped"));
+        } catch (IOException ioe) {
+            throw failure(new NwsServerException("IOException", ioe));
+        }
+    }
+
+    /**
+     * Skips the cookie of a reply.  The binary protocol
+     * doesn't send cookies for plain fetch/find operations.
+     *
+     * @exception NwsServerException
+     */
+    protected void recvCookie() throws NwsServerException {
+        if (!binary)
+            recvN(40);
+    }
+
+    /**
+     * Reads the variable id part of an iterator cookie.
+     *
+     * @return variable id
+     * @exception NwsServerException
+     */
+    protected byte[] recvVarId() throws NwsServerException {
+        if (binary)
+            return recvN((int) recvVarint());
+        return recvN(20);
+    }
+
+    /**
+     * Reads the value index part of an iterator cookie.
+     *
+     * @return value index
+     * @exception NwsServerException
+     */
+    protected int recvIndex() throws NwsServerException {
+        if (binary)
+            return (int) recvVarint();
+        return Integer.parseInt(new String(recvN(20)));
+    }
+
+    /**
+     * Reads a length prefixed value.
+     *
+     * @return value
+     * @exception NwsServerException
+     */
+    protected byte[] recvValue() throws NwsServerException {
+        return recvN(recvLength());
+    }
+
+    /**
+     * Reads the length prefix of a value.
+     *
+     * @return length of the value
+     * @exception NwsServerException
+     */
+    protected int recvLength() throws NwsServerException {
+        if (binary)
+            return (int) recvVarint();
+        return Integer.parseInt(new String(recvN(20)));
+    }
+
+    /**
+     * Reads an unsigned variable length integer.
+     *
+     * @return value
+     * @exception NwsServerException
+     */
+    private long recvVarint() throws NwsServerException {
+        long n = 0;
+        try {
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = dis.read();
+                if (b == -1)
+                    throw failure(new NwsConnectionDroppedException(
+                            "NWS server connection dropped"));
+                bytesReceived++;
+                n |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return n;
+            }
+        } catch (IOException ioe) {
+            throw failure(new NwsServerException("IOException", ioe));
+        }
+        throw failure(new NwsServerException("malformed reply from NWS server"));
+    }
+
     /**
      * Converts string into bytes and writes it to the NWS server.
      *
@@ -394,8 +1047,9 @@ public class NwsServer {
     protected void writeBytes(byte[] b) throws NwsServerException {
         try {
             dos.write(b, 0, b.length);
+            bytesSent += b.length;
         } catch (IOException ioe) {
-            throw new NwsServerException("IOException", ioe);
+            throw failure(new NwsServerException("IOException", ioe));
         }
     }
 
@@ -406,8 +1060,10 @@ public class NwsServer {
     protected void sendAll() throws NwsServerException {
         try {
             dos.flush();
+            if (pendingEvent != null)
+                flushedAt = System.nanoTime();
         } catch (IOException ioe) {
-            throw new NwsServerException("IOException", ioe);
+            throw failure(new NwsServerException("IOException", ioe));
         }
     }
 
@@ -429,14 +1085,38 @@ public class NwsServer {
             try {
                 b = dis.read(buf, total, m);
                 if (b == -1)
-                    throw new NwsConnectionDroppedException(
-                            "NWS server connection dropped");
+                    throw failure(new NwsConnectionDroppedException(
+                            "NWS server connection dropped"));
             } catch (IOException ioe) {
-                throw new NwsServerException("IOException", ioe);
+                throw failure(new NwsServerException("IOException", ioe));
             }
             total = total + b;
         }
+        bytesReceived += n;
 
         return buf;
     }
+
+    /**
+     * Reads at least one and at most n bytes from the NWS server.
+     *
+     * @param buf buffer to read into
+     * @param off offset in the buffer
+     * @param n maximum number of bytes
+     * @return number of bytes read
+     * @exception NwsServerException
+     */
+    protected int recvSome(byte[] buf, int off, int n) throws NwsServerException {
+        int b;
+        try {
+            b = dis.read(buf, off, n);
+        } catch (IOException ioe) {
+            throw failure(new NwsServerException("IOException", ioe));
+        }
+        if (b == -1)
+            throw failure(new NwsConnectionDroppedException(
+                    "NWS server connection dropped"));
+        bytesReceived += b;
+        return b;
+    }
 }
@@ -0,0 +1,299 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for the operations performed through NwsServer connections:
+ * for each operation type and each workspace, the number of calls and
+ * errors, the bytes sent and received, and a latency histogram.  Every
+ * connection records into its own instance, unless several share one
+ * through the <code>stats</code> field of NwsOptions.
+ * <p>
+ * Recording takes no locks and, once an operation or workspace has been
+ * seen, allocates nothing.  The histogram has four buckets per power of
+ * two, so percentiles are accurate to within about 25%.
+ */
+public class NwsStats {
+    // buckets per power of two, as a number of bits
+    private final static int SUB_BITS = 2;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+    private final static int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final ConcurrentHashMap<String, Counter> operations =
+            new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Counter> workspaces =
+            new ConcurrentHashMap<String, Counter>();
+
+    /**
+     * The live counters of an operation type or workspace.
+     */
+    static final class Counter {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, long bytesSent, long bytesReceived, boolean ok) {
+            calls.incrementAndGet();
+            if (!ok)
+                errors.incrementAndGet();
+            sent.addAndGet(bytesSent);
+            received.addAndGet(bytesReceived);
+            totalNanos.addAndGet(nanos);
+            histogram.incrementAndGet(bucket(nanos));
+        }
+
+        void reset() {
+            calls.set(0);
+            errors.set(0);
+            sent.set(0);
+            received.set(0);
+            totalNanos.set(0);
+            for (int i = 0; i < BUCKETS; i++)
+                histogram.set(i, 0);
+        }
+
+        Snapshot snapshot(String name) {
+            long[] h = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                h[i] = histogram.get(i);
+            return new Snapshot(name, calls.get(), errors.get(), sent.get(),
+                    received.get(), totalNanos.get(), h);
+        }
+    }
+
+    /**
+     * A copy of the counters of an operation type or workspace.  The
+     * counters are read one at a time, so a snapshot taken while
+     * operations are in progress may be slightly inconsistent.
+     */
+    public static final class Snapshot {
+        private final String name;
+        private final long calls;
+        private final long errors;
+        private final long sent;
+        private final long received;
+        private final long totalNanos;
+        private final long[] histogram;
+
+        Snapshot(String name, long calls, long errors, long sent, long received,
+                 long totalNanos, long[] histogram) {
+            this.name = name;
+            this.calls = calls;
+            this.errors = errors;
+            this.sent = sent;
+            this.received = received;
+            this.totalNanos = totalNanos;
+            this.histogram = histogram;
+        }
+
+        /**
+         * Returns the name of the operation type or workspace.
+         *
+         * @return name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of calls.
+         *
+         * @return number of calls
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * Returns the number of calls that failed.
+         *
+         * @return number of errors
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns the number of bytes sent to the server.
+         *
+         * @return bytes sent
+         */
+        public long getBytesSent() {
+            return sent;
+        }
+
+        /**
+         * Returns the number of bytes received from the server.
+         *
+         * @return bytes received
+         */
+        public long getBytesReceived() {
+            return received;
+        }
+
+        /**
+         * Returns the mean latency.
+         *
+         * @return mean latency in nanoseconds
+         */
+        public long getMeanNanos() {
+            return calls == 0 ? 0 : totalNanos / calls;
+        }
+
+        /**
+         * Returns an upper bound of the latency of the specified
+         * percentile of calls.
+         *
+         * @param percentile percentile, from 0 to 100
+         * @return latency in nanoseconds
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                total += histogram[i];
+            if (total == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank && histogram[i] > 0)
+                    return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        /**
+         * Returns a one line summary, with latencies in microseconds.
+         *
+         * @return summary
+         */
+        public String toString() {
+            return name + ": calls=" + calls + " errors=" + errors +
+                   " sent=" + sent + " received=" + received +
+                   " mean=" + getMeanNanos() / 1000 +
+                   " p50=" + getPercentileNanos(50) / 1000 +
+                   " p99=" + getPercentileNanos(99) / 1000 +
+                   " p99.9=" + getPercentileNanos(99.9) / 1000 +
+                   " max=" + getPercentileNanos(100) / 1000;
+        }
+    }
+
+    /**
+     * Records a completed operation.
+     *
+     * @param op operation name
+     * @param wsname workspace name, or null
+     * @param nanos latency
+     * @param sent bytes sent
+     * @param received bytes received
+     * @param ok false if the operation failed
+     */
+    void record(String op, String wsname, long nanos, long sent, long received, boolean ok) {
+        counter(operations, op).record(nanos, sent, received, ok);
+        if (wsname != null)
+            counter(workspaces, wsname).record(nanos, sent, received, ok);
+    }
+
+    private static Counter counter(ConcurrentHashMap<String, Counter> map, String name) {
+        Counter c = map.get(name);
+        if (c == null) {
+            Counter n = new Counter();
+            c = map.putIfAbsent(name, n);
+            if (c == null)
+                c = n;
+        }
+        return c;
+    }
+
+    /**
+     * Returns snapshots of the counters of each operation type.
+     *
+     * @return snapshots by operation name
+     */
+    public Map<String, Snapshot> snapshotOperations() {
+        return snapshot(operations);
+    }
+
+    /**
+     * Returns snapshots of the counters of each workspace.
+     *
+     * @return snapshots by workspace name
+     */
+    public Map<String, Snapshot> snapshotWorkspaces() {
+        return snapshot(workspaces);
+    }
+
+    /**
+     * Sets all the counters back to zero.  Operations that complete
+     * while this is in progress may be partly counted.
+     */
+    public void reset() {
+        for (Counter c: operations.values())
+            c.reset();
+        for (Counter c: workspaces.values())
+            c.reset();
+    }
+
+    private static Map<String, Snapshot> snapshot(ConcurrentHashMap<String, Counter> map) {
+        TreeMap<String, Snapshot> result = new TreeMap<String, Snapshot>();
+        for (Map.Entry<String, Counter> e: map.entrySet())
+            result.put(e.getKey(), e.getValue().snapshot(e.getKey()));
+        return result;
+    }
+
+    /**
+     * Returns a summary of all the counters, one line per operation
+     * type and workspace, with latencies in microseconds.
+     *
+     * @return summary
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Snapshot s: snapshotOperations().values())
+            sb.append("op ").append(s).append('\n');
+        for (Snapshot s: snapshotWorkspaces().values())
+            sb.append("ws ").append(s).append('\n');
+        return sb.toString();
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS)
+            return nanos < 0 ? 0 : (int) nanos;
+        int e = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int e = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (e - SUB_BITS)) - 1;
+    }
+}
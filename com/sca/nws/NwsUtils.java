@@ -44,4 +44,18 @@ class NwsUtils {
         String str = twentyZeros.substring(0, 20 - numStr.length()) + numStr;
         return str;
     }
+
+    /**
+     * Return number in string format. The string is padded with zeros
+     * to make up the specified length, which can't exceed 20.
+     *
+     * @param num
+     * @param width
+     * @return number in string format
+     */
+    static String paddedZeros(long num, int width) {
+        String numStr = Long.toString(num);
+        String str = twentyZeros.substring(0, width - numStr.length()) + numStr;
+        return str;
+    }
 }
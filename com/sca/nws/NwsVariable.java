@@ -18,6 +18,7 @@ package com.sca.nws;
 
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -145,6 +146,57 @@ public class NwsVariable<E> implements Iterator<E>, Iterable<E> {
         ws.store(varName, value);
     }
 
+    /**
+     * Stores a value in this variable, unless it is full.
+     *
+     * @param value value to be stored
+     * @return <code>true</code> if the value was stored
+     * @exception NwsException
+     * @see NetWorkSpace#storeTry
+     */
+    public boolean storeTry(E value) throws NwsException {
+        return ws.storeTry(varName, value);
+    }
+
+    /**
+     * Atomically adds to the numeric value of this variable.
+     *
+     * @param delta amount to add
+     * @return previous value
+     * @exception NwsException
+     * @see NetWorkSpace#fetchAndAdd
+     */
+    public long fetchAndAdd(long delta) throws NwsException {
+        return ws.fetchAndAdd(varName, delta);
+    }
+
+    /**
+     * Atomically replaces the value of this single mode variable, if its
+     * current value is the expected one.
+     *
+     * @param expect expected value, or <code>null</code> for no value
+     * @param update new value
+     * @return <code>true</code> if the value was replaced
+     * @exception NwsException
+     * @see NetWorkSpace#compareAndSet
+     */
+    public boolean compareAndSet(E expect, E update) throws NwsException {
+        return ws.compareAndSet(varName, expect, update);
+    }
+
+    /**
+     * Atomically fetches the value of this variable, if it has one, and
+     * stores a new value.
+     *
+     * @param value value to be stored
+     * @return previous value, or <code>null</code>
+     * @exception NwsException
+     * @see NetWorkSpace#fetchAndStore
+     */
+    public E fetchAndStore(E value) throws NwsException {
+        return (E) ws.fetchAndStore(varName, value);
+    }
+
     /**
      * Returns and removes a value of this variable.
      * If the variable has no values, the operation will not return
@@ -160,6 +212,21 @@ public class NwsVariable<E> implements Iterator<E>, Iterable<E> {
         return (E) ws.fetch(varName);
     }
 
+    /**
+     * Returns and removes a value of this variable, waiting at most the
+     * specified time for one.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return the appropriate value from this variable, or
+     *         <code>null</code> if the timeout expired
+     * @exception NwsException
+     * @see NetWorkSpace#fetch(String, long, TimeUnit)
+     */
+    public E fetch(long timeout, TimeUnit unit) throws NwsException {
+        return (E) ws.fetch(varName, timeout, unit);
+    }
+
     /**
      * Returns and removes a value of this variable.
      * If the variable has no values, the operation will return
@@ -205,6 +272,21 @@ public class NwsVariable<E> implements Iterator<E>, Iterable<E> {
         return (E) ws.find(varName);
     }
 
+    /**
+     * Returns a value of this variable without removing it, waiting at
+     * most the specified time for one.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of the timeout
+     * @return the appropriate value from this variable, or
+     *         <code>null</code> if the timeout expired
+     * @exception NwsException
+     * @see NetWorkSpace#find(String, long, TimeUnit)
+     */
+    public E find(long timeout, TimeUnit unit) throws NwsException {
+        return (E) ws.find(varName, timeout, unit);
+    }
+
     /**
      * Returns a value of this variable.
      * If the variable has no values, the operation will return
@@ -254,6 +336,18 @@ public class NwsVariable<E> implements Iterator<E>, Iterable<E> {
         ws.declare(varName, mode);
     }
 
+    /**
+     * Declares this variable with a capacity.
+     *
+     * @param mode mode of the variable, other than "single"
+     * @param capacity maximum number of values
+     * @exception NwsException
+     * @see NetWorkSpace#declare(String, String, int)
+     */
+    public void declare(String mode, int capacity) throws NwsException {
+        ws.declare(varName, mode, capacity);
+    }
+
     /**
      * Deletes this variable from the workspace.
      *
@@ -0,0 +1,93 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * Management interface of a NetWorkSpace, registered as
+ * <code>com.sca.nws:type=WorkSpace,name=<i>wsname</i>,id=<i>n</i></code>
+ * when the <code>jmx</code> option is set.  The traffic of each
+ * variable is counted from the time the workspace is opened, or the
+ * counters are reset.
+ */
+public interface NwsWorkSpaceMBean {
+    /**
+     * Returns the name of the workspace.
+     *
+     * @return workspace name
+     */
+    String getName();
+
+    /**
+     * Returns the number of blocking fetch and find operations on this
+     * workspace waiting for a value, which is zero or one.
+     *
+     * @return number of blocked waiters
+     */
+    int getBlockedWaiters();
+
+    /**
+     * Returns the number of values stored.
+     *
+     * @return number of stores
+     */
+    long getStores();
+
+    /**
+     * Returns the number of values fetched or found.
+     *
+     * @return number of retrievals
+     */
+    long getRetrievals();
+
+    /**
+     * Returns the number of bytes of the values stored, after any
+     * compression.
+     *
+     * @return bytes stored
+     */
+    long getBytesStored();
+
+    /**
+     * Returns the number of bytes of the values fetched or found, as
+     * received.
+     *
+     * @return bytes retrieved
+     */
+    long getBytesRetrieved();
+
+    /**
+     * Returns a summary of the traffic of each variable: the number of
+     * stores, fetches and finds and their rates per second, and the
+     * total and average size of the values.
+     *
+     * @return one line per variable
+     */
+    String[] getVariables();
+
+    /**
+     * Sets the traffic counters back to zero.
+     */
+    void resetCounters();
+
+    /**
+     * Describes the operation in progress on this workspace, if it's
+     * waiting for a value.
+     *
+     * @return description, or an empty string
+     */
+    String dumpWaiters();
+}
@@ -0,0 +1,165 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The MBean of a NetWorkSpace, which also counts the traffic of each
+ * of its variables.  It's only created when the <code>jmx</code>
+ * option is set, so that the counting costs nothing otherwise.
+ */
+class NwsWorkSpaceMonitor implements NwsWorkSpaceMBean {
+    private final String wsName;
+    private final NwsServer server;
+    private final ConcurrentHashMap<String, Traffic> variables =
+            new ConcurrentHashMap<String, Traffic>();
+    private volatile long since = System.nanoTime();
+
+    /**
+     * The traffic of a variable.
+     */
+    private static final class Traffic {
+        final AtomicLong stores = new AtomicLong();
+        final AtomicLong fetches = new AtomicLong();
+        final AtomicLong finds = new AtomicLong();
+        final AtomicLong bytesStored = new AtomicLong();
+        final AtomicLong bytesRetrieved = new AtomicLong();
+    }
+
+    NwsWorkSpaceMonitor(String wsName, NwsServer server) {
+        this.wsName = wsName;
+        this.server = server;
+    }
+
+    /**
+     * Counts a value stored.
+     *
+     * @param varname name of the variable
+     * @param bytes size of the value as sent
+     */
+    void stored(String varname, int bytes) {
+        Traffic t = traffic(varname);
+        t.stores.incrementAndGet();
+        t.bytesStored.addAndGet(bytes);
+    }
+
+    /**
+     * Counts a value fetched or found.
+     *
+     * @param varname name of the variable
+     * @param fetch true if the value was removed
+     * @param bytes size of the value as received
+     */
+    void retrieved(String varname, boolean fetch, int bytes) {
+        Traffic t = traffic(varname);
+        if (fetch)
+            t.fetches.incrementAndGet();
+        else
+            t.finds.incrementAndGet();
+        t.bytesRetrieved.addAndGet(bytes);
+    }
+
+    private Traffic traffic(String varname) {
+        Traffic t = variables.get(varname);
+        if (t == null) {
+            Traffic n = new Traffic();
+            t = variables.putIfAbsent(varname, n);
+            if (t == null)
+                t = n;
+        }
+        return t;
+    }
+
+    public String getName() {
+        return wsName;
+    }
+
+    public int getBlockedWaiters() {
+        return wsName.equals(server.pendingWorkspace()) &&
+               server.describePending(true) != null ? 1 : 0;
+    }
+
+    public long getStores() {
+        long n = 0;
+        for (Traffic t: variables.values())
+            n += t.stores.get();
+        return n;
+    }
+
+    public long getRetrievals() {
+        long n = 0;
+        for (Traffic t: variables.values())
+            n += t.fetches.get() + t.finds.get();
+        return n;
+    }
+
+    public long getBytesStored() {
+        long n = 0;
+        for (Traffic t: variables.values())
+            n += t.bytesStored.get();
+        return n;
+    }
+
+    public long getBytesRetrieved() {
+        long n = 0;
+        for (Traffic t: variables.values())
+            n += t.bytesRetrieved.get();
+        return n;
+    }
+
+    public String[] getVariables() {
+        double secs = Math.max(1e-3, (System.nanoTime() - since) / 1e9);
+        TreeMap<String, Traffic> sorted = new TreeMap<String, Traffic>(variables);
+        ArrayList<String> lines = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, Traffic> e: sorted.entrySet()) {
+            Traffic t = e.getValue();
+            long stores = t.stores.get();
+            long fetches = t.fetches.get();
+            long finds = t.finds.get();
+            long stored = t.bytesStored.get();
+            long retrieved = t.bytesRetrieved.get();
+            long retrievals = fetches + finds;
+            lines.add(e.getKey() +
+                    ": stores=" + stores + " (" + rate(stores, secs) + "/s)" +
+                    " fetches=" + fetches + " (" + rate(fetches, secs) + "/s)" +
+                    " finds=" + finds + " (" + rate(finds, secs) + "/s)" +
+                    " stored=" + stored + " (avg " + (stores == 0 ? 0 : stored / stores) + ")" +
+                    " retrieved=" + retrieved +
+                    " (avg " + (retrievals == 0 ? 0 : retrieved / retrievals) + ")");
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private static long rate(long n, double secs) {
+        return Math.round(n / secs);
+    }
+
+    public void resetCounters() {
+        variables.clear();
+        since = System.nanoTime();
+    }
+
+    public String dumpWaiters() {
+        String pending = server.describePending(true);
+        return pending == null || !wsName.equals(server.pendingWorkspace()) ? "" : pending;
+    }
+}
@@ -0,0 +1,144 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs a parallel map as chunks on the workers of a task farm, using
+ * guided self-scheduling: each chunk takes a share of the remaining
+ * elements, so the first chunks are large and they shrink toward the
+ * tail, which keeps the workers finishing at about the same time.
+ * Once the time per element has been measured, chunks are never made
+ * so small that a round trip to the server would dominate their run
+ * time.
+ */
+class ParallelMap<T, R> {
+    // a chunk should take at least this many round trips to run
+    private final static int OVERHEAD_FACTOR = 20;
+    // chunks in flight per worker
+    private final static int CHUNKS_PER_WORKER = 2;
+
+    private final NetWorkSpace ws;
+    private final String taskVar;
+    private final String resultVar;
+    private final List<T> input;
+    private final NwsMapper<T, R> fn;
+    private final int workers;
+
+    private final HashMap<Long, Integer> starts = new HashMap<Long, Integer>();
+    private long nextId = 0;
+    private long rtt;
+    private long mappedNanos = 0;
+    private long mappedElements = 0;
+
+    ParallelMap(NetWorkSpace ws, String name, List<T> input, NwsMapper<T, R> fn, int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("number of workers must be positive");
+        this.ws = ws;
+        this.taskVar = name + ".tasks";
+        this.resultVar = name + ".results." + Long.toHexString(new Random().nextLong());
+        this.input = input;
+        this.fn = fn;
+        this.workers = workers;
+    }
+
+    List<R> run() throws NwsException {
+        int n = input.size();
+        ArrayList<R> output = new ArrayList<R>(n);
+        for (int i = 0; i < n; i++)
+            output.add(null);
+        if (n == 0)
+            return output;
+
+        measureRoundTrip();
+
+        int next = 0;
+        int outstanding = 0;
+        int maxOutstanding = CHUNKS_PER_WORKER * workers;
+        try {
+            while (next < n || outstanding > 0) {
+                while (next < n && outstanding < maxOutstanding) {
+                    int size = chunkSize(n - next);
+                    send(next, size);
+                    next += size;
+                    outstanding++;
+                }
+
+                Object v = ws.fetch(resultVar);
+                if (v instanceof NwsExecutorService.Result) {
+                    receive((NwsExecutorService.Result) v, output);
+                    outstanding--;
+                } else {
+                    for (Object r: (List<?>) v) {
+                        receive((NwsExecutorService.Result) r, output);
+                        outstanding--;
+                    }
+                }
+            }
+        } finally {
+            ws.deleteVar(resultVar);
+        }
+        return output;
+    }
+
+    /**
+     * Times a cheap operation, taking the best of a few tries.
+     */
+    private void measureRoundTrip() throws NwsException {
+        rtt = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            ws.findTry(resultVar);
+            rtt = Math.min(rtt, System.nanoTime() - start);
+        }
+    }
+
+    int chunkSize(int remaining) {
+        int size = (remaining + CHUNKS_PER_WORKER * workers - 1) / (CHUNKS_PER_WORKER * workers);
+        if (mappedElements > 0 && mappedNanos > 0) {
+            double perElement = (double) mappedNanos / mappedElements;
+            size = (int) Math.max(size, Math.min(remaining, Math.ceil(OVERHEAD_FACTOR * rtt / perElement)));
+        }
+        return Math.max(1, Math.min(size, remaining));
+    }
+
+    private void send(int start, int size) throws NwsException {
+        long id = nextId++;
+        ArrayList<T> elements = new ArrayList<T>(input.subList(start, start + size));
+        starts.put(id, start);
+        ws.store(taskVar, new NwsExecutorService.Task(id, resultVar,
+                NetWorkSpace.serialize(new MapChunk<T, R>(fn, elements))));
+    }
+
+    private void receive(NwsExecutorService.Result r, ArrayList<R> output) throws NwsException {
+        if (r.error != null)
+            throw new NwsOperationException("parallel map task failed", r.error);
+
+        // the worker ran our chunk, so the results have our type
+        @SuppressWarnings("unchecked")
+        MapChunk.Output<R> out = (MapChunk.Output<R>) NetWorkSpace.deserialize(r.value);
+        int start = starts.remove(r.id);
+        for (int i = 0; i < out.results.size(); i++)
+            output.set(start + i, out.results.get(i));
+        mappedNanos += out.nanos;
+        mappedElements += out.results.size();
+    }
+}
@@ -0,0 +1,411 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A workspace whose variables are spread over several NWS servers.
+ * The workspace is opened on every server, and each variable lives on
+ * the server chosen for its name by consistent hashing, so the load of
+ * a busy workspace is shared by all the servers.  Apart from the
+ * listing of variables, which is merged from all the servers, this
+ * behaves exactly like a <code>NetWorkSpace</code>, and can be used
+ * wherever one is expected.
+ * <p>
+ * Servers can be added with <code>addServer</code>.  Only the variables
+ * that hash to the new server are moved, which is about 1/n of them.
+ * <p>
+ * There is no single server behind a sharded workspace, so
+ * <code>getNwsServer()</code> isn't supported; use
+ * <code>getNwsServer(varname)</code> instead.
+ */
+public class ShardedNetWorkSpace extends NetWorkSpace {
+    private final NwsOptions opts;
+    private final CopyOnWriteArrayList<NetWorkSpace> shards =
+            new CopyOnWriteArrayList<NetWorkSpace>();
+    // replaced, never changed, when a server is added
+    private volatile HashRing<NetWorkSpace> ring = new HashRing<NetWorkSpace>();
+
+    /**
+     * Create a sharded workspace with the specified name on a list of
+     * servers, each given as "host:port", or just "host" to use the
+     * default port.
+     *
+     * @param wsName workspace name
+     * @param servers list of servers
+     * @exception NwsException
+     */
+    public ShardedNetWorkSpace(String wsName, String[] servers) throws NwsException {
+        this(wsName, servers, new NwsOptions());
+    }
+
+    /**
+     * Create a sharded workspace with the specified name on a list of
+     * servers, each given as "host:port", or just "host" to use the
+     * default port.  The host and port of the NwsOptions object are
+     * ignored.
+     *
+     * @param wsName workspace name
+     * @param servers list of servers
+     * @param opts NwsOptions object
+     * @exception NwsException
+     */
+    public ShardedNetWorkSpace(String wsName, String[] servers, NwsOptions opts)
+                throws NwsException {
+        super(wsName, (NwsServer) null);
+        if (servers.length == 0)
+            throw new IllegalArgumentException("no servers specified");
+        this.opts = opts;
+
+        try {
+            for (int i = 0; i < servers.length; i++) {
+                String s = servers[i];
+                int colon = s.lastIndexOf(':');
+                if (colon < 0)
+                    addShard(s, NwsServer.DEFAULT_PORT);
+                else
+                    addShard(s.substring(0, colon), Integer.parseInt(s.substring(colon + 1)));
+            }
+        } catch (NwsException e) {
+            closeShards();
+            throw e;
+        }
+    }
+
+    private NetWorkSpace addShard(String host, int port) throws NwsException {
+        NwsOptions o = opts.copy();
+        o.host = host;
+        o.port = port;
+        o.server = null;
+        o.space = null;
+        NetWorkSpace shard = new NetWorkSpace(curWs, o);
+        shards.add(shard);
+        ring = ring.with(host + ":" + port, shard);
+        return shard;
+    }
+
+    /**
+     * Adds a server, and moves the variables that now belong to it,
+     * with their mode and capacity.  Values are moved with
+     * <code>fetchTry</code> and <code>store</code>, so this should be
+     * done while the moved variables are idle.
+     *
+     * @param host server host name
+     * @param port server port number
+     * @exception NwsException
+     */
+    public synchronized void addServer(String host, int port) throws NwsException {
+        NetWorkSpace shard = addShard(host, port);
+
+        for (NetWorkSpace old: shards) {
+            if (old == shard)
+                continue;
+
+            // the listing has to be read before anything is moved
+            ArrayList<VariableInfo> moving = new ArrayList<VariableInfo>();
+            for (Iterator<VariableInfo> it = old.listVariables(); it.hasNext(); ) {
+                VariableInfo var = it.next();
+                if (ring.get(var.getName()) == shard)
+                    moving.add(var);
+            }
+            for (VariableInfo var: moving)
+                move(old, shard, var.getName(), var.getMode());
+        }
+    }
+
+    private static void move(NetWorkSpace from, NetWorkSpace to, String varname, String mode)
+                throws NwsException {
+        int capacity = 0;
+        if (from.getNwsServer().supports("bounded vars"))
+            capacity = (int) from.aggregate(varname, CAPACITY);
+        if (capacity > 0)
+            to.declare(varname, mode, capacity);
+        else
+            to.declare(varname, mode);
+
+        ArrayList<Object> values = new ArrayList<Object>();
+        Object v;
+        while ((v = from.fetchTry(varname)) != null)
+            values.add(v);
+
+        // lifo variables hand out their values newest first
+        if (LIFO.equals(mode)) {
+            for (int i = values.size() - 1; i >= 0; i--)
+                to.store(varname, values.get(i));
+        } else {
+            for (Object x: values)
+                to.store(varname, x);
+        }
+        from.deleteVar(varname);
+    }
+
+    /**
+     * Returns the NwsServer holding the specified variable.
+     *
+     * @param varname name of the variable
+     * @return NwsServer holding the variable
+     */
+    public NwsServer getNwsServer(String varname) {
+        return ring.get(varname).getNwsServer();
+    }
+
+    /**
+     * Throws an UnsupportedOperationException, since the variables are
+     * on several servers.
+     *
+     * @see ShardedNetWorkSpace#getNwsServer(String)
+     */
+    public NwsServer getNwsServer() {
+        throw new UnsupportedOperationException(
+                "a sharded workspace has no single server; use getNwsServer(varname)");
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object
+     */
+    public String toString() {
+        return "ShardedNetWorkSpace '" + curWs + "' [" + shards.size() + " servers]";
+    }
+
+    /**
+     * Closes the connections to all of the servers.
+     *
+     * @exception NwsException
+     */
+    public void close() throws NwsException {
+        NwsException first = closeShards();
+        if (first != null)
+            throw first;
+    }
+
+    private NwsException closeShards() {
+        NwsException first = null;
+        for (NetWorkSpace shard: shards) {
+            try {
+                shard.close();
+            } catch (NwsException e) {
+                if (first == null)
+                    first = e;
+            }
+        }
+        return first;
+    }
+
+    public void declare(String varname, String mode) throws NwsException {
+        ring.get(varname).declare(varname, mode);
+    }
+
+    public void declare(String varname, String mode, int capacity) throws NwsException {
+        ring.get(varname).declare(varname, mode, capacity);
+    }
+
+    public void deleteVar(String varname) throws NwsException {
+        ring.get(varname).deleteVar(varname);
+    }
+
+    public Object fetch(String varname) throws NwsException {
+        return ring.get(varname).fetch(varname);
+    }
+
+    public Object fetch(String varname, long timeout, TimeUnit unit) throws NwsException {
+        return ring.get(varname).fetch(varname, timeout, unit);
+    }
+
+    public Object fetchTry(String varname, Object missing) throws NwsException {
+        return ring.get(varname).fetchTry(varname, missing);
+    }
+
+    public Object find(String varname) throws NwsException {
+        return ring.get(varname).find(varname);
+    }
+
+    public Object find(String varname, long timeout, TimeUnit unit) throws NwsException {
+        return ring.get(varname).find(varname, timeout, unit);
+    }
+
+    public Object findTry(String varname, Object missing) throws NwsException {
+        return ring.get(varname).findTry(varname, missing);
+    }
+
+    /**
+     * Returns and removes a value of the first of several variables to
+     * have one.  This waits on the server if all the variables live on
+     * the same one, and polls them otherwise.
+     *
+     * @param varnames names of the variables
+     * @return value, and the name of the variable it came from
+     * @exception NwsException
+     */
+    public NwsNamedValue fetchAny(String... varnames) throws NwsException {
+        NetWorkSpace shard = commonShard(varnames);
+        return shard != null ? shard.fetchAny(varnames) : pollAny(varnames, true);
+    }
+
+    /**
+     * Returns a value of the first of several variables to have one.
+     * This waits on the server if all the variables live on the same
+     * one, and polls them otherwise.
+     *
+     * @param varnames names of the variables
+     * @return value, and the name of the variable it came from
+     * @exception NwsException
+     */
+    public NwsNamedValue findAny(String... varnames) throws NwsException {
+        NetWorkSpace shard = commonShard(varnames);
+        return shard != null ? shard.findAny(varnames) : pollAny(varnames, false);
+    }
+
+    private NetWorkSpace commonShard(String[] varnames) {
+        if (varnames.length == 0)
+            throw new IllegalArgumentException("no variables specified");
+        HashRing<NetWorkSpace> r = ring;
+        NetWorkSpace shard = r.get(varnames[0]);
+        for (int i = 1; i < varnames.length; i++)
+            if (r.get(varnames[i]) != shard)
+                return null;
+        return shard;
+    }
+
+    public void store(String varname, Object value) throws NwsException {
+        ring.get(varname).store(varname, value);
+    }
+
+    public boolean storeTry(String varname, Object value) throws NwsException {
+        return ring.get(varname).storeTry(varname, value);
+    }
+
+    StoreRequest prepareStore(String varname, Object value) throws NwsException {
+        return ring.get(varname).prepareStore(varname, value);
+    }
+
+    /**
+     * Performs several stores, as a batch per server.  The stores to
+     * each server keep their order.
+     *
+     * @param requests prepared store requests
+     * @exception NwsException
+     */
+    void storeAll(List<StoreRequest> requests) throws NwsException {
+        HashRing<NetWorkSpace> r = ring;
+        LinkedHashMap<NetWorkSpace, List<StoreRequest>> batches =
+                new LinkedHashMap<NetWorkSpace, List<StoreRequest>>();
+        for (StoreRequest req: requests) {
+            NetWorkSpace shard = r.get(req.varname);
+            List<StoreRequest> batch = batches.get(shard);
+            if (batch == null) {
+                batch = new ArrayList<StoreRequest>();
+                batches.put(shard, batch);
+            }
+            batch.add(req);
+        }
+        for (Map.Entry<NetWorkSpace, List<StoreRequest>> e: batches.entrySet())
+            e.getKey().storeAll(e.getValue());
+    }
+
+    public long fetchAndAdd(String varname, long delta) throws NwsException {
+        return ring.get(varname).fetchAndAdd(varname, delta);
+    }
+
+    public boolean compareAndSet(String varname, Object expect, Object update)
+            throws NwsException {
+        return ring.get(varname).compareAndSet(varname, expect, update);
+    }
+
+    public Object fetchAndStore(String varname, Object value) throws NwsException {
+        return ring.get(varname).fetchAndStore(varname, value);
+    }
+
+    public long aggregate(String varname, String op) throws NwsException {
+        return ring.get(varname).aggregate(varname, op);
+    }
+
+    protected IValue iretrieve(String varname, String op, byte[] varId, int valIndex)
+            throws NwsException {
+        return ring.get(varname).iretrieve(varname, op, varId, valIndex);
+    }
+
+    /**
+     * Lists the variables of the specified workspace on all of the servers.
+     *
+     * @param wsname workspace name
+     * @return listing of variables
+     * @exception NwsException
+     */
+    public String listVars(String wsname) throws NwsException {
+        StringBuilder sb = new StringBuilder();
+        for (NetWorkSpace shard: shards) {
+            String listing = shard.listVars(wsname);
+            if (listing.length() == 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(listing);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Lists the variables of the specified workspace on all of the
+     * servers, one server after another.
+     *
+     * @param wsname workspace name
+     * @param prefix variable name prefix, or null for all variables
+     * @return iterator over the variables
+     * @exception NwsException
+     */
+    public Iterator<VariableInfo> listVariables(final String wsname, final String prefix)
+                throws NwsException {
+        final Iterator<NetWorkSpace> servers = new ArrayList<NetWorkSpace>(shards).iterator();
+        final Iterator<VariableInfo> first = servers.next().listVariables(wsname, prefix);
+        return new Iterator<VariableInfo>() {
+            private Iterator<VariableInfo> current = first;
+
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (!servers.hasNext())
+                        return false;
+                    try {
+                        current = servers.next().listVariables(wsname, prefix);
+                    } catch (NwsException e) {
+                        throw new IllegalStateException("listing failed", e);
+                    }
+                }
+                return true;
+            }
+
+            public VariableInfo next() {
+                if (!hasNext())
+                    throw new NoSuchElementException("no more records");
+                return current.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,34 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+/**
+ * A serialized store, as sent by <code>NetWorkSpace.storeAll</code>,
+ * and its outcome.
+ */
+final class StoreRequest {
+    final String varname;
+    final int desc;
+    final byte[] data;
+    int status = -1;
+
+    StoreRequest(String varname, int desc, byte[] data) {
+        this.varname = varname;
+        this.desc = desc;
+        this.data = data;
+    }
+}
@@ -0,0 +1,163 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A queue spread over several fifo workspace variables, or stripes, so
+ * that producers and consumers don't all contend for a single variable.
+ * Values are stored in the stripes round-robin.  Each consumer has a
+ * home stripe, which it fetches from first, and only steals from the
+ * other stripes when its home stripe is empty.  The order of values is
+ * only preserved within a stripe.
+ * <p>
+ * Every process should create its own <code>StripedQueue</code> on its
+ * own NetWorkSpace, using the same name and number of stripes.  The
+ * stripes are variables named <code>name.0</code> through
+ * <code>name.(n-1)</code>.
+ * <p>
+ * A queue can be used from several threads if its NetWorkSpace can,
+ * as one with lanes can.
+ */
+public class StripedQueue<E> {
+    private final NetWorkSpace ws;
+    private final String[] stripes;
+    private final String[] fromHome;
+    private final int home;
+    private final AtomicInteger next;
+
+    /**
+     * Creates a queue with the specified number of stripes, and a home
+     * stripe picked at random.
+     *
+     * @param ws workspace holding the stripes
+     * @param name name of the queue
+     * @param nstripes number of stripes
+     * @exception NwsException
+     */
+    public StripedQueue(NetWorkSpace ws, String name, int nstripes) throws NwsException {
+        this(ws, name, nstripes, new Random().nextInt(nstripes));
+    }
+
+    /**
+     * Creates a queue with the specified number of stripes and home stripe.
+     * Consumers should be given different home stripes, for example
+     * their worker number modulo the number of stripes.
+     *
+     * @param ws workspace holding the stripes
+     * @param name name of the queue
+     * @param nstripes number of stripes
+     * @param home home stripe of this consumer
+     * @exception NwsException
+     */
+    public StripedQueue(NetWorkSpace ws, String name, int nstripes, int home)
+                throws NwsException {
+        if (nstripes < 1)
+            throw new IllegalArgumentException("number of stripes must be positive");
+        if (home < 0 || home >= nstripes)
+            throw new IllegalArgumentException("home stripe out of range: " + home);
+
+        this.ws = ws;
+        this.home = home;
+        this.next = new AtomicInteger(home);
+        stripes = new String[nstripes];
+        for (int i = 0; i < nstripes; i++) {
+            stripes[i] = name + "." + i;
+            ws.declare(stripes[i], NetWorkSpace.FIFO);
+        }
+        fromHome = new String[nstripes];
+        for (int i = 0; i < nstripes; i++)
+            fromHome[i] = stripes[(home + i) % nstripes];
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object
+     */
+    public String toString() {
+        return "StripedQueue '" + stripes[0] + "'.." + stripes.length + " [" + ws.toString() + "]";
+    }
+
+    /**
+     * Returns the number of stripes.
+     *
+     * @return number of stripes
+     */
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns the home stripe of this consumer.
+     *
+     * @return home stripe
+     */
+    public int getHome() {
+        return home;
+    }
+
+    /**
+     * Stores a value in the next stripe.
+     *
+     * @param value value to be stored
+     * @exception NwsException
+     */
+    public void put(E value) throws NwsException {
+        // masked, so the stripe stays in range when the counter wraps
+        int i = next.getAndIncrement() & Integer.MAX_VALUE;
+        ws.store(stripes[i % stripes.length], value);
+    }
+
+    /**
+     * Returns and removes a value, trying the home stripe first and then
+     * the others in turn.  Returns <code>null</code> if all the stripes
+     * are empty.
+     *
+     * @return value, or <code>null</code>
+     * @exception NwsException
+     */
+    public E poll() throws NwsException {
+        for (int i = 0; i < fromHome.length; i++) {
+            Object v = ws.fetchTry(fromHome[i]);
+            if (v != null) {
+                // we can't check what was stored in the stripes
+                @SuppressWarnings("unchecked")
+                E e = (E) v;
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns and removes a value, waiting until one is available if all
+     * the stripes are empty.  The home stripe is still preferred, and
+     * the wait is a single <code>fetchAny</code> over all the stripes.
+     *
+     * @return value
+     * @exception NwsException
+     */
+    public E take() throws NwsException {
+        // we can't check what was stored in the stripes
+        @SuppressWarnings("unchecked")
+        E e = (E) ws.fetchAny(fromHome).getValue();
+        return e;
+    }
+}
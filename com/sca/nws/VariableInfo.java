@@ -0,0 +1,112 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.sca.nws;
+
+/**
+ * A variable, as listed by <code>NetWorkSpace.listVariables</code>.
+ */
+public final class VariableInfo {
+    private final String name;
+    private final long values;
+    private final int fetchers;
+    private final int finders;
+    private final String mode;
+
+    VariableInfo(String name, long values, int fetchers, int finders, String mode) {
+        this.name = name;
+        this.values = values;
+        this.fetchers = fetchers;
+        this.finders = finders;
+        this.mode = mode;
+    }
+
+    /**
+     * Returns the name of the variable.
+     *
+     * @return name of the variable
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of values in the variable.
+     *
+     * @return number of values
+     */
+    public long getValues() {
+        return values;
+    }
+
+    /**
+     * Returns the number of clients waiting to fetch a value.
+     *
+     * @return number of waiting fetchers
+     */
+    public int getFetchers() {
+        return fetchers;
+    }
+
+    /**
+     * Returns the number of clients waiting to find a value.
+     *
+     * @return number of waiting finders
+     */
+    public int getFinders() {
+        return finders;
+    }
+
+    /**
+     * Returns the mode of the variable, such as "fifo".
+     *
+     * @return mode of the variable
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object
+     */
+    public String toString() {
+        return name + "\t" + values + "\t" + fetchers + "\t" + finders + "\t" + mode;
+    }
+
+    /**
+     * Listing of the variables of a workspace, one per line.
+     */
+    static class Listing extends NwsListing<VariableInfo> {
+        Listing(NwsServer server, int size, String prefix) {
+            super(server, size, prefix, 0);
+        }
+
+        VariableInfo parse() {
+            int e0 = fieldEnd(0);
+            int e1 = fieldEnd(e0 + 1);
+            int e2 = fieldEnd(e1 + 1);
+            int e3 = fieldEnd(e2 + 1);
+            if (e3 >= length)
+                throw new IllegalStateException("malformed listing: " + string(0, length));
+            return new VariableInfo(string(0, e0), number(e0 + 1, e1),
+                    (int) number(e1 + 1, e2), (int) number(e2 + 1, e3),
+                    string(e3 + 1, length));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+
+package com.sca.nws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A workspace, as listed by <code>NwsServer.listWorkspaces</code>.
+ */
+public final class WorkspaceInfo {
+    private final String name;
+    private final String owner;
+    private final boolean persistent;
+    private final boolean mine;
+    private final int variableCount;
+    private final String variables;
+
+    WorkspaceInfo(String name, String owner, boolean persistent, boolean mine,
+                int variableCount, String variables) {
+        this.name = name;
+        this.owner = owner;
+        this.persistent = persistent;
+        this.mine = mine;
+        this.variableCount = variableCount;
+        this.variables = variables;
+    }
+
+    /**
+     * Returns the name of the workspace.
+     *
+     * @return name of the workspace
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the owner of the workspace.
+     *
+     * @return owner of the workspace
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Returns true if the workspace outlives its owner.
+     *
+     * @return true if the workspace is persistent
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Returns true if the workspace is owned by the connection that
+     * listed it.
+     *
+     * @return true if owned by this connection
+     */
+    public boolean isMine() {
+        return mine;
+    }
+
+    /**
+     * Returns the number of variables in the workspace.
+     *
+     * @return number of variables
+     */
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * Returns the names of the variables in the workspace.  The list is
+     * only split out of the listing when asked for.
+     *
+     * @return names of the variables
+     */
+    public List<String> getVariables() {
+        if (variables.length() == 0)
+            return new ArrayList<String>();
+        return new ArrayList<String>(Arrays.asList(variables.split(",")));
+    }
+
+    /**
+     * Returns a string representation of this object.
+     *
+     * @return a string representation of this object
+     */
+    public String toString() {
+        return (mine ? ">" : " ") + name + "\t" + owner + "\t" +
+                (persistent ? "True" : "False") + "\t" + variableCount + "\t" + variables;
+    }
+
+    /**
+     * Listing of the workspaces of a server, one per line, each marked
+     * with '>' if it's owned by the listing connection.
+     */
+    static class Listing extends NwsListing<WorkspaceInfo> {
+        Listing(NwsServer server, int size, String prefix) {
+            super(server, size, prefix, 1);
+        }
+
+        WorkspaceInfo parse() {
+            int e0 = fieldEnd(1);
+            int e1 = fieldEnd(e0 + 1);
+            int e2 = fieldEnd(e1 + 1);
+            int e3 = fieldEnd(e2 + 1);
+            if (e3 > length)
+                throw new IllegalStateException("malformed listing: " + string(0, length));
+            return new WorkspaceInfo(string(1, e0), string(e0 + 1, e1),
+                    string(e1 + 1, e2).equals("True"), line[0] == '>',
+                    (int) number(e2 + 1, e3), e3 < length ? string(e3 + 1, length) : "");
+        }
+    }
+}
@@ -0,0 +1,343 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serves the requests of one client connection.  Requests are handled
+ * one at a time, in order, so a client may pipeline requests.
+ */
+final class Connection implements Runnable {
+    private static final String HANDSHAKE = "1112";
+    private static final String EXTENDED = "2224";
+    private static final String BINARY_REQUEST = "BIN2";
+    private static final String TEXT_REQUEST = "TXT2";
+    private static final byte[] NO_VALUE = new byte[0];
+
+    // retrieval flag, and the descriptor bit marking a reply that
+    // carries the digest of the value rather than the value itself
+    private static final int ACCEPT_DIGEST = 1;
+    private static final int DIGEST_REF = 0x00000004;
+
+    // the number of arguments, including the operation, that each
+    // operation needs; trailing optional arguments aren't counted
+    private static final Map<String, Integer> ARG_COUNTS = new HashMap<String, Integer>();
+
+    static {
+        String[] ops = {
+            "fetch content", "2", "store", "5", "store try", "5",
+            "fetch", "3", "find", "3", "fetchTry", "3", "findTry", "3",
+            "ifetch", "5", "ifind", "5", "ifetchTry", "5", "ifindTry", "5",
+            "fetch any", "3", "find any", "3", "store digest", "5",
+            "store content", "6", "fetch add", "5", "compare set", "7",
+            "fetch store", "5", "aggregate", "4", "declare var", "4",
+            "delete var", "3", "open ws", "5", "use ws", "5", "delete ws", "2",
+            "list vars", "2", "list wss", "1", "mktemp ws", "2",
+        };
+        for (int i = 0; i < ops.length; i += 2)
+            ARG_COUNTS.put(ops[i], Integer.valueOf(ops[i + 1]));
+    }
+
+    private final NwsEngine engine;
+    private final Socket socket;
+    private final Waiter waiter;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Framing framing;
+    private Value pinned = null;
+
+    Connection(NwsEngine engine, Socket socket) {
+        this.engine = engine;
+        this.socket = socket;
+        this.waiter = new Waiter(engine.lock.newCondition(), this);
+    }
+
+    /**
+     * Returns a description of the peer, used as the workspace owner label.
+     */
+    String peer() {
+        return socket.getInetAddress().getHostName();
+    }
+
+    /**
+     * Returns true if the client has hung up.  Only called by the engine
+     * while this connection's thread is blocked in it, so nothing else is
+     * reading the socket, and a pipelined request is left to be read.
+     */
+    boolean peerClosed() {
+        try {
+            if (in.available() > 0)
+                return false;
+            socket.setSoTimeout(1);
+            try {
+                in.mark(1);
+                if (in.read() == -1)
+                    return true;
+                in.reset();
+                return false;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    public void run() {
+        try {
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            handshake();
+
+            byte[][] args;
+            while ((args = framing.readRequest()) != null) {
+                if (args.length == 0)
+                    throw new IOException("empty request");
+                dispatch(new String(args[0]), args);
+                // the replies to pipelined requests go out together
+                if (in.available() == 0)
+                    framing.flush();
+            }
+        } catch (IOException e) {
+            // the client went away, or sent garbage
+        } finally {
+            close();
+            engine.disconnected(this);
+        }
+    }
+
+    /**
+     * Answers the client handshake.  Extended clients follow it with a
+     * negotiation request, while older clients go straight to their first
+     * request, whose leading digits can't be confused with one.
+     */
+    private void handshake() throws IOException {
+        byte[] b = new byte[4];
+        in.readFully(b);
+        if (!new String(b).equals(HANDSHAKE))
+            throw new IOException("unsupported protocol");
+        out.writeBytes(EXTENDED);
+        out.flush();
+
+        framing = new Framing.Text(in, out, engine.getMaxArgLength());
+        in.mark(4);
+        in.readFully(b);
+        String req = new String(b);
+        if (req.equals(BINARY_REQUEST) || req.equals(TEXT_REQUEST)) {
+            String[] caps = NwsEngine.capabilities();
+            out.writeBytes(pad(caps.length, 4));
+            for (int i = 0; i < caps.length; i++) {
+                out.writeBytes(pad(caps[i].length(), 20));
+                out.writeBytes(caps[i]);
+            }
+            out.flush();
+            if (req.equals(BINARY_REQUEST))
+                framing = new Framing.Binary(in, out, engine.getMaxArgLength());
+        } else {
+            in.reset();
+        }
+    }
+
+    private void dispatch(String op, byte[][] args) throws IOException {
+        Integer count = ARG_COUNTS.get(op);
+        if (count == null)
+            throw new IOException("unknown operation: " + op);
+        if (args.length < count.intValue())
+            throw new IOException("too few arguments for " + op + ": " + args.length);
+
+        // the value behind the last digest reply stays available
+        // until the client's next request
+        if (op.equals("fetch content")) {
+            fetchContent(args[1]);
+            return;
+        }
+        pinned = null;
+
+        if (op.equals("store") || op.equals("store try")) {
+            Value v = new Value((int) Framing.parseNumber(args[3]), args[4]);
+            framing.writeStatus(engine.store(waiter, str(args[1]), str(args[2]), v,
+                    op.equals("store")));
+        } else if (op.equals("fetch") || op.equals("find") ||
+                   op.equals("fetchTry") || op.equals("findTry")) {
+            engine.retrieve(waiter, str(args[1]), str(args[2]),
+                    op.startsWith("fetch"), !op.endsWith("Try"), timeout(args, 4));
+            writeRetrieval(false, flags(args, 3));
+        } else if (op.equals("ifetch") || op.equals("ifind") ||
+                   op.equals("ifetchTry") || op.equals("ifindTry")) {
+            engine.iretrieve(waiter, str(args[1]), str(args[2]),
+                    op.startsWith("ifetch"), !op.endsWith("Try"),
+                    args[3], Framing.parseNumber(args[4]));
+            writeRetrieval(true, flags(args, 5));
+        } else if (op.equals("fetch any") || op.equals("find any")) {
+            String[] varnames = new String[args.length - 3];
+            for (int i = 0; i < varnames.length; i++)
+                varnames[i] = str(args[i + 3]);
+            engine.retrieveAny(waiter, str(args[1]), varnames, op.startsWith("fetch"));
+            writeRetrieval(false, flags(args, 2));
+            framing.writeValue(waiter.source == null ? NO_VALUE : waiter.source.name.getBytes());
+        } else if (op.equals("store digest")) {
+            framing.writeStatus(engine.storeDigest(waiter, str(args[1]), str(args[2]),
+                    (int) Framing.parseNumber(args[3]), args[4]));
+        } else if (op.equals("store content")) {
+            if (ContentStore.verify(args[4], args[5]))
+                framing.writeStatus(engine.storeContent(waiter, str(args[1]), str(args[2]),
+                        (int) Framing.parseNumber(args[3]), args[4], args[5]));
+            else
+                framing.writeStatus(1);
+        } else if (op.equals("fetch add")) {
+            String old = engine.fetchAdd(str(args[1]), str(args[2]),
+                    (int) Framing.parseNumber(args[3]), parseLong(args[4]));
+            framing.writeStatus(old == null ? 1 : 0);
+            framing.writeValue(old == null ? NO_VALUE : old.getBytes());
+        } else if (op.equals("compare set")) {
+            int expDesc = (int) Framing.parseNumber(args[3]);
+            Value expect = expDesc == 0 ? null : new Value(expDesc, args[4]);
+            framing.writeStatus(engine.compareSet(str(args[1]), str(args[2]), expect,
+                    new Value((int) Framing.parseNumber(args[5]), args[6])));
+        } else if (op.equals("fetch store")) {
+            engine.fetchStore(waiter, str(args[1]), str(args[2]),
+                    new Value((int) Framing.parseNumber(args[3]), args[4]));
+            writeRetrieval(false, 0);
+        } else if (op.equals("aggregate")) {
+            Long result = engine.aggregate(str(args[1]), str(args[2]), str(args[3]));
+            framing.writeStatus(result == null ? 1 : 0);
+            framing.writeValue(result == null ? NO_VALUE : result.toString().getBytes());
+        } else if (op.equals("declare var")) {
+            int capacity = args.length > 4 ? (int) Framing.parseNumber(args[4]) : -1;
+            framing.writeStatus(engine.declareVar(str(args[1]), str(args[2]), str(args[3]),
+                    capacity));
+        } else if (op.equals("delete var")) {
+            framing.writeStatus(engine.deleteVar(str(args[1]), str(args[2])));
+        } else if (op.equals("open ws")) {
+            framing.writeStatus(engine.openWs(this, str(args[1]), str(args[2]),
+                    str(args[3]).equals("yes"), str(args[4]).equals("yes")));
+        } else if (op.equals("use ws")) {
+            framing.writeStatus(engine.useWs(str(args[1]), str(args[4]).equals("yes")));
+        } else if (op.equals("delete ws")) {
+            framing.writeStatus(engine.deleteWs(str(args[1])));
+        } else if (op.equals("list vars")) {
+            writeListing(engine.listVars(str(args[1])));
+        } else if (op.equals("list wss")) {
+            writeListing(engine.listWss(this));
+        } else if (op.equals("mktemp ws")) {
+            writeListing(engine.mktempWs(str(args[1])));
+        } else {
+            throw new IOException("unknown operation: " + op);
+        }
+    }
+
+    private void writeRetrieval(boolean iterator, int flags) throws IOException {
+        Waiter w = waiter;
+        Value v = w.value;
+        byte[] varId = w.source == null ? NO_VALUE : w.source.id;
+        long index = v == null ? 0 : v.index;
+        boolean ref = v != null && v.digest != null && (flags & ACCEPT_DIGEST) != 0;
+
+        framing.writeStatus(w.status);
+        framing.writeDescriptor(v == null ? 0 : ref ? v.desc | DIGEST_REF : v.desc);
+        if (iterator) {
+            framing.writeVarId(varId);
+            framing.writeIndex(index);
+        } else {
+            framing.writeCookie(varId, index);
+        }
+        if (ref) {
+            framing.writeValue(v.digest);
+            pinned = v;
+        } else {
+            framing.writeValue(v == null ? NO_VALUE : v.data);
+        }
+    }
+
+    /**
+     * Replies with the content for a digest, for a client that got a
+     * digest reply but doesn't have the content cached.
+     */
+    private void fetchContent(byte[] digest) throws IOException {
+        byte[] data;
+        if (pinned != null && Arrays.equals(pinned.digest, digest))
+            data = pinned.data;
+        else
+            data = engine.fetchContent(digest);
+        framing.writeStatus(data == null ? 1 : 0);
+        framing.writeValue(data == null ? NO_VALUE : data);
+    }
+
+    /**
+     * Returns the optional flags argument of a retrieval.
+     */
+    private static int flags(byte[][] args, int i) throws IOException {
+        return args.length > i ? (int) Framing.parseNumber(args[i]) : 0;
+    }
+
+    private static long parseLong(byte[] b) throws IOException {
+        try {
+            return Long.parseLong(new String(b));
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed number in request");
+        }
+    }
+
+    /**
+     * Returns the optional timeout argument of a retrieval, given in
+     * milliseconds, in nanoseconds, or -1 if there is none.
+     */
+    private static long timeout(byte[][] args, int i) throws IOException {
+        if (args.length <= i)
+            return -1;
+        long millis = Framing.parseNumber(args[i]);
+        return millis > Long.MAX_VALUE / 1000000 ? -1 : millis * 1000000;
+    }
+
+    private void writeListing(String s) throws IOException {
+        framing.writeStatus(s == null ? 1 : 0);
+        framing.writeDescriptor(0);
+        framing.writeCookie(NO_VALUE, 0);
+        framing.writeValue(s == null ? NO_VALUE : s.getBytes());
+    }
+
+    private static String str(byte[] b) {
+        return new String(b);
+    }
+
+    private static String pad(int n, int width) {
+        String s = Integer.toString(n);
+        while (s.length() < width)
+            s = "0" + s;
+        return s;
+    }
+}
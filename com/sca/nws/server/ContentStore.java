@@ -0,0 +1,95 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recently stored content, keyed by its SHA-256 digest, so that clients
+ * can store a value by digest alone when the server already holds it.
+ * Least recently used content is forgotten once the total size exceeds
+ * the limit.  Values that refer to forgotten content keep their data,
+ * they just can't be used for deduplication any more.  All methods must
+ * be called with the engine lock held.
+ */
+final class ContentStore {
+    private final LinkedHashMap<String, byte[]> contents =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long limit;
+    private long size = 0;
+
+    ContentStore(long limit) {
+        this.limit = limit;
+    }
+
+    void setLimit(long limit) {
+        this.limit = limit;
+        trim();
+    }
+
+    byte[] get(byte[] digest) {
+        return contents.get(key(digest));
+    }
+
+    /**
+     * Adds content, which the caller must have checked against its digest.
+     */
+    void put(byte[] digest, byte[] data) {
+        if (data.length > limit)
+            return;
+
+        byte[] old = contents.put(key(digest), data);
+        if (old != null)
+            size -= old.length;
+        size += data.length;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, byte[]>> it = contents.entrySet().iterator();
+        while (size > limit && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    private static String key(byte[] digest) {
+        StringBuilder sb = new StringBuilder(2 * digest.length);
+        for (int i = 0; i < digest.length; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(digest[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if the data matches the digest supplied by a client.
+     */
+    static boolean verify(byte[] digest, byte[] data) {
+        try {
+            return MessageDigest.isEqual(digest,
+                    MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the messages of one connection.  Requests are a
+ * list of byte string arguments, and replies are built from a fixed set
+ * of fields whose encoding depends on the protocol.
+ */
+abstract class Framing {
+    /** Maximum number of arguments in a request. */
+    static final int MAX_ARGS = 65536;
+    // arguments longer than this are read as they arrive, rather than
+    // trusting their length to allocate them up front
+    private static final int READ_CHUNK = 1 << 20;
+
+    protected final DataInputStream in;
+    protected final DataOutputStream out;
+    private final int maxLength;
+
+    Framing(DataInputStream in, DataOutputStream out, int maxLength) {
+        this.in = in;
+        this.out = out;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads the arguments of the next request, or returns null if the
+     * connection was closed between requests.
+     */
+    abstract byte[][] readRequest() throws IOException;
+
+    abstract void writeStatus(int status) throws IOException;
+
+    abstract void writeDescriptor(int desc) throws IOException;
+
+    /**
+     * Writes the cookie of a fetch/find reply.
+     */
+    abstract void writeCookie(byte[] varId, long index) throws IOException;
+
+    abstract void writeVarId(byte[] varId) throws IOException;
+
+    abstract void writeIndex(long index) throws IOException;
+
+    abstract void writeValue(byte[] value) throws IOException;
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Reads exactly <code>n</code> bytes.
+     */
+    protected byte[] readN(int n) throws IOException {
+        if (n <= READ_CHUNK) {
+            byte[] b = new byte[n];
+            in.readFully(b);
+            return b;
+        }
+        byte[] b = new byte[READ_CHUNK];
+        int total = 0;
+        while (total < n) {
+            if (total == b.length)
+                b = Arrays.copyOf(b, (int) Math.min(n, 2L * b.length));
+            in.readFully(b, total, b.length - total);
+            total = b.length;
+        }
+        return b;
+    }
+
+    /**
+     * Checks the argument count of a request.
+     */
+    protected static int checkCount(long n) throws IOException {
+        if (n < 0 || n > MAX_ARGS)
+            throw new IOException("too many arguments in request: " + n);
+        return (int) n;
+    }
+
+    /**
+     * Checks the length of an argument of a request.
+     */
+    protected int checkLength(long n) throws IOException {
+        if (n < 0 || n > maxLength)
+            throw new IOException("argument too long in request: " + n);
+        return (int) n;
+    }
+
+    /**
+     * Parses an unsigned decimal number, ignoring the zero padding
+     * used by the text protocol.  Numbers that don't fit in a long are
+     * rejected rather than wrapped around to negative values.
+     */
+    static long parseNumber(byte[] b) throws IOException {
+        long n = 0;
+        for (int i = 0; i < b.length; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9)
+                throw new IOException("malformed number in request");
+            if (n > (Long.MAX_VALUE - d) / 10)
+                throw new IOException("number too large in request");
+            n = n * 10 + d;
+        }
+        return n;
+    }
+
+    /**
+     * The original protocol, which encodes counts as four and lengths
+     * as twenty zero padded decimal digits.
+     */
+    static final class Text extends Framing {
+        private static final byte[] ZEROS = "0000000000000000000000000000000000000000".getBytes();
+
+        Text(DataInputStream in, DataOutputStream out, int maxLength) {
+            super(in, out, maxLength);
+        }
+
+        byte[][] readRequest() throws IOException {
+            int c = in.read();
+            if (c == -1)
+                return null;
+            byte[] count = new byte[4];
+            count[0] = (byte) c;
+            in.readFully(count, 1, 3);
+
+            byte[][] args = new byte[checkCount(parseNumber(count))][];
+            for (int i = 0; i < args.length; i++)
+                args[i] = readN(checkLength(parseNumber(readN(20))));
+            return args;
+        }
+
+        void writeStatus(int status) throws IOException {
+            writePadded(status, 4);
+        }
+
+        void writeDescriptor(int desc) throws IOException {
+            writePadded(desc, 20);
+        }
+
+        void writeCookie(byte[] varId, long index) throws IOException {
+            writeVarId(varId);
+            writeIndex(index);
+        }
+
+        void writeVarId(byte[] varId) throws IOException {
+            if (varId.length == 20)
+                out.write(varId);
+            else
+                out.write(ZEROS, 0, 20);
+        }
+
+        void writeIndex(long index) throws IOException {
+            writePadded(index, 20);
+        }
+
+        void writeValue(byte[] value) throws IOException {
+            writePadded(value.length, 20);
+            out.write(value);
+        }
+
+        private void writePadded(long n, int width) throws IOException {
+            String s = Long.toString(n);
+            out.write(ZEROS, 0, width - s.length());
+            out.writeBytes(s);
+        }
+    }
+
+    /**
+     * The compact binary protocol.  Counts, lengths and indices are
+     * unsigned varints, descriptors are four byte integers, and names
+     * can be interned in a per-connection symbol table.  Each argument
+     * starts with a varint header whose low two bits give its kind.
+     */
+    static final class Binary extends Framing {
+        private static final int ARG_PLAIN = 0;
+        private static final int ARG_DEFINE = 1;
+        private static final int ARG_SYMBOL = 2;
+        private static final int ARG_NUMBER = 3;
+        private static final int MAX_SYMBOLS = 65536;
+
+        private byte[][] symbols = new byte[64][];
+        private int nsymbols = 0;
+
+        Binary(DataInputStream in, DataOutputStream out, int maxLength) {
+            super(in, out, maxLength);
+        }
+
+        byte[][] readRequest() throws IOException {
+            int c = in.read();
+            if (c == -1)
+                return null;
+
+            byte[][] args = new byte[checkCount(readVarint(c))][];
+            for (int i = 0; i < args.length; i++) {
+                long h = readVarint(in.read());
+                long n = h >>> 2;
+                switch ((int) (h & 3)) {
+                case ARG_PLAIN:
+                    args[i] = readN(checkLength(n));
+                    break;
+                case ARG_DEFINE:
+                    args[i] = readN(checkLength(n));
+                    define(args[i]);
+                    break;
+                case ARG_SYMBOL:
+                    if (n >= nsymbols)
+                        throw new IOException("undefined symbol in request");
+                    args[i] = symbols[(int) n];
+                    break;
+                default:
+                    args[i] = Long.toString(n).getBytes();
+                    break;
+                }
+            }
+            return args;
+        }
+
+        void writeStatus(int status) throws IOException {
+            writeVarint(status);
+        }
+
+        void writeDescriptor(int desc) throws IOException {
+            out.writeInt(desc);
+        }
+
+        void writeCookie(byte[] varId, long index) throws IOException {
+            // plain fetch/find replies don't carry a cookie
+        }
+
+        void writeVarId(byte[] varId) throws IOException {
+            writeVarint(varId.length);
+            out.write(varId);
+        }
+
+        void writeIndex(long index) throws IOException {
+            writeVarint(index);
+        }
+
+        void writeValue(byte[] value) throws IOException {
+            writeVarint(value.length);
+            out.write(value);
+        }
+
+        private void define(byte[] sym) throws IOException {
+            if (nsymbols == MAX_SYMBOLS)
+                throw new IOException("symbol table overflow");
+            if (nsymbols == symbols.length) {
+                byte[][] a = new byte[nsymbols * 2][];
+                System.arraycopy(symbols, 0, a, 0, nsymbols);
+                symbols = a;
+            }
+            symbols[nsymbols++] = sym;
+        }
+
+        private long readVarint(int b) throws IOException {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (b == -1)
+                    throw new EOFException();
+                n |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return n;
+                b = in.read();
+            }
+            throw new IOException("malformed varint in request");
+        }
+
+        private void writeVarint(long n) throws IOException {
+            while ((n & ~0x7fL) != 0) {
+                out.write((int) ((n & 0x7f) | 0x80));
+                n >>>= 7;
+            }
+            out.write((int) n);
+        }
+    }
+}
@@ -0,0 +1,794 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An NWS server written in Java.  It speaks the original text protocol,
+ * so it can be used by any NWS client, and the compact binary protocol,
+ * which is negotiated by the Java client during the handshake.
+ * <p>
+ * Each connection is served by its own thread.  The workspaces are
+ * guarded by a single lock, which is released while a client is blocked
+ * in a fetch or find.
+ */
+public class NwsEngine {
+    /** Default port number of the NWS server. */
+    public final static int DEFAULT_PORT = 8765;
+
+    /** Default limit in bytes of the content kept for deduplication. */
+    public final static long DEFAULT_CONTENT_LIMIT = 256L << 20;
+
+    /** Default limit in bytes of a single argument of a request. */
+    public final static int DEFAULT_MAX_ARG_LENGTH = 1 << 30;
+
+    private final static String[] CAPABILITIES = {
+        "store digest", "store content", "fetch content",
+        "fetch add", "compare set", "fetch store", "aggregate", "bounded vars",
+        "fetch any", "find any", "fetch timeout"
+    };
+
+    // descriptor bit marking a value that is a decimal integer
+    private final static int NUMBER = 0x00000008;
+
+    // how often a blocked client is checked for having hung up
+    private final static long CHECK_INTERVAL = 100L * 1000000;
+
+    final ReentrantLock lock = new ReentrantLock();
+    private final HashMap<String, Workspace> workspaces = new HashMap<String, Workspace>();
+    private final HashSet<Connection> connections = new HashSet<Connection>();
+    private final Random random = new Random();
+    private final ContentStore contents = new ContentStore(DEFAULT_CONTENT_LIMIT);
+    private final int requestedPort;
+    private long varCounter = 0;
+    private int tempCounter = 0;
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+    private volatile int maxArgLength = DEFAULT_MAX_ARG_LENGTH;
+
+    /**
+     * Creates a server that will listen on the default port.
+     */
+    public NwsEngine() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * Creates a server that will listen on the specified port.
+     * A port number of zero selects any free port.
+     *
+     * @param port port number
+     */
+    public NwsEngine(int port) {
+        requestedPort = port;
+    }
+
+    /**
+     * Sets the limit on the total size of the content kept for
+     * deduplication.  Values stored by digest are unaffected by it.
+     *
+     * @param limit limit in bytes
+     */
+    public void setContentLimit(long limit) {
+        lock.lock();
+        try {
+            contents.setLimit(limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the limit on the length of a single argument of a request,
+     * which bounds the size of a stored value.  A connection that sends
+     * a longer one is closed.
+     *
+     * @param limit limit in bytes
+     */
+    public void setMaxArgLength(int limit) {
+        maxArgLength = limit;
+    }
+
+    int getMaxArgLength() {
+        return maxArgLength;
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     *
+     * @exception IOException if the port can't be bound
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(requestedPort);
+        running = true;
+
+        Thread acceptor = new Thread("NwsEngine acceptor") {
+            public void run() {
+                acceptConnections();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Returns the port that the server is listening on.
+     *
+     * @return port number
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes all client connections.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignore) {
+        }
+
+        ArrayList<Connection> conns;
+        lock.lock();
+        try {
+            conns = new ArrayList<Connection>(connections);
+            for (Workspace ws: workspaces.values())
+                ws.failWaiters();
+        } finally {
+            lock.unlock();
+        }
+        for (Connection c: conns)
+            c.close();
+    }
+
+    private void acceptConnections() {
+        int n = 0;
+        while (running) {
+            Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                continue;
+            }
+
+            Connection c = new Connection(this, s);
+            lock.lock();
+            try {
+                connections.add(c);
+            } finally {
+                lock.unlock();
+            }
+            Thread t = new Thread(c, "NwsEngine connection " + ++n);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Returns the extended operations supported by this server.
+     */
+    static String[] capabilities() {
+        return CAPABILITIES;
+    }
+
+    void disconnected(Connection c) {
+        lock.lock();
+        try {
+            connections.remove(c);
+            ArrayList<Workspace> owned = new ArrayList<Workspace>();
+            for (Workspace ws: workspaces.values())
+                if (ws.ownerConn == c)
+                    owned.add(ws);
+            for (Workspace ws: owned) {
+                ws.ownerConn = null;
+                if (!ws.persistent) {
+                    workspaces.remove(ws.name);
+                    ws.failWaiters();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int openWs(Connection c, String wsname, String owner, boolean persistent, boolean create) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null) {
+                if (!create)
+                    return 1;
+                ws = new Workspace(wsname);
+                workspaces.put(wsname, ws);
+            }
+            if (ws.ownerConn == null && ws.owner.length() == 0) {
+                ws.ownerConn = c;
+                ws.owner = c.peer() + " (" + owner + ")";
+                ws.persistent = persistent;
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int useWs(String wsname, boolean create) {
+        lock.lock();
+        try {
+            if (!workspaces.containsKey(wsname)) {
+                if (!create)
+                    return 1;
+                workspaces.put(wsname, new Workspace(wsname));
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int deleteWs(String wsname) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.remove(wsname);
+            if (ws == null)
+                return 1;
+            ws.failWaiters();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String mktempWs(String template) {
+        if (template.indexOf("%d") < 0)
+            return null;
+
+        lock.lock();
+        try {
+            String wsname;
+            do {
+                wsname = template.replace("%d", Integer.toString(tempCounter++));
+            } while (workspaces.containsKey(wsname));
+            workspaces.put(wsname, new Workspace(wsname));
+            return wsname;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lists the workspaces, one per line, marking those owned by the
+     * requesting connection with '>'.
+     */
+    String listWss(Connection c) {
+        lock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (Workspace ws: workspaces.values()) {
+                sb.append(ws.ownerConn == c ? '>' : ' ').append(ws.name);
+                sb.append('\t').append(ws.owner);
+                sb.append('\t').append(ws.persistent ? "True" : "False");
+                sb.append('\t').append(ws.vars.size()).append('\t');
+                boolean first = true;
+                for (String varname: ws.vars.keySet()) {
+                    if (!first)
+                        sb.append(',');
+                    sb.append(varname);
+                    first = false;
+                }
+                sb.append('\n');
+            }
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lists the variables of a workspace, one per line, giving the
+     * number of values, fetchers and finders, and the mode.
+     */
+    String listVars(String wsname) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return null;
+
+            StringBuilder sb = new StringBuilder();
+            for (Variable var: ws.vars.values()) {
+                if (sb.length() > 0)
+                    sb.append('\n');
+                sb.append(var.name);
+                sb.append('\t').append(var.values.size());
+                sb.append('\t').append(var.countWaiters(true));
+                sb.append('\t').append(var.countWaiters(false));
+                sb.append('\t').append(var.mode);
+            }
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Declares a variable, or checks the mode of an existing one.  A
+     * capacity of zero makes the variable unbounded, and a negative
+     * capacity leaves that of an existing variable unchanged.
+     */
+    int declareVar(String wsname, String varname, String mode, int capacity) {
+        if (!Variable.isMode(mode))
+            return 1;
+        if (capacity > 0 && mode.equals(Variable.SINGLE))
+            return 1;
+
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return 1;
+            Variable var = ws.vars.get(varname);
+            if (var == null) {
+                var = newVariable(varname, mode);
+                ws.vars.put(varname, var);
+            } else if (!var.mode.equals(mode)) {
+                return 1;
+            }
+            if (capacity >= 0)
+                var.setCapacity(capacity);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int deleteVar(String wsname, String varname) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            Variable var = ws == null ? null : ws.vars.remove(varname);
+            if (var == null)
+                return 1;
+            var.failWaiters();
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a value, waiting for room if the variable is full.
+     *
+     * @return 0 if stored, 1 if the workspace doesn't exist or the
+     *         variable was deleted while waiting, or 2 if the variable
+     *         is full and the caller won't wait
+     */
+    int store(Waiter w, String wsname, String varname, Value v, boolean block) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return 1;
+            Variable var = lookup(ws, varname);
+            if (!awaitRoom(w, var, block))
+                return block ? 1 : 2;
+            var.store(v);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a value by the digest of its content, if that content
+     * is known.
+     *
+     * @return 0 if stored, 1 if the workspace doesn't exist, or
+     *         2 if the content is unknown
+     */
+    int storeDigest(Waiter w, String wsname, String varname, int desc, byte[] digest) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return 1;
+            byte[] data = contents.get(digest);
+            if (data == null)
+                return 2;
+            Variable var = lookup(ws, varname);
+            if (!awaitRoom(w, var, true))
+                return 1;
+            var.store(new Value(desc, data, digest));
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a value and remembers its content, which the caller must
+     * have checked against the digest.
+     */
+    int storeContent(Waiter w, String wsname, String varname, int desc, byte[] digest,
+                     byte[] data) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return 1;
+            contents.put(digest, data);
+            Variable var = lookup(ws, varname);
+            if (!awaitRoom(w, var, true))
+                return 1;
+            var.store(new Value(desc, data, digest));
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    byte[] fetchContent(byte[] digest) {
+        lock.lock();
+        try {
+            return contents.get(digest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds to the numeric value that a find would return, or stores the
+     * delta as a new value if the variable is empty.
+     *
+     * @return previous value, or null if the workspace doesn't exist
+     *         or the value isn't a number
+     */
+    String fetchAdd(String wsname, String varname, int desc, long delta) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return null;
+            Variable var = lookup(ws, varname);
+
+            int i = var.current();
+            if (i < 0) {
+                var.store(new Value(desc, Long.toString(delta).getBytes()));
+                return "0";
+            }
+            Value cur = var.values.get(i);
+            if ((cur.desc & NUMBER) == 0)
+                return null;
+            long old;
+            try {
+                old = Long.parseLong(new String(cur.data));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            var.replace(i, new Value(cur.desc, Long.toString(old + delta).getBytes()));
+            return Long.toString(old);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the value of a single mode variable if it is identical
+     * to the expected value.  A null expected value matches an empty
+     * variable.
+     *
+     * @return 0 if replaced, 1 if the workspace doesn't exist or the
+     *         variable isn't single mode, or 2 if the value didn't match
+     */
+    int compareSet(String wsname, String varname, Value expect, Value update) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return 1;
+            Variable var = ws.vars.get(varname);
+            if (var == null) {
+                var = newVariable(varname, Variable.SINGLE);
+                ws.vars.put(varname, var);
+            } else if (!var.mode.equals(Variable.SINGLE)) {
+                return 1;
+            }
+
+            Value cur = var.values.size() == 0 ? null : var.values.get(0);
+            boolean match = expect == null ? cur == null :
+                    cur != null && cur.desc == expect.desc && Arrays.equals(cur.data, expect.data);
+            if (!match)
+                return 2;
+            var.store(update);
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fetches the value that a fetch would return, if any, and stores a
+     * new one, leaving the fetched value in the waiter.
+     */
+    void fetchStore(Waiter w, String wsname, String varname, Value v) {
+        lock.lock();
+        try {
+            w.reset(true);
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return;
+            Variable var = lookup(ws, varname);
+            w.deliver(var, var.take(true, random));
+            var.store(v);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Computes an aggregate over the values of a variable.  A variable
+     * that doesn't exist has no values.
+     *
+     * @return result, or null if the workspace doesn't exist or the
+     *         aggregate is undefined
+     */
+    Long aggregate(String wsname, String varname, String op) {
+        lock.lock();
+        try {
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return null;
+            Variable var = ws.vars.get(varname);
+            if (var == null)
+                var = new Variable(varname, Variable.FIFO, null);
+            return var.aggregate(op, NUMBER);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs a fetch or find, leaving the outcome in the waiter.
+     * A blocking retrieval with a timeout that expires, or whose client
+     * hangs up, is withdrawn, with status 2.
+     *
+     * @param timeout timeout in nanoseconds, or -1 to wait indefinitely
+     */
+    void retrieve(Waiter w, String wsname, String varname, boolean fetch, boolean block,
+                  long timeout) {
+        lock.lock();
+        try {
+            w.reset(fetch);
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return;
+            Variable var = block ? lookup(ws, varname) : ws.vars.get(varname);
+            if (var == null)
+                return;
+
+            Value v = var.take(fetch, random);
+            if (v != null)
+                w.deliver(var, v);
+            else if (block)
+                await(w, var, timeout);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs an iterated fetch or find, which returns the value
+     * following the one identified by the client's cookie.
+     */
+    void iretrieve(Waiter w, String wsname, String varname, boolean fetch, boolean block,
+                   byte[] varId, long valIndex) {
+        lock.lock();
+        try {
+            w.reset(fetch);
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null)
+                return;
+            Variable var = block ? lookup(ws, varname) : ws.vars.get(varname);
+            if (var == null)
+                return;
+            if (!var.mode.equals(Variable.FIFO) && !var.mode.equals(Variable.SINGLE))
+                return;
+
+            // a cookie from an earlier incarnation of the variable restarts the iteration
+            if (!Arrays.equals(varId, var.id))
+                valIndex = 0;
+            Value v = var.takeAfter(fetch, valIndex);
+            if (v != null)
+                w.deliver(var, v);
+            else if (block)
+                await(w, var, -1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Performs a fetch or find on the first of several variables to have
+     * a value, checking them in order, and waiting on all of them at once
+     * if none has.
+     */
+    void retrieveAny(Waiter w, String wsname, String[] varnames, boolean fetch) {
+        lock.lock();
+        try {
+            w.reset(fetch);
+            Workspace ws = workspaces.get(wsname);
+            if (ws == null || varnames.length == 0)
+                return;
+
+            Variable[] vars = new Variable[varnames.length];
+            for (int i = 0; i < vars.length; i++) {
+                vars[i] = lookup(ws, varnames[i]);
+                Value v = vars[i].take(fetch, random);
+                if (v != null) {
+                    w.deliver(vars[i], v);
+                    return;
+                }
+            }
+
+            for (int i = 0; i < vars.length; i++)
+                vars[i].waiters.addLast(w);
+            if (!awaitDone(w, -1))
+                w.withdraw();
+            for (int i = 0; i < vars.length; i++)
+                vars[i].waiters.remove(w);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a full variable has room for another value.  A producer
+     * woken by a removal that finds the variable full again, because
+     * another store got there first, keeps its place at the head of the
+     * queue.
+     *
+     * @return false if the variable is full and the caller won't wait,
+     *         or if it was deleted or the client hung up while waiting
+     */
+    private boolean awaitRoom(Waiter w, Variable var, boolean block) {
+        boolean first = true;
+        while (var.isFull()) {
+            if (!block)
+                return false;
+            w.reset(false);
+            if (first)
+                var.producers.addLast(w);
+            else
+                var.producers.addFirst(w);
+            first = false;
+            if (!awaitDone(w, -1)) {
+                var.producers.remove(w);
+                return false;
+            }
+            if (w.status != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param nanos timeout in nanoseconds, or -1 to wait indefinitely
+     */
+    private void await(Waiter w, Variable var, long nanos) {
+        var.waiters.addLast(w);
+        if (!awaitDone(w, nanos)) {
+            var.waiters.remove(w);
+            w.withdraw();
+        }
+    }
+
+    /**
+     * Waits until a waiter is served.  Every so often the client is
+     * checked for having hung up, with the lock released, so that the
+     * value of a store isn't handed to a connection that is known to be
+     * gone, and lost.
+     *
+     * @param nanos timeout in nanoseconds, or -1 to wait indefinitely
+     * @return false if the timeout expired or the client hung up, in
+     *         which case the caller must withdraw the waiter
+     */
+    private boolean awaitDone(Waiter w, long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        while (!w.done) {
+            long wait = CHECK_INTERVAL;
+            if (nanos >= 0) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0)
+                    return false;
+                wait = Math.min(wait, left);
+            }
+            try {
+                if (w.cond.awaitNanos(wait) > 0 || w.done)
+                    continue;
+            } catch (InterruptedException e) {
+                // connection threads aren't interrupted, keep waiting
+                continue;
+            }
+
+            lock.unlock();
+            boolean closed;
+            try {
+                closed = w.conn.peerClosed();
+            } finally {
+                lock.lock();
+            }
+            if (closed && !w.done)
+                return false;
+        }
+        return true;
+    }
+
+    private Variable lookup(Workspace ws, String varname) {
+        Variable var = ws.vars.get(varname);
+        if (var == null) {
+            var = newVariable(varname, Variable.FIFO);
+            ws.vars.put(varname, var);
+        }
+        return var;
+    }
+
+    private Variable newVariable(String varname, String mode) {
+        String id = Long.toString(++varCounter);
+        while (id.length() < 20)
+            id = "0" + id;
+        return new Variable(varname, mode, id.getBytes());
+    }
+
+    /**
+     * Runs a server in the foreground.
+     * Usage: <code>NwsEngine [-p port]</code>
+     *
+     * @param args command line arguments
+     * @exception IOException if the port can't be bound
+     */
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else
+                throw new IllegalArgumentException("usage: NwsEngine [-p port]");
+        }
+
+        NwsEngine engine = new NwsEngine(port);
+        engine.start();
+        System.out.println("NWS server listening on port " + engine.getPort());
+        while (true) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+/**
+ * A value stored in a workspace variable.  The server never looks
+ * inside the data, it only keeps the descriptor supplied by the client.
+ * Values stored by content digest share their data with every other
+ * value of the same content.
+ */
+final class Value {
+    final int desc;
+    final byte[] data;
+    final byte[] digest;
+    long index;
+
+    Value(int desc, byte[] data) {
+        this(desc, data, null);
+    }
+
+    Value(int desc, byte[] data, byte[] digest) {
+        this.desc = desc;
+        this.data = data;
+        this.digest = digest;
+    }
+}
@@ -0,0 +1,89 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+/**
+ * Growable ring buffer of values, supporting constant time access
+ * at both ends and by position.
+ */
+final class ValueList {
+    private Value[] elems = new Value[8];
+    private int head = 0;
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    Value get(int i) {
+        return elems[(head + i) & (elems.length - 1)];
+    }
+
+    void set(int i, Value v) {
+        elems[(head + i) & (elems.length - 1)] = v;
+    }
+
+    void addLast(Value v) {
+        if (size == elems.length)
+            grow();
+        elems[(head + size) & (elems.length - 1)] = v;
+        size++;
+    }
+
+    Value removeFirst() {
+        Value v = elems[head];
+        elems[head] = null;
+        head = (head + 1) & (elems.length - 1);
+        size--;
+        return v;
+    }
+
+    Value removeLast() {
+        int i = (head + size - 1) & (elems.length - 1);
+        Value v = elems[i];
+        elems[i] = null;
+        size--;
+        return v;
+    }
+
+    /**
+     * Removes the value at the specified position, moving the last value
+     * into its place.  Only useful when the order doesn't matter.
+     */
+    Value removeUnordered(int i) {
+        int j = (head + i) & (elems.length - 1);
+        Value v = elems[j];
+        elems[j] = removeLast();
+        if (i == size)
+            elems[j] = null;
+        return v;
+    }
+
+    void clear() {
+        elems = new Value[8];
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        Value[] a = new Value[elems.length * 2];
+        for (int i = 0; i < size; i++)
+            a[i] = get(i);
+        elems = a;
+        head = 0;
+    }
+}
@@ -0,0 +1,248 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * A workspace variable: its values, in the order dictated by its mode,
+ * the clients blocked waiting for a value, and, if the variable has a
+ * capacity, the clients blocked waiting to store one.  All methods
+ * must be called with the engine lock held.
+ */
+final class Variable {
+    static final String FIFO = "fifo";
+    static final String LIFO = "lifo";
+    static final String MULTI = "multi";
+    static final String SINGLE = "single";
+
+    final String name;
+    final byte[] id;
+    String mode;
+    final ValueList values = new ValueList();
+    final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+    final LinkedList<Waiter> producers = new LinkedList<Waiter>();
+    int capacity = 0;
+    private long lastIndex = 0;
+
+    Variable(String name, String mode, byte[] id) {
+        this.name = name;
+        this.mode = mode;
+        this.id = id;
+    }
+
+    static boolean isMode(String mode) {
+        return mode.equals(FIFO) || mode.equals(LIFO) ||
+               mode.equals(MULTI) || mode.equals(SINGLE);
+    }
+
+    /**
+     * Stores a value.  Every blocked finder sees it, and the first blocked
+     * fetcher consumes it, in which case it's never added to the list.
+     * Waiters registered on several variables may already have been
+     * served by another one, and are dropped.
+     */
+    void store(Value v) {
+        v.index = ++lastIndex;
+
+        Iterator<Waiter> it = waiters.iterator();
+        while (it.hasNext()) {
+            Waiter w = it.next();
+            if (w.done) {
+                it.remove();
+            } else if (!w.fetch) {
+                it.remove();
+                w.deliver(this, v);
+            }
+        }
+        if (!waiters.isEmpty()) {
+            waiters.removeFirst().deliver(this, v);
+            return;
+        }
+
+        if (mode.equals(SINGLE))
+            values.clear();
+        values.addLast(v);
+    }
+
+    /**
+     * Returns the value selected by the variable mode, or null.
+     */
+    Value take(boolean fetch, Random random) {
+        int n = values.size();
+        if (n == 0)
+            return null;
+
+        if (!fetch)
+            return values.get(mode.equals(LIFO) ? n - 1 : mode.equals(MULTI) ? random.nextInt(n) : 0);
+
+        Value v;
+        if (mode.equals(LIFO))
+            v = values.removeLast();
+        else if (mode.equals(MULTI))
+            v = values.removeUnordered(random.nextInt(n));
+        else
+            v = values.removeFirst();
+        removed();
+        return v;
+    }
+
+    /**
+     * Returns the position of the value that a find would return, apart
+     * from multi mode variables, where it's always the oldest value, or
+     * -1 if there are no values.
+     */
+    int current() {
+        int n = values.size();
+        if (n == 0)
+            return -1;
+        return mode.equals(LIFO) ? n - 1 : 0;
+    }
+
+    /**
+     * Replaces the value at the specified position.  The new value of a
+     * single mode variable is a new value for iterators, while in other
+     * modes it keeps the place of the value it replaces.
+     */
+    void replace(int i, Value v) {
+        if (mode.equals(SINGLE)) {
+            store(v);
+        } else {
+            v.index = values.get(i).index;
+            values.set(i, v);
+        }
+    }
+
+    /**
+     * Returns the first value following the one identified by
+     * <code>valIndex</code>, or null.  Only fifo and single mode
+     * variables have a well defined order for iteration.
+     */
+    Value takeAfter(boolean fetch, long valIndex) {
+        int n = values.size();
+        if (n == 0)
+            return null;
+
+        // values of a fifo variable are stored with consecutive indices
+        long first = values.get(0).index;
+        int i = valIndex < first ? 0 : (int) (valIndex - first + 1);
+        if (i >= n)
+            return null;
+        if (!fetch)
+            return values.get(i);
+        if (i == 0) {
+            Value v = values.removeFirst();
+            removed();
+            return v;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if a store must wait for a value to be removed.
+     * Single mode variables are never full.
+     */
+    boolean isFull() {
+        return capacity > 0 && !mode.equals(SINGLE) && values.size() >= capacity;
+    }
+
+    /**
+     * Changes the capacity, waking the blocked producers that now have room.
+     */
+    void setCapacity(int capacity) {
+        this.capacity = capacity;
+        int room = capacity == 0 ? producers.size() : capacity - values.size();
+        for (int i = 0; i < room && !producers.isEmpty(); i++)
+            producers.removeFirst().deliver(this, null);
+    }
+
+    /**
+     * Wakes the first blocked producer, now that a value has been removed.
+     */
+    private void removed() {
+        if (!producers.isEmpty())
+            producers.removeFirst().deliver(this, null);
+    }
+
+    /**
+     * Computes an aggregate over the values: their number, their total
+     * size, or the sum, minimum or maximum of their numeric values.  The
+     * "capacity" operation returns the capacity instead, zero if unbounded.
+     *
+     * @return result, or null if the operation is unknown, a value isn't
+     *         numeric, or there are no values to take the minimum or
+     *         maximum of
+     */
+    Long aggregate(String op, int numberBit) {
+        int n = values.size();
+        if (op.equals("count"))
+            return Long.valueOf(n);
+        if (op.equals("capacity"))
+            return Long.valueOf(capacity);
+        if (op.equals("bytes")) {
+            long total = 0;
+            for (int i = 0; i < n; i++)
+                total += values.get(i).data.length;
+            return total;
+        }
+
+        boolean sum = op.equals("sum");
+        if (!sum && !op.equals("min") && !op.equals("max"))
+            return null;
+        if (!sum && n == 0)
+            return null;
+
+        long result = sum ? 0 : op.equals("min") ? Long.MAX_VALUE : Long.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            Value v = values.get(i);
+            if ((v.desc & numberBit) == 0)
+                return null;
+            long x;
+            try {
+                x = Long.parseLong(new String(v.data));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (sum)
+                result += x;
+            else if (op.equals("min"))
+                result = Math.min(result, x);
+            else
+                result = Math.max(result, x);
+        }
+        return result;
+    }
+
+    int countWaiters(boolean fetch) {
+        int n = 0;
+        for (Waiter w: waiters)
+            if (w.fetch == fetch && !w.done)
+                n++;
+        return n;
+    }
+
+    void failWaiters() {
+        for (Waiter w: waiters)
+            w.fail();
+        waiters.clear();
+        for (Waiter w: producers)
+            w.fail();
+        producers.clear();
+    }
+}
@@ -0,0 +1,78 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.util.concurrent.locks.Condition;
+
+/**
+ * The outcome of a retrieval, and the rendezvous point of a blocked
+ * fetch or find, which may be waiting on several variables at once.
+ * Each connection reuses a single waiter, since it only has one
+ * request outstanding at a time.  All fields are guarded by the
+ * engine lock.
+ */
+final class Waiter {
+    final Condition cond;
+    final Connection conn;
+    boolean fetch;
+    boolean done;
+    int status;
+    Value value;
+    Variable source;
+
+    Waiter(Condition cond, Connection conn) {
+        this.cond = cond;
+        this.conn = conn;
+    }
+
+    void reset(boolean fetch) {
+        this.fetch = fetch;
+        done = false;
+        status = 1;
+        value = null;
+        source = null;
+    }
+
+    void deliver(Variable var, Value v) {
+        done = true;
+        status = 0;
+        value = v;
+        source = var;
+        cond.signal();
+    }
+
+    /**
+     * Withdraws a blocked retrieval whose timeout expired or whose
+     * client hung up.  The caller removes it from the variables.
+     */
+    void withdraw() {
+        done = true;
+        status = 2;
+    }
+
+    /**
+     * Fails the retrieval, unless a waiter registered on several
+     * variables has already been served by another one.
+     */
+    void fail() {
+        if (done)
+            return;
+        done = true;
+        status = 1;
+        cond.signal();
+    }
+}
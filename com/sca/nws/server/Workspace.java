@@ -0,0 +1,41 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws.server;
+
+import java.util.LinkedHashMap;
+
+/**
+ * A workspace and its variables.  A workspace that isn't persistent
+ * is deleted when the connection that owns it is closed.  All fields
+ * are guarded by the engine lock.
+ */
+final class Workspace {
+    final String name;
+    final LinkedHashMap<String, Variable> vars = new LinkedHashMap<String, Variable>();
+    Connection ownerConn = null;
+    String owner = "";
+    boolean persistent = false;
+
+    Workspace(String name) {
+        this.name = name;
+    }
+
+    void failWaiters() {
+        for (Variable var: vars.values())
+            var.failWaiters();
+    }
+}
@@ -0,0 +1,65 @@
+package examples;
+import com.sca.nws.NetWorkSpace;
+import com.sca.nws.NwsBarrier;
+import com.sca.nws.NwsException;
+import com.sca.nws.NwsOptions;
+
+/**
+ * Measures the time for N parties to pass an NwsBarrier, for
+ * increasing N.  Each party is a thread with its own connection.
+ *
+ * usage: BarrierBench [host [port [rounds [maxParties]]]]
+ */
+public class BarrierBench {
+    public static void main(String[] args) throws Exception {
+        final NwsOptions opts = new NwsOptions();
+        if (args.length > 0)
+            opts.host = args[0];
+        if (args.length > 1)
+            opts.port = Integer.parseInt(args[1]);
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int maxParties = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        NetWorkSpace ws = new NetWorkSpace("barrier bench", opts);
+        opts.useUse = true;
+
+        System.out.println("parties\tusec/round");
+        for (int n = 2; n <= maxParties; n *= 2) {
+            final String name = "barrier" + n;
+            new NwsBarrier(ws, name, n);
+
+            Thread[] parties = new Thread[n];
+            final long[] elapsed = new long[n];
+            for (int i = 0; i < n; i++) {
+                final int id = i;
+                final NetWorkSpace pws = new NetWorkSpace(ws.getWsName(), opts);
+                parties[i] = new Thread() {
+                    public void run() {
+                        try {
+                            NwsBarrier b = new NwsBarrier(pws, name);
+                            // warm up, and line everyone up
+                            for (int r = 0; r < 10; r++)
+                                b.await();
+                            long start = System.nanoTime();
+                            for (int r = 0; r < rounds; r++)
+                                b.await();
+                            elapsed[id] = System.nanoTime() - start;
+                            pws.close();
+                        } catch (NwsException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                parties[i].start();
+            }
+
+            long max = 0;
+            for (int i = 0; i < n; i++) {
+                parties[i].join();
+                max = Math.max(max, elapsed[i]);
+            }
+            System.out.println(n + "\t" + (max / 1000 / rounds));
+        }
+        ws.close();
+    }
+}
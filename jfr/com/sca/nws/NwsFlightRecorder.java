@@ -0,0 +1,152 @@
+//
+// Copyright (c) 2007-2008, REvolution Computing, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+
+package com.sca.nws;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits Java Flight Recorder events for NWS operations.  This needs
+ * Java 11 or later, and is built by the <code>jfr</code> target; the
+ * client finds it by name at run time.
+ * <p>
+ * There are two events.  <code>com.sca.nws.RoundTrip</code> covers a
+ * request and its reply, split into the time waiting for the reply and
+ * the time spent writing and reading.  <code>com.sca.nws.Serialization</code>
+ * covers converting a value to or from its stored form.  Deserializing
+ * happens after the reply is read, so it can't be part of the round
+ * trip; the two can be matched by thread and variable.  Like other
+ * custom events, both are enabled in any recording unless its settings
+ * disable them.
+ */
+final class NwsFlightRecorder extends NwsEvents {
+    @Name("com.sca.nws.RoundTrip")
+    @Label("NWS Round Trip")
+    @Category("NetWorkSpaces")
+    @Description("A request to an NWS server and its reply")
+    @StackTrace(false)
+    static final class RoundTrip extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Workspace")
+        String workspace;
+
+        @Label("Variable")
+        String variable;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        long bytesSent;
+
+        @Label("Bytes Received")
+        @DataAmount
+        long bytesReceived;
+
+        @Label("Wait Time")
+        @Description("Time from sending the request until the reply arrived, " +
+                     "including time blocked on the server")
+        @Timespan
+        long waitTime;
+
+        @Label("Network Time")
+        @Description("Time spent writing the request and reading the reply")
+        @Timespan
+        long networkTime;
+
+        @Label("Succeeded")
+        boolean ok;
+    }
+
+    @Name("com.sca.nws.Serialization")
+    @Label("NWS Serialization")
+    @Category("NetWorkSpaces")
+    @Description("Conversion of a value to or from its stored form")
+    @StackTrace(false)
+    static final class Serialization extends Event {
+        @Label("Workspace")
+        String workspace;
+
+        @Label("Variable")
+        String variable;
+
+        @Label("Serialize")
+        @Description("True when storing, false when retrieving")
+        boolean serialize;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    // isEnabled doesn't depend on the instance
+    private static final RoundTrip ROUND_TRIP = new RoundTrip();
+    private static final Serialization SERIALIZATION = new Serialization();
+
+    Object beginRoundTrip() {
+        if (!ROUND_TRIP.isEnabled())
+            return null;
+        RoundTrip e = new RoundTrip();
+        e.begin();
+        return e;
+    }
+
+    void commitRoundTrip(Object event, String op, String wsname, String varname,
+                         long sent, long received, long waitNanos, long networkNanos,
+                         boolean ok) {
+        RoundTrip e = (RoundTrip) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.operation = op;
+            e.workspace = wsname;
+            e.variable = varname;
+            e.bytesSent = sent;
+            e.bytesReceived = received;
+            e.waitTime = waitNanos;
+            e.networkTime = networkNanos;
+            e.ok = ok;
+            e.commit();
+        }
+    }
+
+    Object beginCodec() {
+        if (!SERIALIZATION.isEnabled())
+            return null;
+        Serialization e = new Serialization();
+        e.begin();
+        return e;
+    }
+
+    void commitCodec(Object event, String wsname, String varname, boolean serialize,
+                     int bytes) {
+        Serialization e = (Serialization) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.workspace = wsname;
+            e.variable = varname;
+            e.serialize = serialize;
+            e.size = bytes;
+            e.commit();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package test;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+
+import com.sca.nws.NetWorkSpace;
+import com.sca.nws.NwsException;
+import com.sca.nws.NwsOptions;
+import com.sca.nws.server.NwsEngine;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Performance regression tests, run against a server started in the
+ * same JVM.  Each test measures the throughput, the 99th percentile
+ * latency and the bytes allocated by the client per operation, and
+ * fails if any of them is worse than the baseline by more than its
+ * tolerance.  Only the allocations of the test thread are counted, and
+ * only on JVMs that can report them.
+ * <p>
+ * Baselines are machine specific, and a test without one fails.  Run
+ * with <code>-Dnws.perf.record=true</code> to replace them with the
+ * values measured, and <code>-Dnws.perf.baseline=file</code> to use
+ * another file.  The tolerances are fractions of the baseline, set with
+ * <code>nws.perf.throughput</code>, <code>nws.perf.latency</code> and
+ * <code>nws.perf.allocation</code>.
+ */
+public class NwsPerfTest extends TestCase {
+	private final static int WARMUP = 2000;
+	private final static int OPS = 10000;
+	private final static int ITERATED = 1000;
+	private final static int BULK = 4 << 20;
+	private final static int ROUNDS = 3;
+	// allocations that come and go with the JIT, in bytes per operation
+	private final static long ALLOCATION_SLACK = 64;
+
+	protected static NwsEngine engine;
+	protected static NetWorkSpace nws;
+	private static Properties baseline;
+	private static boolean loaded;
+	private static boolean recording;
+	private static String baselineFile;
+
+	protected void setUp() throws Exception {
+		if (engine == null) {
+			engine = new NwsEngine(0);
+			engine.start();
+			NwsOptions opts = new NwsOptions();
+			opts.port = engine.getPort();
+			nws = new NetWorkSpace("JUnit Perf WorkSpace", opts);
+
+			baselineFile = System.getProperty("nws.perf.baseline", "test/perf-baseline.properties");
+			recording = Boolean.getBoolean("nws.perf.record");
+			baseline = new Properties();
+			try {
+				FileInputStream in = new FileInputStream(baselineFile);
+				baseline.load(in);
+				in.close();
+				loaded = true;
+			} catch (IOException e) {
+				System.out.println("no baseline in " + baselineFile);
+			}
+		}
+	}
+
+	public static Test suite() {
+		return new TestSuite(NwsPerfTest.class);
+	}
+
+	/**
+	 * An operation that can be timed.
+	 */
+	private static abstract class Op {
+		/**
+		 * Sets up, untimed, for the next <code>n</code> calls, before
+		 * the warmup and before each round.
+		 */
+		void prepare(int n) throws NwsException {
+		}
+
+		abstract void run(int i) throws NwsException;
+	}
+
+	/**
+	 * Runs an operation, first to warm up, and then timing each call,
+	 * and checks the results against the baseline.  A shared machine
+	 * has the odd bad round, so the measurement is repeated, up to
+	 * <code>ROUNDS</code> times, until a round is within the tolerances.
+	 */
+	private void measure(String name, int warmup, int ops, Op op) throws Exception {
+		if (!loaded && !recording)
+			fail("no baseline in " + baselineFile + ", record one with -Dnws.perf.record=true");
+
+		op.prepare(warmup);
+		for (int i = 0; i < warmup; i++)
+			op.run(i);
+
+		String failure = null;
+		for (int round = 0; round < ROUNDS; round++) {
+			op.prepare(ops);
+			long[] nanos = new long[ops];
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				long t = System.nanoTime();
+				op.run(i);
+				nanos[i] = System.nanoTime() - t;
+			}
+			long elapsed = System.nanoTime() - start;
+			long bytesPerOp = allocated < 0 ? -1 : (allocatedBytes() - allocated) / ops;
+
+			Arrays.sort(nanos);
+			long opsPerSec = (long) (ops / (elapsed / 1e9));
+			long p99Micros = nanos[(int) Math.ceil(ops * 0.99) - 1] / 1000;
+			System.out.println(name + ": " + opsPerSec + " ops/s, p99 " + p99Micros +
+					" us, " + bytesPerOp + " bytes/op");
+
+			if (recording) {
+				record(name + ".opsPerSec", opsPerSec);
+				record(name + ".p99Micros", p99Micros);
+				if (bytesPerOp >= 0)
+					record(name + ".bytesPerOp", bytesPerOp);
+				return;
+			}
+			failure = check(name + ".opsPerSec", opsPerSec, -tolerance("nws.perf.throughput", 0.3), 0);
+			if (failure == null)
+				failure = check(name + ".p99Micros", p99Micros, tolerance("nws.perf.latency", 1.0), 0);
+			if (failure == null && bytesPerOp >= 0)
+				failure = check(name + ".bytesPerOp", bytesPerOp,
+						tolerance("nws.perf.allocation", 0.1), ALLOCATION_SLACK);
+			if (failure == null)
+				return;
+		}
+		fail(failure);
+	}
+
+	private static double tolerance(String property, double def) {
+		return Double.parseDouble(System.getProperty(property, Double.toString(def)));
+	}
+
+	/**
+	 * Checks a value against the baseline, allowing for the tolerance
+	 * and an absolute slack, and returns why it failed, or
+	 * <code>null</code>.  A negative tolerance means that higher values
+	 * are better.
+	 */
+	private static String check(String key, long value, double tolerance, long slack) {
+		String base = baseline.getProperty(key);
+		if (base == null)
+			return "no baseline for " + key + " in " + baselineFile;
+		long b = Long.parseLong(base.trim());
+		if (tolerance < 0) {
+			if (value < b * (1 + tolerance))
+				return key + " " + value + " is below the baseline " + b;
+		} else {
+			if (value > b * (1 + tolerance) + slack)
+				return key + " " + value + " is above the baseline " + b;
+		}
+		return null;
+	}
+
+	private static synchronized void record(String key, long value) throws IOException {
+		baseline.setProperty(key, Long.toString(value));
+		FileOutputStream out = new FileOutputStream(baselineFile);
+		baseline.store(out, "NwsPerfTest baselines, recorded with -Dnws.perf.record=true");
+		out.close();
+	}
+
+	/**
+	 * Returns the bytes allocated so far by this thread, or -1 if the
+	 * JVM can't tell.
+	 */
+	private static long allocatedBytes() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			Method m = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+			return (Long) m.invoke(bean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	public void testStore() throws Exception {
+		final byte[] value = new byte[1024];
+		measure("store", WARMUP, OPS, new Op() {
+			void run(int i) throws NwsException {
+				nws.store("perf store", value);
+			}
+		});
+		nws.deleteVar("perf store");
+	}
+
+	public void testFetch() throws Exception {
+		final byte[] value = new byte[1024];
+		measure("fetch", WARMUP, OPS, new Op() {
+			void prepare(int n) throws NwsException {
+				for (int i = 0; i < n; i++)
+					nws.store("perf fetch", value);
+			}
+
+			void run(int i) throws NwsException {
+				nws.fetch("perf fetch");
+			}
+		});
+	}
+
+	public void testFind() throws Exception {
+		nws.declare("perf find", NetWorkSpace.SINGLE);
+		nws.store("perf find", "a small value");
+		measure("find", WARMUP, OPS, new Op() {
+			void run(int i) throws NwsException {
+				nws.find("perf find");
+			}
+		});
+	}
+
+	public void testIfind() throws Exception {
+		for (int i = 0; i < ITERATED; i++)
+			nws.store("perf ifind", i);
+		// each operation is a full iteration over the variable
+		measure("ifind", 20, 100, new Op() {
+			void run(int i) throws NwsException {
+				int n = 0;
+				for (Iterator<Integer> it = nws.<Integer>ifindTry("perf ifind"); it.hasNext(); it.next())
+					n++;
+				assertTrue(n == ITERATED);
+			}
+		});
+	}
+
+	public void testBulk() throws Exception {
+		final byte[] value = new byte[BULK];
+		measure("bulk", 5, 50, new Op() {
+			void run(int i) throws NwsException {
+				nws.store("perf bulk", value);
+				nws.fetch("perf bulk");
+			}
+		});
+	}
+}
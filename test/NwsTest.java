@@ -1,13 +1,49 @@
 package test;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+import com.sca.nws.ContentCache;
 import com.sca.nws.NetWorkSpace;
+import com.sca.nws.NwsCoalescingWriter;
+import com.sca.nws.NwsBarrier;
+import com.sca.nws.NwsCall;
+import com.sca.nws.NwsCapture;
+import com.sca.nws.NwsCountDownLatch;
 import com.sca.nws.NwsException;
+import com.sca.nws.NwsExecutorService;
+import com.sca.nws.NwsExecutorWorker;
+import com.sca.nws.NwsGroupCommitWriter;
+import com.sca.nws.NwsInterceptor;
+import com.sca.nws.NwsMapper;
+import com.sca.nws.NwsNamedValue;
 import com.sca.nws.NwsOperationException;
+import com.sca.nws.NwsOptions;
+import com.sca.nws.NwsReplay;
+import com.sca.nws.NwsSemaphore;
+import com.sca.nws.NwsStats;
 import com.sca.nws.NwsServer;
 import com.sca.nws.NwsVariable;
+import com.sca.nws.ShardedNetWorkSpace;
+import com.sca.nws.StripedQueue;
+import com.sca.nws.VariableInfo;
+import com.sca.nws.WorkspaceInfo;
+import com.sca.nws.server.NwsEngine;
 
 
 import junit.framework.Test;
@@ -17,6 +53,9 @@ import junit.framework.TestSuite;
 public class NwsTest extends TestCase {
 	protected static NetWorkSpace nws;
 	protected static NwsServer nwss;
+	// the first connection owns the workspace, and is kept so that the
+	// collector can't close it, and the workspace with it, mid-test
+	private static NetWorkSpace owner;
 
 	protected void setUp() throws NwsException {
 		try {
@@ -24,6 +63,8 @@ public class NwsTest extends TestCase {
 		} catch (NwsException e) {
 			e.printStackTrace();
 		}
+		if (NwsTest.owner == null)
+			NwsTest.owner = NwsTest.nws;
 		NwsTest.nwss = NwsTest.nws.getNwsServer();
 	}	
 
@@ -179,4 +220,986 @@ public class NwsTest extends TestCase {
 			assertTrue(n == 10);
 		}
 	}
+
+	public void testCompression() throws NwsException {
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		opts.compression = true;
+		NetWorkSpace cws = new NetWorkSpace(nws.getWsName(), opts);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++)
+			sb.append("compressible ");
+		String exp = sb.toString();
+
+		for (int i = 0; i < 3; i++)
+			cws.store("compressed", exp);
+		for (int i = 0; i < 3; i++)
+			assertTrue(exp.equals(nws.fetch("compressed")));
+
+		// a value bigger than the buffers that are kept
+		sb = new StringBuilder();
+		for (int i = 0; i < 200000; i++)
+			sb.append("compressible ");
+		String big = sb.toString();
+		cws.store("compressed", big);
+		assertTrue(big.equals(nws.fetch("compressed")));
+		cws.store("compressed", exp);
+		assertTrue(exp.equals(nws.fetch("compressed")));
+
+		cws.close();
+	}
+
+	public void testContentCache() throws NwsException {
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		opts.contentCache = new ContentCache(1 << 20);
+		opts.dedupThreshold = 1024;
+		NetWorkSpace cws = new NetWorkSpace(nws.getWsName(), opts);
+
+		byte[] exp = new byte[10000];
+		for (int i = 0; i < exp.length; i++)
+			exp[i] = (byte) i;
+
+		cws.store("dedup1", exp);
+		cws.store("dedup2", exp);
+		assertTrue(java.util.Arrays.equals(exp, (byte[]) cws.fetch("dedup1")));
+		assertTrue(java.util.Arrays.equals(exp, (byte[]) nws.fetch("dedup2")));
+
+		// changing the stored or fetched arrays doesn't change the cache
+		byte[] buf = exp.clone();
+		cws.store("dedup3", buf);
+		cws.store("dedup3", buf);
+		buf[0] = 42;
+		byte[] got = (byte[]) cws.fetch("dedup3");
+		assertTrue(java.util.Arrays.equals(exp, got));
+		got[1] = 42;
+		assertTrue(java.util.Arrays.equals(exp, (byte[]) cws.fetch("dedup3")));
+
+		cws.close();
+	}
+
+	public void testStripedQueue() throws NwsException {
+		StripedQueue<Integer> q = new StripedQueue<Integer>(nws, "striped", 4, 1);
+		for (int i = 0; i < 10; i++)
+			q.put(i);
+
+		ArrayList<Integer> result = new ArrayList<Integer>();
+		for (int i = 0; i < 10; i++)
+			result.add(q.take());
+		assertTrue(q.poll() == null);
+
+		Collections.sort(result);
+		for (int i = 0; i < 10; i++)
+			assertTrue(result.get(i) == i);
+	}
+
+	static class Square implements Callable<Integer>, java.io.Serializable {
+		private final int x;
+
+		Square(int x) {
+			this.x = x;
+		}
+
+		public Integer call() {
+			return x * x;
+		}
+	}
+
+	static class Tick implements Runnable, java.io.Serializable {
+		static final AtomicInteger ticks = new AtomicInteger();
+
+		public void run() {
+			ticks.incrementAndGet();
+		}
+	}
+
+	public void testExecutorService() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		NwsExecutorWorker worker =
+			new NwsExecutorWorker(new NetWorkSpace(nws.getWsName(), opts), "farm");
+		Thread t = new Thread(worker);
+		t.setDaemon(true);
+		t.start();
+
+		NwsExecutorService exec = new NwsExecutorService(nws.getWsName(), opts, "farm", 50, 10);
+		ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < 200; i++)
+			futures.add(exec.submit(new Square(i)));
+		for (int i = 0; i < 200; i++)
+			assertTrue(futures.get(i).get() == i * i);
+
+		// runnables are sent to the workers too
+		assertTrue(exec.submit(new Tick(), "ticked").get().equals("ticked"));
+		assertTrue(exec.submit(new Tick()).get() == null);
+		assertTrue(Tick.ticks.get() == 2);
+
+		List<Square> squares = Arrays.asList(new Square(3), new Square(4));
+		int any = exec.invokeAny(squares);
+		assertTrue(any == 9 || any == 16);
+		any = exec.invokeAny(squares, 10, TimeUnit.SECONDS);
+		assertTrue(any == 9 || any == 16);
+
+		exec.shutdown();
+		assertTrue(exec.awaitTermination(10, TimeUnit.SECONDS));
+		worker.stop();
+
+		// a submit waiting for room when the executor is shut down is rejected
+		final NwsExecutorService idle = new NwsExecutorService(nws.getWsName(), opts, "idle farm", 1, 10);
+		idle.submit(new Square(1));
+		final Object[] result = new Object[1];
+		Thread submitter = new Thread() {
+			public void run() {
+				try {
+					result[0] = idle.submit(new Square(2));
+				} catch (RejectedExecutionException e) {
+					result[0] = e;
+				}
+			}
+		};
+		submitter.start();
+		Thread.sleep(200);
+		idle.shutdownNow();
+		submitter.join(10000);
+		assertTrue(result[0] instanceof RejectedExecutionException);
+		assertTrue(idle.awaitTermination(10, TimeUnit.SECONDS));
+	}
+
+	static class Cube implements NwsMapper<Integer, Integer> {
+		public Integer map(Integer x) {
+			return x * x * x;
+		}
+	}
+
+	public void testParallelMap() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		NwsExecutorWorker[] workers = new NwsExecutorWorker[2];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new NwsExecutorWorker(new NetWorkSpace(nws.getWsName(), opts), "mapfarm");
+			Thread t = new Thread(workers[i]);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		ArrayList<Integer> input = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++)
+			input.add(i);
+		List<Integer> result = nws.parallelMap("mapfarm", input, new Cube(), workers.length);
+		assertTrue(result.size() == 1000);
+		for (int i = 0; i < 1000; i++)
+			assertTrue(result.get(i) == i * i * i);
+
+		for (int i = 0; i < workers.length; i++)
+			workers[i].stop();
+	}
+
+	public void testSynchronizers() throws Exception {
+		final int N = 4;
+		NwsBarrier barrier = new NwsBarrier(nws, "barrier", N);
+		NwsCountDownLatch latch = new NwsCountDownLatch(nws, "latch", N);
+		NwsSemaphore sem = new NwsSemaphore(nws, "sem", 1);
+		final int[] passed = new int[N];
+		final NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+
+		Thread[] threads = new Thread[N];
+		for (int i = 0; i < N; i++) {
+			final int id = i;
+			final NetWorkSpace tws = new NetWorkSpace(nws.getWsName(), opts);
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						NwsBarrier b = new NwsBarrier(tws, "barrier");
+						for (int r = 0; r < 5; r++) {
+							b.await();
+							passed[id]++;
+						}
+						new NwsCountDownLatch(tws, "latch").countDown();
+						tws.close();
+					} catch (NwsException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		latch.await();
+		assertTrue(latch.getCount() == 0);
+		for (int i = 0; i < N; i++) {
+			threads[i].join();
+			assertTrue(passed[i] == 5);
+		}
+
+		assertTrue(sem.tryAcquire());
+		assertFalse(sem.tryAcquire());
+		sem.release();
+		sem.acquire();
+	}
+
+	public void testAtomics() throws Exception {
+		assertTrue(nws.fetchAndAdd("counter", 5) == 0);
+		assertTrue(nws.fetchAndAdd("counter", -2) == 5);
+		assertTrue(nws.fetchAndAdd("counter", 1) == 3);
+		assertTrue(((Long) nws.find("counter")) == 4);
+
+		// a Long stored without the numbers option is serialized, as before
+		nws.store("counter2", 10L);
+		boolean exceptionRaised = false;
+		try {
+			nws.fetchAndAdd("counter2", 1);
+		} catch (NwsOperationException e) {
+			exceptionRaised = true;
+		}
+		assertTrue(exceptionRaised);
+		assertTrue(((Long) nws.fetch("counter2")) == 10);
+
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		opts.numbers = true;
+		NetWorkSpace nums = new NetWorkSpace(nws.getWsName(), opts);
+		nums.store("counter2", 10L);
+		assertTrue(nws.fetchAndAdd("counter2", 1) == 10);
+		nums.close();
+
+		// compareAndSet stores Longs as numbers regardless
+		nws.declare("counter3", NetWorkSpace.SINGLE);
+		assertTrue(nws.compareAndSet("counter3", null, 5L));
+		assertTrue(nws.fetchAndAdd("counter3", 1) == 5);
+		assertTrue(nws.compareAndSet("counter3", 6L, 20L));
+		assertTrue(((Long) nws.find("counter3")) == 20);
+
+		nws.declare("cas", NetWorkSpace.SINGLE);
+		assertTrue(nws.compareAndSet("cas", null, "a"));
+		assertFalse(nws.compareAndSet("cas", "b", "c"));
+		assertTrue(nws.compareAndSet("cas", "a", "c"));
+		assertTrue("c".equals(nws.find("cas")));
+
+		assertTrue(nws.fetchAndStore("swap", "x") == null);
+		assertTrue("x".equals(nws.fetchAndStore("swap", "y")));
+		assertTrue("y".equals(nws.fetch("swap")));
+	}
+
+	public void testAggregate() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		opts.numbers = true;
+		NetWorkSpace nums = new NetWorkSpace(nws.getWsName(), opts);
+		for (long i = 1; i <= 10; i++)
+			nums.store("agg", i);
+		nums.close();
+		assertTrue(nws.aggregate("agg", NetWorkSpace.COUNT) == 10);
+		assertTrue(nws.aggregate("agg", NetWorkSpace.SUM) == 55);
+		assertTrue(nws.aggregate("agg", NetWorkSpace.MIN) == 1);
+		assertTrue(nws.aggregate("agg", NetWorkSpace.MAX) == 10);
+		assertTrue(nws.aggregate("agg", NetWorkSpace.BYTES) == 11);
+		assertTrue(nws.aggregate("noagg", NetWorkSpace.COUNT) == 0);
+
+		nws.store("agg", "not a number");
+		boolean exceptionRaised = false;
+		try {
+			nws.aggregate("agg", NetWorkSpace.SUM);
+		} catch (NwsOperationException e) {
+			exceptionRaised = true;
+		}
+		assertTrue(exceptionRaised);
+	}
+
+	public void testBoundedVariable() throws Exception {
+		nws.declare("bounded", NetWorkSpace.FIFO, 2);
+		assertTrue(nws.storeTry("bounded", 1));
+		assertTrue(nws.storeTry("bounded", 2));
+		assertFalse(nws.storeTry("bounded", 3));
+
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		final NetWorkSpace pws = new NetWorkSpace(nws.getWsName(), opts);
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					pws.store("bounded", 3);
+					pws.close();
+				} catch (NwsException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		producer.start();
+		Thread.sleep(200);
+		assertTrue(producer.isAlive());
+
+		for (int i = 1; i <= 3; i++)
+			assertTrue(((Integer) nws.fetch("bounded")) == i);
+		producer.join();
+	}
+
+	public void testFetchAny() throws Exception {
+		nws.store("any2", "b");
+		NwsNamedValue nv = nws.findAny("any1", "any2");
+		assertTrue("any2".equals(nv.getVarName()) && "b".equals(nv.getValue()));
+		nv = nws.fetchAny("any1", "any2");
+		assertTrue("any2".equals(nv.getVarName()) && "b".equals(nv.getValue()));
+
+		NwsOptions opts = new NwsOptions();
+		opts.useUse = true;
+		final NetWorkSpace cws = new NetWorkSpace(nws.getWsName(), opts);
+		final NwsNamedValue[] result = new NwsNamedValue[1];
+		Thread consumer = new Thread() {
+			public void run() {
+				try {
+					result[0] = cws.fetchAny("any1", "any2", "any3");
+					cws.close();
+				} catch (NwsException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		consumer.start();
+		Thread.sleep(200);
+		nws.store("any3", "c");
+		nws.store("any1", "a");
+		consumer.join();
+		assertTrue("any3".equals(result[0].getVarName()) && "c".equals(result[0].getValue()));
+		assertTrue("a".equals(nws.fetchTry("any1")));
+	}
+
+	public void testFetchTimeout() throws Exception {
+		long start = System.currentTimeMillis();
+		assertTrue(nws.fetch("late", 100, TimeUnit.MILLISECONDS) == null);
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertTrue(nws.find("late", 0, TimeUnit.MILLISECONDS) == null);
+
+		// the connection is still usable, and the withdrawn fetch doesn't steal values
+		nws.store("late", "value");
+		assertTrue("value".equals(nws.find("late", 1, TimeUnit.SECONDS)));
+		assertTrue("value".equals(nws.fetch("late", 1, TimeUnit.SECONDS)));
+	}
+
+	public void testCoalescingWriter() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		NwsCoalescingWriter w = new NwsCoalescingWriter(nws.getWsName(), opts, 1, TimeUnit.HOURS);
+		for (int i = 0; i <= 100; i++) {
+			w.set("progress", i);
+			w.set("status", "step " + i);
+		}
+		w.flush();
+		assertTrue(((Integer) nws.find("progress")) == 100);
+		assertTrue("step 100".equals(nws.find("status")));
+		assertTrue(w.getCoalesced() == 200);
+
+		w.set("progress", 101);
+		w.close();
+		assertTrue(((Integer) nws.find("progress")) == 101);
+
+		// a runtime exception in the flusher is reported by the next call
+		opts.interceptors = new NwsInterceptor[] { new NwsInterceptor() {
+			public void before(NwsCall call) {
+				if ("store batch".equals(call.getOperation()))
+					throw new IllegalStateException("rejected");
+			}
+			public void after(NwsCall call) {
+			}
+			public void error(NwsCall call, Exception cause) {
+			}
+		}};
+		NwsCoalescingWriter bad = new NwsCoalescingWriter(nws.getWsName(), opts, 10, TimeUnit.MILLISECONDS);
+		Throwable cause = null;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cause == null && System.currentTimeMillis() < deadline) {
+			try {
+				bad.set("progress", 102);
+				Thread.sleep(10);
+			} catch (NwsOperationException e) {
+				cause = e.getCause().getCause();
+			}
+		}
+		assertTrue(cause instanceof IllegalStateException);
+		assertTrue(((Integer) nws.find("progress")) == 101);
+		boolean exceptionRaised = false;
+		try {
+			bad.close();
+		} catch (NwsOperationException e) {
+			exceptionRaised = true;
+		}
+		assertTrue(exceptionRaised);
+	}
+
+	public void testGroupCommitWriter() throws Exception {
+		final NwsGroupCommitWriter w = new NwsGroupCommitWriter(nws.getWsName(), new NwsOptions());
+		final int N = 8;
+		Thread[] threads = new Thread[N];
+		for (int i = 0; i < N; i++) {
+			final int id = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j = 0; j < 100; j++)
+							w.store("group", id);
+					} catch (NwsException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (int i = 0; i < N; i++)
+			threads[i].join();
+		w.close();
+
+		assertTrue(w.getStoreCount() == N * 100);
+		assertTrue(nws.aggregate("group", NetWorkSpace.COUNT) == N * 100);
+
+		// a runtime exception in a batch fails its callers, and the writer lives on to fail the rest
+		NwsOptions opts = new NwsOptions();
+		opts.interceptors = new NwsInterceptor[] { new NwsInterceptor() {
+			public void before(NwsCall call) {
+				if ("store batch".equals(call.getOperation()))
+					throw new IllegalStateException("rejected");
+			}
+			public void after(NwsCall call) {
+			}
+			public void error(NwsCall call, Exception cause) {
+			}
+		}};
+		NwsGroupCommitWriter bad = new NwsGroupCommitWriter(nws.getWsName(), opts);
+		Throwable cause = null;
+		try {
+			bad.store("group", 1);
+		} catch (NwsOperationException e) {
+			cause = e.getCause();
+		}
+		assertTrue(cause instanceof IllegalStateException);
+		boolean exceptionRaised = false;
+		try {
+			bad.store("group", 1);
+		} catch (NwsOperationException e) {
+			exceptionRaised = true;
+		}
+		assertTrue(exceptionRaised);
+		bad.close();
+	}
+
+	public void testStats() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		opts.stats = new NwsStats();
+		NetWorkSpace ws = new NetWorkSpace(nws.getWsName(), opts);
+		for (int i = 0; i < 10; i++)
+			ws.store("stats", i);
+		for (int i = 0; i < 10; i++)
+			ws.fetch("stats");
+		assertTrue(ws.fetchTry("stats") == null);
+		try {
+			ws.deleteVar("no such variable");
+		} catch (NwsOperationException e) {
+		}
+
+		Map<String, NwsStats.Snapshot> ops = opts.stats.snapshotOperations();
+		NwsStats.Snapshot store = ops.get("store");
+		assertTrue(store.getCalls() == 10);
+		assertTrue(store.getErrors() == 0);
+		assertTrue(store.getBytesSent() > 0 && store.getBytesReceived() > 0);
+		assertTrue(store.getPercentileNanos(50) <= store.getPercentileNanos(99));
+		assertTrue(store.getPercentileNanos(100) > 0);
+		assertTrue(ops.get("fetch").getCalls() == 10);
+		assertTrue(ops.get("fetchTry").getErrors() == 0);
+		assertTrue(ops.get("delete var").getErrors() == 1);
+		assertTrue(opts.stats.snapshotWorkspaces().get(nws.getWsName()).getCalls() >= 22);
+		assertTrue(ws.getNwsServer().getStats() == opts.stats);
+		ws.close();
+	}
+
+	public void testMBeans() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		opts.jmx = true;
+		final NetWorkSpace ws = new NetWorkSpace(nws.getWsName(), opts);
+		ws.store("jmx", new byte[100]);
+		ws.store("jmx", new byte[300]);
+		ws.find("jmx");
+		ws.fetch("jmx");
+		ws.fetch("jmx");
+
+		MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		ObjectName pattern = new ObjectName("com.sca.nws:type=WorkSpace,name=" +
+				ObjectName.quote(nws.getWsName()) + ",*");
+		ObjectName name = mbs.queryNames(pattern, null).iterator().next();
+		assertTrue(((Long) mbs.getAttribute(name, "Stores")) == 2);
+		assertTrue(((Long) mbs.getAttribute(name, "Retrievals")) == 3);
+		assertTrue(((Long) mbs.getAttribute(name, "BytesStored")) == 400);
+		String[] vars = (String[]) mbs.getAttribute(name, "Variables");
+		assertTrue(vars.length == 1 && vars[0].startsWith("jmx: stores=2"));
+
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					ws.fetch("jmx");
+				} catch (NwsException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(300);
+		assertTrue(((Integer) mbs.getAttribute(name, "BlockedWaiters")) == 1);
+		String dump = (String) mbs.invoke(name, "dumpWaiters", null, null);
+		assertTrue(dump.startsWith("fetch ws=" + nws.getWsName() + " var=jmx"));
+		nws.store("jmx", new byte[1]);
+		waiter.join();
+
+		mbs.invoke(name, "resetCounters", null, null);
+		assertTrue(((Long) mbs.getAttribute(name, "Stores")) == 0);
+		assertTrue(mbs.queryNames(new ObjectName("com.sca.nws:type=Connection,*"), null).size() == 1);
+		ws.close();
+		assertTrue(mbs.queryNames(new ObjectName("com.sca.nws:*"), null).isEmpty());
+	}
+
+	public void testInterceptor() throws Exception {
+		final List<String> log = new ArrayList<String>();
+		NwsOptions opts = new NwsOptions();
+		opts.interceptors = new NwsInterceptor[] { new NwsInterceptor() {
+			public void before(NwsCall call) {
+				call.setAttachment("span");
+				log.add("before " + call.getOperation() + " " + call.getVariable());
+			}
+			public void after(NwsCall call) {
+				assertTrue("span".equals(call.getAttachment()));
+				assertTrue(call.getBytesSent() > 0 && call.getBytesReceived() > 0);
+				log.add("after " + call.getOperation() + " " + call.getVariable());
+			}
+			public void error(NwsCall call, Exception cause) {
+				log.add("error " + call.getOperation() + " " + call.getVariable() + " " + cause);
+			}
+		}};
+		NetWorkSpace ws = new NetWorkSpace(nws.getWsName(), opts);
+		log.clear();
+		ws.store("intercepted", "value");
+		ws.fetch("intercepted");
+		try {
+			ws.deleteVar("no such variable");
+		} catch (NwsOperationException e) {
+		}
+		ws.close();
+
+		assertTrue(log.size() == 6);
+		assertTrue(log.get(0).equals("before store intercepted"));
+		assertTrue(log.get(1).equals("after store intercepted"));
+		assertTrue(log.get(3).equals("after fetch intercepted"));
+		assertTrue(log.get(5).equals("error delete var no such variable null"));
+	}
+
+	public void testListing() throws Exception {
+		NetWorkSpace ws = new NetWorkSpace("JUnit Listing WorkSpace");
+		for (int i = 0; i < 3; i++)
+			ws.store("list.a", i);
+		ws.store("list.b", 0);
+		ws.store("other", 0);
+		for (int i = 0; i < 2000; i++)
+			ws.store("many." + i, i);
+
+		Iterator<VariableInfo> it = ws.listVariables("list.");
+		VariableInfo a = it.next();
+		assertTrue(a.getName().equals("list.a"));
+		assertTrue(a.getValues() == 3);
+		assertTrue(a.getFetchers() == 0 && a.getFinders() == 0);
+		assertTrue(a.getMode().equals(NetWorkSpace.FIFO));
+		assertTrue(it.next().getName().equals("list.b"));
+		assertFalse(it.hasNext());
+
+		// the listing spans many reads, and only some of it matches
+		int all = 0;
+		for (it = ws.listVariables(); it.hasNext(); it.next())
+			all++;
+		assertTrue(all == 2003);
+		int some = 0;
+		for (it = ws.listVariables("many.1"); it.hasNext(); it.next())
+			some++;
+		assertTrue(some == 1111);
+
+		// an abandoned listing doesn't get in the way of the next operation
+		it = ws.listVariables();
+		it.next();
+		assertTrue(ws.fetch("list.b").equals(0));
+		assertTrue(ws.listVariables("list.b").next().getValues() == 0);
+
+		Iterator<WorkspaceInfo> wss = ws.getNwsServer().listWorkspaces("JUnit Listing");
+		WorkspaceInfo info = wss.next();
+		assertTrue(info.getName().equals(ws.getWsName()));
+		assertTrue(info.isMine());
+		assertTrue(info.getVariableCount() == 2003);
+		assertTrue(info.getVariables().contains("other"));
+		assertFalse(wss.hasNext());
+		assertTrue(ws.aggregate("list.a", NetWorkSpace.COUNT) == 3);
+		ws.close();
+	}
+
+	public void testLanes() throws Exception {
+		NwsOptions opts = new NwsOptions();
+		opts.lanes = true;
+		opts.bulkThreshold = 1 << 16;
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		opts.interceptors = new NwsInterceptor[] { new NwsInterceptor() {
+			public void before(NwsCall call) {
+				if ("lanes.rejected".equals(call.getVariable()))
+					throw new IllegalStateException("rejected");
+			}
+			public void after(NwsCall call) {
+				if ("lanes.unlucky".equals(call.getVariable()) && !seen.contains("lanes.unlucky"))
+					throw new IllegalStateException("unlucky");
+			}
+			public void error(NwsCall call, Exception cause) {
+			}
+		}, new NwsInterceptor() {
+			public void before(NwsCall call) {
+			}
+			public void after(NwsCall call) {
+				if (call.getVariable() != null)
+					seen.add(call.getVariable());
+			}
+			public void error(NwsCall call, Exception cause) {
+			}
+		}};
+		final NetWorkSpace ws = new NetWorkSpace("JUnit Lanes WorkSpace", opts);
+		final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+
+		// a blocked fetch doesn't hold up the other operations
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					results.add(ws.fetch("lanes.wait"));
+				} catch (NwsException e) {
+					results.add(e);
+				}
+			}
+		};
+		waiter.start();
+
+		// nor do large values going the other way
+		final byte[] big = new byte[8 << 20];
+		big[big.length - 1] = 42;
+		Thread mover = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 4; i++) {
+						ws.store("lanes.big", big);
+						results.add(ws.fetchTry("lanes.big"));
+					}
+				} catch (NwsException e) {
+					results.add(e);
+				}
+			}
+		};
+		mover.start();
+
+		for (int i = 0; i < 200; i++) {
+			ws.store("lanes.small", i);
+			assertTrue(ws.fetchTry("lanes.small").equals(i));
+		}
+		mover.join();
+		ws.store("lanes.wait", "done");
+		waiter.join(10000);
+		assertFalse(waiter.isAlive());
+
+		assertTrue(results.size() == 5);
+		assertTrue(results.contains("done"));
+		for (Object o: results) {
+			if (o instanceof byte[])
+				assertTrue(((byte[]) o).length == big.length && ((byte[]) o)[big.length - 1] == 42);
+			else
+				assertTrue(o.equals("done"));
+		}
+
+		// fetchAny and timed fetches wait on lanes of their own too
+		ws.store("lanes.any", 7);
+		assertTrue(ws.fetchAny("lanes.none", "lanes.any").getValue().equals(7));
+		assertTrue(ws.fetch("lanes.none", 10, TimeUnit.MILLISECONDS) == null);
+
+		// nor does a store waiting for room in a full variable
+		ws.declare("lanes.bounded", NetWorkSpace.FIFO, 1);
+		ws.store("lanes.bounded", 1);
+		results.clear();
+		Thread producer = new Thread() {
+			public void run() {
+				try {
+					ws.store("lanes.bounded", 2);
+					results.add("stored");
+				} catch (NwsException e) {
+					results.add(e);
+				}
+			}
+		};
+		producer.start();
+		Thread.sleep(100);
+		assertTrue(ws.fetchTry("lanes.bounded").equals(1));
+		producer.join(10000);
+		assertFalse(producer.isAlive());
+		assertTrue(results.size() == 1 && results.get(0).equals("stored"));
+		assertTrue(ws.fetchTry("lanes.bounded").equals(2));
+
+		// neither an abandoned listing nor a rejected operation keeps the lane from other threads
+		ws.store("lanes.listed", 1);
+		ws.store("lanes.listed2", 2);
+		Iterator<VariableInfo> it = ws.listVariables("lanes.listed");
+		assertTrue(it.hasNext());
+		boolean exceptionRaised = false;
+		try {
+			ws.store("lanes.rejected", 1);
+		} catch (IllegalStateException e) {
+			exceptionRaised = true;
+		}
+		assertTrue(exceptionRaised);
+		// nor does an interceptor that throws once the operation is done
+		exceptionRaised = false;
+		try {
+			ws.store("lanes.unlucky", 3);
+		} catch (IllegalStateException e) {
+			exceptionRaised = true;
+		}
+		assertTrue(exceptionRaised);
+		assertTrue(seen.contains("lanes.unlucky"));
+		results.clear();
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					results.add(ws.fetchTry("lanes.listed"));
+					results.add(ws.fetchTry("lanes.unlucky"));
+				} catch (NwsException e) {
+					results.add(e);
+				}
+			}
+		};
+		other.start();
+		other.join(10000);
+		assertFalse(other.isAlive());
+		assertTrue(results.size() == 2 && results.get(0).equals(1) && results.get(1).equals(3));
+		int n = 0;
+		for (; it.hasNext(); it.next())
+			n++;
+		assertTrue(n == 2);
+		ws.close();
+	}
+
+	public void testShardedWorkSpace() throws Exception {
+		NwsEngine[] engines = new NwsEngine[3];
+		NetWorkSpace[] plain = new NetWorkSpace[3];
+		for (int i = 0; i < engines.length; i++) {
+			engines[i] = new NwsEngine(0);
+			engines[i].start();
+		}
+		String wsName = "JUnit Sharded WorkSpace";
+		ShardedNetWorkSpace ws = new ShardedNetWorkSpace(wsName,
+				new String[] {"localhost:" + engines[0].getPort(), "localhost:" + engines[1].getPort()});
+		try {
+			for (int i = 0; i < engines.length; i++) {
+				NwsOptions opts = new NwsOptions();
+				opts.port = engines[i].getPort();
+				opts.useUse = true;
+				plain[i] = new NetWorkSpace(wsName, opts);
+			}
+
+			// each variable is on the server the ring picks for it, and only there
+			int[] counts = new int[3];
+			for (int i = 0; i < 40; i++) {
+				ws.declare("shard." + i, NetWorkSpace.FIFO, 2);
+				ws.store("shard." + i, i);
+			}
+			for (int i = 0; i < 40; i++) {
+				int k = shardOf(engines, ws.getNwsServer("shard." + i));
+				counts[k]++;
+				for (int j = 0; j < 2; j++)
+					assertTrue(j == k ? plain[j].findTry("shard." + i).equals(i)
+							: plain[j].findTry("shard." + i) == null);
+			}
+			assertTrue(counts[0] > 0 && counts[1] > 0);
+
+			// a new server takes some of the variables, which keep their values and capacity
+			ws.addServer("localhost", engines[2].getPort());
+			counts = new int[3];
+			for (int i = 0; i < 40; i++) {
+				int k = shardOf(engines, ws.getNwsServer("shard." + i));
+				counts[k]++;
+				for (int j = 0; j < 3; j++)
+					assertTrue(j == k ? plain[j].findTry("shard." + i).equals(i)
+							: plain[j].findTry("shard." + i) == null);
+				assertTrue(ws.aggregate("shard." + i, NetWorkSpace.CAPACITY) == 2);
+				assertTrue(ws.storeTry("shard." + i, -1));
+				assertFalse(ws.storeTry("shard." + i, -2));
+			}
+			assertTrue(counts[2] > 0 && counts[2] < 40);
+
+			// fetchAny over variables on different servers
+			String a = "shard.0", b = null;
+			for (int i = 1; b == null; i++)
+				if (ws.getNwsServer("shard." + i) != ws.getNwsServer(a))
+					b = "shard." + i;
+			ws.deleteVar(a);
+			ws.deleteVar(b);
+			final ShardedNetWorkSpace cws = new ShardedNetWorkSpace(wsName,
+					new String[] {"localhost:" + engines[0].getPort(), "localhost:" + engines[1].getPort(),
+							"localhost:" + engines[2].getPort()});
+			final String[] varnames = {a, b};
+			final NwsNamedValue[] result = new NwsNamedValue[1];
+			Thread consumer = new Thread() {
+				public void run() {
+					try {
+						result[0] = cws.fetchAny(varnames);
+						cws.close();
+					} catch (NwsException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			consumer.start();
+			Thread.sleep(200);
+			ws.store(b, "b");
+			consumer.join(10000);
+			assertFalse(consumer.isAlive());
+			assertTrue(b.equals(result[0].getVarName()) && "b".equals(result[0].getValue()));
+
+			boolean exceptionRaised = false;
+			try {
+				ws.getNwsServer();
+			} catch (UnsupportedOperationException e) {
+				exceptionRaised = true;
+			}
+			assertTrue(exceptionRaised);
+		} finally {
+			ws.close();
+			for (int i = 0; i < engines.length; i++) {
+				if (plain[i] != null)
+					plain[i].close();
+				engines[i].stop();
+			}
+		}
+	}
+
+	private static int shardOf(NwsEngine[] engines, NwsServer server) {
+		for (int i = 0; i < engines.length; i++)
+			if (engines[i].getPort() == server.getPort())
+				return i;
+		throw new AssertionError("unknown server " + server);
+	}
+
+	public void testLaneContent() throws Exception {
+		// the server keeps no content, only the value of the last digest reply
+		NwsEngine engine = new NwsEngine(0);
+		engine.setContentLimit(0);
+		engine.start();
+		try {
+			NwsOptions opts = new NwsOptions();
+			opts.port = engine.getPort();
+			opts.contentCache = new ContentCache(1 << 20);
+			opts.dedupThreshold = 1024;
+			NetWorkSpace ws = new NetWorkSpace("JUnit Lane Content", opts);
+			byte[] exp = new byte[10000];
+			for (int i = 0; i < exp.length; i++)
+				exp[i] = (byte) i;
+			for (int i = 0; i < 3; i++)
+				ws.store("content", exp);
+
+			// a reader without the content gets it on the lane the digest came on
+			NwsOptions ropts = new NwsOptions();
+			ropts.port = engine.getPort();
+			ropts.useUse = true;
+			ropts.lanes = true;
+			ropts.contentCache = new ContentCache(1 << 20);
+			NetWorkSpace rws = new NetWorkSpace(ws.getWsName(), ropts);
+			assertTrue(java.util.Arrays.equals(exp, (byte[]) rws.findTry("content")));
+			ropts.contentCache.clear();
+			assertTrue(java.util.Arrays.equals(exp, (byte[]) rws.fetch("content")));
+			ropts.contentCache.clear();
+			assertTrue(java.util.Arrays.equals(exp, (byte[]) rws.fetchAny("none", "content").getValue()));
+			rws.close();
+			ws.close();
+		} finally {
+			engine.stop();
+		}
+	}
+
+	public void testOversizedRequest() throws Exception {
+		// a binary request claiming 2^32 - 1 arguments
+		assertHangsUp("1112BIN2", new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f});
+	}
+
+	public void testOverflowingLength() throws Exception {
+		// a text request whose argument length doesn't fit in a long
+		assertHangsUp("1112", "000199999999999999999999".getBytes());
+	}
+
+	public void testShortRequest() throws Exception {
+		// a text store request without its workspace, variable and value
+		assertHangsUp("1112", "000100000000000000000005store".getBytes());
+	}
+
+	public void testAbandonedFetch() throws Exception {
+		// a raw text fetch that blocks, from a client that then hangs up
+		String[] req = {"fetch", nws.getWsName(), "abandoned"};
+		StringBuilder sb = new StringBuilder("11120003");
+		for (int i = 0; i < req.length; i++)
+			sb.append(String.format("%020d", req[i].length())).append(req[i]);
+		Socket socket = new Socket(nwss.getHost(), nwss.getPort());
+		socket.getOutputStream().write(sb.toString().getBytes());
+		socket.getOutputStream().flush();
+		while (fetchers("abandoned") == 0)
+			Thread.sleep(10);
+		socket.close();
+
+		// the server withdraws the fetch, and the value isn't lost
+		long deadline = System.currentTimeMillis() + 10000;
+		while (fetchers("abandoned") != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue(fetchers("abandoned") == 0);
+		nws.store("abandoned", "kept");
+		assertTrue("kept".equals(nws.fetchTry("abandoned")));
+	}
+
+	private static int fetchers(String varname) throws NwsException {
+		Iterator<VariableInfo> it = nws.listVariables(varname);
+		while (it.hasNext()) {
+			VariableInfo vi = it.next();
+			if (vi.getName().equals(varname))
+				return vi.getFetchers();
+		}
+		return 0;
+	}
+
+	/**
+	 * Sends a malformed request after the given handshake, and checks
+	 * that the server answers the handshake and then hangs up, without
+	 * harm to other connections.
+	 */
+	private void assertHangsUp(String handshake, byte[] request) throws Exception {
+		Socket socket = new Socket(nwss.getHost(), nwss.getPort());
+		socket.setSoTimeout(10000);
+		OutputStream out = socket.getOutputStream();
+		out.write(handshake.getBytes());
+		out.write(request);
+		out.flush();
+
+		InputStream in = socket.getInputStream();
+		byte[] buf = new byte[4096];
+		while (in.read(buf) != -1)
+			;
+		socket.close();
+		assertTrue(nws.fetchTry("no such variable") == null);
+	}
+
+	public void testCaptureReplay() throws Exception {
+		File file = File.createTempFile("nws", ".cap");
+		file.deleteOnExit();
+		NwsOptions opts = new NwsOptions();
+		opts.capture = new NwsCapture(file.getPath());
+		NetWorkSpace ws = new NetWorkSpace("capture test", opts);
+		for (int i = 0; i < 20; i++)
+			ws.store("captured", i);
+		for (int i = 0; i < 20; i++)
+			assertTrue(((Integer) ws.fetch("captured")) == i);
+		ws.close();
+		opts.capture.close();
+
+		NwsStats.Snapshot s = new NwsReplay().run(file.getPath()).snapshotOperations().get("request");
+		// the handshake, capabilities, open ws, and the stores and fetches
+		assertTrue(s.getCalls() == 43);
+		assertTrue(s.getErrors() == 0);
+	}
 }